@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Iterator;
+
+/**
+ * Backup takes a consistent backup of the database while transactions keep
+ * running, and restores it.
+ * <p/>
+ * A backup is a fuzzy copy of every heap file plus the log from a
+ * checkpoint on, the same pair recovery works from after a crash:
+ * <ol>
+ * <li>take a checkpoint and pin the log from the first record recovery
+ * from it needs, so that truncation leaves it alone;</li>
+ * <li>copy every heap file page by page with sequential reads, without
+ * the buffer pool or the lock manager.  Only the HeapFile is locked, for a
+ * page at a time, so that no page is copied half written;</li>
+ * <li>force the log and copy it from the pinned LSN to its end.  Every page
+ * write the copies saw was logged, and forced, before it was made (WAL), so
+ * the copied log covers all of them.</li>
+ * </ol>
+ * Recovering the copies from the copied log yields the database as of the
+ * end of the copied log: the transactions that committed by then, and none
+ * of the others.  Page LSN files are not copied, since a page LSN may be
+ * newer than the page copy next to it; recovery of a backup redoes every
+ * record from the checkpoint on.
+ * <p/>
+ * The backup directory holds the heap files under their file names
+ * prefixed with their table ids in hex, so that tables with the same file
+ * name in different directories don't collide, the log under the name
+ * <tt>log</tt> and a manifest, <tt>backup</tt>, of the places they were
+ * copied from and of the log's segment size.  {@link #restore} copies them
+ * back there; they must go back to the same paths, because the log refers
+ * to tables by ids derived from the paths of their heap files.
+ */
+public class Backup {
+
+    static final String LOG_NAME = "log";
+    static final String MANIFEST_NAME = "backup";
+
+    private final File dir;
+    private long pages = 0;
+    private long logBytes = 0;
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+
+    /**
+     * @param dir the directory to write the backup to
+     */
+    public Backup(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Back up every heap file in the catalog and the log of the database.
+     */
+    public void run() throws IOException {
+        dir.mkdirs();
+        LogFile log = Database.getLogFile();
+        long[] pinned = log.checkpointAndPin();
+        checkpoint = pinned[0];
+        long from = pinned[1];
+        try {
+            PrintWriter manifest = new PrintWriter(new FileWriter(new File(dir, MANIFEST_NAME + ".tmp")));
+            Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+            while (it.hasNext()) {
+                DbFile f = Database.getCatalog().getDatabaseFile(it.next());
+                if (f instanceof HeapFile) {
+                    HeapFile hf = (HeapFile) f;
+                    File copy = new File(dir, Integer.toHexString(hf.getId()) + "-" + hf.getFile().getName());
+                    copyPages(hf, copy);
+                    manifest.println("heap\t" + copy.getName() + "\t" + hf.getFile().getAbsolutePath());
+                }
+            }
+
+            log.force();
+            long to = log.getFlushedLSN();
+            log.copyTo(new File(dir, LOG_NAME), from, to, checkpoint);
+            logBytes = to - from;
+            manifest.println("log\t" + LOG_NAME + "\t" + log.logFile.getAbsolutePath() +
+                    "\t" + log.getStorageSegmentSize());
+            manifest.close();
+            if (manifest.checkError()) {
+                throw new IOException("cannot write the backup manifest");
+            }
+            File done = new File(dir, MANIFEST_NAME);
+            done.delete();
+            if (!new File(dir, MANIFEST_NAME + ".tmp").renameTo(done)) {
+                throw new IOException("cannot write " + done);
+            }
+        } finally {
+            log.unpin(from);
+        }
+    }
+
+    /**
+     * Copy a heap file a page at a time, holding the HeapFile's lock only
+     * while a page is read.
+     */
+    private void copyPages(HeapFile hf, File copy) throws IOException {
+        byte[] page = new byte[BufferPool.getPageSize()];
+        RandomAccessFile in = new RandomAccessFile(hf.getFile(), "r");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(copy), 1 << 16);
+        try {
+            for (int i = 0; ; i++) {
+                synchronized (hf) {
+                    if ((long) (i + 1) * page.length > in.length()) {
+                        break;
+                    }
+                    in.seek((long) i * page.length);
+                    in.readFully(page);
+                }
+                out.write(page);
+                pages++;
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of heap file pages the backup copied
+     */
+    public long getPagesCopied() {
+        return pages;
+    }
+
+    /**
+     * @return the number of bytes of log the backup copied
+     */
+    public long getLogBytesCopied() {
+        return logBytes;
+    }
+
+    /**
+     * @return the LSN of the checkpoint the backup recovers from
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Copy a backup back to where it was taken from.  Call before the
+     * Database opens the log, e.g. before Database.reset(), and run recovery
+     * afterwards.
+     *
+     * @param dir the directory holding the backup
+     */
+    public static void restore(File dir) throws IOException {
+        BufferedReader manifest = new BufferedReader(new FileReader(new File(dir, MANIFEST_NAME)));
+        try {
+            String line;
+            while ((line = manifest.readLine()) != null) {
+                String[] entry = line.split("\t");
+                if (entry.length != (entry[0].equals("log") ? 4 : 3)) {
+                    throw new IOException("bad backup manifest entry: " + line);
+                }
+                File from = new File(dir, entry[1]);
+                File to = new File(entry[2]);
+                if (entry[0].equals("heap")) {
+                    copyFile(from, to);
+                    new File(to.getPath() + ".lsn").delete();   // page LSNs of the replaced file
+                } else if (entry[0].equals("log")) {
+                    // read with the segment size it was written with, and
+                    // written with the one the database will open it with
+                    LogStorage backup = new LogStorage(from, Long.parseLong(entry[3]), true);
+                    try {
+                        backup.copyTo(to, LogFile.getSegmentSize(), backup.getStart(), backup.length(),
+                                backup.getCheckpoint());
+                    } finally {
+                        backup.close();
+                    }
+                } else {
+                    throw new IOException("bad backup manifest entry: " + line);
+                }
+            }
+        } finally {
+            manifest.close();
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * BloomFilter is a set of fields that may report a field as present that
+ * was never added, but never reports an added field as missing.
+ * <p/>
+ * HashEquiJoin builds one on the join fields of its build side and pushes
+ * it down to the scan of its probe side, which then drops the tuples that
+ * cannot join as soon as it reads them.
+ * <p/>
+ * The filter is an array of bits; a field sets k of them, picked by double
+ * hashing of its hashCode().  With 10 bits per field and 7 hash functions
+ * about 1% of the fields never added are reported present.
+ */
+public class BloomFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int BITS_PER_FIELD = 10;
+    static final int NUM_HASHES = 7;
+
+    /**
+     * The largest filter, in bits (4MB)
+     */
+    static final int MAX_BITS = 1 << 25;
+
+    private final long[] bits;
+    private final int numBits;
+    private int count = 0;
+
+    /**
+     * @param expected the number of fields expected to be added
+     */
+    public BloomFilter(long expected) {
+        long n = Math.max(64, Math.min(MAX_BITS, expected * BITS_PER_FIELD));
+        numBits = (int) ((n + 63) / 64 * 64);
+        bits = new long[numBits / 64];
+    }
+
+    private static long mix(Field f) {
+        long h = f.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void add(Field f) {
+        long h = mix(f);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+    }
+
+    /**
+     * @return false if the field was never added, true if it may have been
+     */
+    public boolean mightContain(Field f) {
+        long h = mix(f);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of fields added
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the size of the filter in bits
+     */
+    public int getNumBits() {
+        return numBits;
+    }
+}
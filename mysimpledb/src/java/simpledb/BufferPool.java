@@ -53,6 +53,22 @@ public class BufferPool {
      * Maximum size that the buffer pool can be
      */
     private int maxsize;
+    
+    /**
+     * Versions of committed pages read by snapshot (read-only) transactions
+     */
+    private SnapshotManager snapshots;
+    
+    /**
+     * Read sets and private workspaces of optimistic transactions
+     */
+    private OptimisticManager optimistic;
+    
+    /**
+     * Dirty page table: pages whose update record has been logged but that may
+     * not have been written to disk yet, with the LSN of the first such record
+     */
+    private ConcurrentHashMap<PageId,Long> dirtyPageTable;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -65,6 +81,9 @@ public class BufferPool {
         bqueue = new ConcurrentLinkedDeque<PageId>();
         maxsize = numPages;
         lm = new LockManager();
+        snapshots = new SnapshotManager();
+        optimistic = new OptimisticManager();
+        dirtyPageTable = new ConcurrentHashMap<PageId, Long>();
     }
 
     public static int getPageSize() {
@@ -94,27 +113,139 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
     	
+    	if (optimistic.isOptimistic(tid)) {							// optimistic transactions work on private copies
+    		Page p = optimistic.getPrivatePage(tid, pid);
+    		if (p == null) {
+    			p = getSnapshotPage(tid, pid);
+    			optimistic.addPage(tid, p, perm);
+    		}
+    		return p;
+    	}
+    	
+    	if (snapshots.isSnapshot(tid)) {							// snapshot readers never take locks
+    		if (perm.equals(Permissions.READ_WRITE)) {
+    			throw new DbException("read-only transaction cannot modify pages");
+    		}
+    		return getSnapshotPage(tid, pid);
+    	}
+    	
     	BufferPool.getLockManager().lockRequest(tid, pid, perm); 	// acquire lock on page
+    	return loadPage(pid);
+    }
+    
+    /**
+     * Helper function that returns the version of a page visible to a snapshot
+     * transaction, materializing it only the first time the transaction reads it.
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid) throws DbException {
+    	Page p = snapshots.getCachedPage(tid, pid);
+    	if (p == null) {
+    		p = snapshots.getPage(tid, (HeapPage) loadPage(pid));
+    	}
+    	return p;
+    }
+    
+    /**
+     * Helper function that returns the cached copy of a page, reading it from
+     * disk (and evicting another page if necessary) if it is not cached.
+     * Does not acquire any locks.
+     * @param pid	the ID of the requested page
+     */
+    private synchronized Page loadPage(PageId pid) throws DbException {
+        if (bpool.containsKey(pid))	{							// check if page is already in the buffer pool
+        	bqueue.remove(pid);									// update LRU queue to show that page is MRU
+        	bqueue.addFirst(pid);								// pid gets added to the HEAD of the queue
+        	return bpool.get(pid);								// return the page
+        }
+        
+        Catalog cat = Database.getCatalog();					// page is not in the buffer pool
+        DbFile db = cat.getDatabaseFile(pid.getTableId());		// retrieve the DbFile from catalog
+        Page pg = db.readPage(pid);								// read the required page from memory
+        
+        if (bpool.size() >= this.maxsize) {						// check if there is room in the buffer pool
+        	evictPage();										// buffer pool is full, so evict LRU page
+        }
+        
+        bpool.put(pid, pg);										// put the newly retrieved page in the buffer pool
+        bqueue.addFirst(pid);									// add the pid to the LRU queue
+        return pg;												// return the page to the caller
+    }
+    
+    /**
+     * Start a read-only transaction that reads a consistent snapshot of the
+     * database as of the last commit instead of acquiring locks.
+     *
+     * @param tid the ID of the read-only transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+    	snapshots.begin(tid);
+    }
+    
+    /**
+     * Start an optimistic transaction.  It reads the snapshot of the database
+     * as of the last commit without acquiring locks and buffers its writes in
+     * a private workspace until {@link #validateOptimistic} installs them.
+     *
+     * @param tid the ID of the optimistic transaction
+     */
+    public void beginOptimistic(TransactionId tid) {
+    	snapshots.begin(tid);
+    	optimistic.begin(tid);
+    }
+    
+    /**
+     * Validate an optimistic transaction that is about to commit.  Acquires
+     * shared locks on every page it read and exclusive locks on every page it
+     * wrote, checks that no other transaction committed a change to any of
+     * them since the transaction started, and installs its private copies in
+     * the buffer pool as pages dirtied by tid.  The caller then commits the
+     * transaction as usual.
+     *
+     * @param tid the ID of the optimistic transaction
+     * @throws TransactionAbortedException if validation fails; the caller
+     * must abort the transaction
+     */
+    public void validateOptimistic(TransactionId tid)
+    		throws TransactionAbortedException, DbException {
+    	
+    	if (!optimistic.isOptimistic(tid)) {
+    		return;
+    	}
+    	
+    	Set<PageId> reads = optimistic.getReadSet(tid);
+    	Collection<Page> writes = optimistic.getWriteSet(tid);
+    	LockManager lm = BufferPool.getLockManager();
+    	
+    	for (PageId pid : reads) {
+    		lm.lockRequest(tid, pid, Permissions.READ_ONLY);
+    		if (snapshots.isStale(tid, pid)) {
+    			throw new TransactionAbortedException();
+    		}
+    	}
+    	for (Page p : writes) {
+    		lm.lockRequest(tid, p.getId(), Permissions.READ_WRITE);
+    		if (snapshots.isStale(tid, p.getId())) {
+    			throw new TransactionAbortedException();
+    		}
+    	}
     	
+    	// the private copies were taken from the current committed version, so
+    	// their before images are correct and they can replace the cached pages
     	synchronized (this) {
-	        if (bpool.containsKey(pid))	{							// check if page is already in the buffer pool
-	        	bqueue.remove(pid);									// update LRU queue to show that page is MRU
-	        	bqueue.addFirst(pid);								// pid gets added to the HEAD of the queue
-	        	return bpool.get(pid);								// return the page
-	        }
-	        
-	        Catalog cat = Database.getCatalog();					// page is not in the buffer pool
-	        DbFile db = cat.getDatabaseFile(pid.getTableId());		// retrieve the DbFile from catalog
-	        Page pg = db.readPage(pid);								// read the required page from memory
-	        
-	        if (bpool.size() >= this.maxsize) {						// check if there is room in the buffer pool
-	        	evictPage();										// buffer pool is full, so evict LRU page
-	        }
-	        
-	        bpool.put(pid, pg);										// put the newly retrieved page in the buffer pool
-	        bqueue.addFirst(pid);									// add the pid to the LRU queue
-	        return pg;												// return the page to the caller
+    		for (Page p : writes) {
+    			PageId pid = p.getId();
+    			if (!bpool.containsKey(pid) && bpool.size() >= this.maxsize) {
+    				evictPage();
+    			}
+    			if (p.isDirty() == null) {
+    				p.markDirty(true, tid);
+    			}
+    			bqueue.remove(pid);
+    			bqueue.addFirst(pid);
+    			bpool.put(pid, p);
+    		}
     	}
+    	optimistic.end(tid);
     }
     
     /**
@@ -161,11 +292,8 @@ public class BufferPool {
     		PageId[] heldpages = BufferPool.getLockManager().getHolding(tid);
     		
     		if (heldpages != null) {
-	    		for (int i=0; i < heldpages.length; i++) {
-	    			HeapPage p = (HeapPage) bpool.get(heldpages[i]);
-	    			flushPage(heldpages[i]);
-	    			p.setBeforeImage();
-	    		}
+	    		writePages(heldpages);
+	    		snapshots.commit(heldpages, bpool);				// atomically install the new before images
     		}
     		
     		// release all locks and close out this transaction
@@ -179,12 +307,16 @@ public class BufferPool {
 	    		for (int i=0; i < heldpages.length; i++) {
 	    			discardPage(heldpages[i]);
 	    		}
+	    		snapshots.abort(heldpages);
     		}
     		
     		// release all locks and close out this transaction
     		BufferPool.getLockManager().transactionAbort(tid);
     		
     	}
+    	
+    	optimistic.end(tid);
+    	snapshots.end(tid);
     }
 
     /**
@@ -243,6 +375,10 @@ public class BufferPool {
     		lp = li.next();
     		lp.markDirty(true, tid);									// mark affected pages as dirty
     		
+    		if (optimistic.isOptimistic(tid)) {							// private copies stay out of the cache
+    			continue;
+    		}
+    		
     		if (bpool.containsKey(lp.getId())) {						// update cache
     			bpool.replace(lp.getId(), lp);
     		} else {
@@ -257,24 +393,7 @@ public class BufferPool {
      * break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-    	Enumeration<PageId> e = bpool.keys();
-    	PageId pid = null;
-    	
-    	if (e.hasMoreElements()) {
-    		pid = e.nextElement();
-    	}
-    	
-    	while (pid != null) {
-    		HeapPage p = (HeapPage) bpool.get(pid);				// retrieve page from buffer pool
-    		
-        	flushPage(((PageId) p.getId()));					// flush the page
-    		
-    		if (e.hasMoreElements()) {							// get next pid
-    			pid = e.nextElement();
-    		} else {
-    			break;
-    		}
-    	}
+    	writePages(bpool.keySet().toArray(new PageId[0]));
     }
 
     /**
@@ -294,23 +413,72 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
-    	DbFile dbf = Database.getCatalog().getDatabaseFile(pid.getTableId());	// retrieve database file
-    	HeapPage p = (HeapPage) bpool.get(pid);				// retrieve page from buffer pool
+    	writePages(new PageId[] { pid });
+    }
+    
+    /**
+     * Flushes the dirty pages among the specified ones to disk.  The update
+     * records of all the pages are logged first and no page is written before
+     * the log is on disk up to the last of them (WAL).
+     *
+     * @param pids the IDs of the pages to flush
+     */
+    private synchronized void writePages(PageId[] pids) throws IOException {
+    	ArrayList<HeapPage> dirty = new ArrayList<HeapPage>();
+    	long lastLSN = -1;
     	
-    	if (p == null)
-    		return;											// page wasn't in buffer pool so our work is done
+    	for (PageId pid : pids) {
+    		HeapPage p = (HeapPage) bpool.get(pid);			// retrieve page from buffer pool
+    		
+    		if (p == null || p.isDirty() == null)
+    			continue;									// not cached or not dirty... nothing to do
+    		
+    		lastLSN = Database.getLogFile().logWrite(p.isDirty(), p.getBeforeImage(), p);	// update log
+    		dirtyPageTable.putIfAbsent(pid, lastLSN);
+    		p.setLSN(lastLSN);
+    		snapshots.pageFlushed(p);						// page on disk is no longer the committed version
+    		dirty.add(p);
+    	}
     	
-    	if (p.isDirty() == null)
-    		return;											// page isn't dirty... we are done
+    	if (dirty.isEmpty())
+    		return;
     	
-    	TransactionId dirtier = p.isDirty();				// update log
-        if (dirtier != null){
-        	Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-        	Database.getLogFile().force();
-        }
+    	Database.getLogFile().flushTo(lastLSN);				// WAL: wait until all the update records are on disk
     	
-    	dbf.writePage(p);									// write page to disk
-    	p.markDirty(false, null);							// set page as not dirty
+    	HashSet<HeapFile> written = new HashSet<HeapFile>();
+    	for (HeapPage p : dirty) {
+    		DbFile dbf = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+    		dbf.writePage(p);								// write page to disk
+    		if (dbf instanceof HeapFile) {
+    			written.add((HeapFile) dbf);
+    		}
+    		p.markDirty(false, null);						// set page as not dirty
+    		dirtyPageTable.remove(p.getId());
+    	}
+    	for (HeapFile hf : written) {
+    		hf.force();										// once per file, which records the page LSNs
+    	}
+    }
+    
+    /**
+     * @return the number of cached pages with changes that are not on disk
+     */
+    public synchronized int getNumDirtyPages() {
+    	int n = 0;
+    	for (Page p : bpool.values()) {
+    		if (p.isDirty() != null)
+    			n++;
+    	}
+    	return n;
+    }
+    
+    /**
+     * Return a copy of the dirty page table: the pages whose changes have
+     * been logged but may not be on disk yet, and the LSN of the first log
+     * record redo has to apply to each of them.  Used by fuzzy checkpoints.
+     */
+    public Map<PageId,Long> getDirtyPageTable() {
+    	return new HashMap<PageId,Long>(dirtyPageTable);
     }
 
     /**
@@ -320,9 +488,7 @@ public class BufferPool {
     	PageId[] heldpages = BufferPool.getLockManager().getHolding(tid);
 		
 		if (heldpages != null) {
-    		for (int i=0; i < heldpages.length; i++) {
-    			flushPage(heldpages[i]);
-    		}
+			writePages(heldpages);
 		}
     }
 
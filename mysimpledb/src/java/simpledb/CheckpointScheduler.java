@@ -0,0 +1,258 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * CheckpointScheduler takes checkpoints in the background, so that recovery
+ * time stays bounded without anyone calling {@link LogFile#logCheckpoint}.
+ * <p/>
+ * A checkpoint is taken when any of the enabled triggers fires:
+ * <ul>
+ * <li>the log has grown by maxLogBytes since the last checkpoint;</li>
+ * <li>the buffer pool holds maxDirtyPages dirty pages;</li>
+ * <li>interval milliseconds have passed since the last checkpoint;</li>
+ * <li>redoing the log since the last checkpoint would take longer than the
+ * recovery time target.  Redo time is estimated from the log bytes and the
+ * redo rate of the last recovery, or {@link #redoRate} before there was
+ * one.</li>
+ * </ul>
+ * A trigger set to 0 is disabled.  Checkpoints are fuzzy (see
+ * LogFile.logCheckpoint), so neither transactions nor the log wait for
+ * them; their durations are recorded and can be read back.
+ * <p/>
+ * Database starts a scheduler with the triggers from the system properties
+ * simpledb.CheckpointLogBytes, simpledb.CheckpointDirtyPages,
+ * simpledb.CheckpointInterval and simpledb.RecoveryTimeTarget, if any of
+ * them is set.
+ *
+ * @Threadsafe
+ */
+public class CheckpointScheduler {
+
+    /**
+     * Assumed redo rate in bytes per millisecond, until a recovery measures it
+     */
+    static long redoRate = Long.getLong("simpledb.RedoRate", 10000);
+
+    // mostly useful for testing
+    public static void setRedoRate(long bytesPerMs) {
+        redoRate = bytesPerMs;
+    }
+
+    /**
+     * How often the triggers are checked, in milliseconds
+     */
+    static long pollInterval = Long.getLong("simpledb.CheckpointPollInterval", 100);
+
+    // mostly useful for testing
+    public static void setPollInterval(long ms) {
+        pollInterval = ms;
+    }
+
+    private final LogFile log;
+
+    private long maxLogBytes = Long.getLong("simpledb.CheckpointLogBytes", 0);
+    private int maxDirtyPages = Integer.getInteger("simpledb.CheckpointDirtyPages", 0);
+    private long interval = Long.getLong("simpledb.CheckpointInterval", 0);
+    private long recoveryTimeTarget = Long.getLong("simpledb.RecoveryTimeTarget", 0);
+
+    private long lastCheckpoint = System.currentTimeMillis();
+    private int checkpoints = 0;
+    private long lastDuration = 0;
+    private long maxDuration = 0;
+    private long totalDuration = 0;
+    private String lastReason = null;
+
+    private Thread thread;
+    private volatile boolean stopped;
+
+    public CheckpointScheduler(LogFile log) {
+        this.log = log;
+    }
+
+    /**
+     * @return true if any trigger is enabled
+     */
+    public synchronized boolean isEnabled() {
+        return maxLogBytes > 0 || maxDirtyPages > 0 || interval > 0 || recoveryTimeTarget > 0;
+    }
+
+    public synchronized void setMaxLogBytes(long bytes) {
+        this.maxLogBytes = bytes;
+    }
+
+    public synchronized void setMaxDirtyPages(int pages) {
+        this.maxDirtyPages = pages;
+    }
+
+    public synchronized void setInterval(long ms) {
+        this.interval = ms;
+    }
+
+    /**
+     * Set the longest the redo pass of recovery should take, in ms.
+     */
+    public synchronized void setRecoveryTimeTarget(long ms) {
+        this.recoveryTimeTarget = ms;
+    }
+
+    /**
+     * @return the estimated time to redo the log since the last checkpoint,
+     * in milliseconds
+     */
+    public long estimateRedoMillis() throws IOException {
+        long rate = redoRate;
+        if (log.getRedoMillis() > 0 && log.getRedoBytes() > 0) {
+            rate = Math.max(1, log.getRedoBytes() / log.getRedoMillis());
+        }
+        return log.getBytesSinceCheckpoint() / rate;
+    }
+
+    /**
+     * @return the trigger that fires now, or null if none does
+     */
+    synchronized String dueReason() throws IOException {
+        if (log.isRecoveryUndecided()) {
+            return null;    // a checkpoint would throw away the log recovery may need
+        }
+        long bytes = log.getBytesSinceCheckpoint();
+        if (bytes == 0) {
+            return null;    // nothing logged since the last checkpoint
+        }
+        if (maxLogBytes > 0 && bytes >= maxLogBytes) {
+            return "log bytes";
+        }
+        if (maxDirtyPages > 0 && Database.getBufferPool().getNumDirtyPages() >= maxDirtyPages) {
+            return "dirty pages";
+        }
+        if (interval > 0 && System.currentTimeMillis() - lastCheckpoint >= interval) {
+            return "interval";
+        }
+        if (recoveryTimeTarget > 0 && estimateRedoMillis() >= recoveryTimeTarget) {
+            return "recovery time";
+        }
+        return null;
+    }
+
+    /**
+     * Take a checkpoint if a trigger fires.
+     *
+     * @return true if a checkpoint was taken
+     */
+    public boolean checkNow() throws IOException {
+        String reason = dueReason();
+        if (reason == null) {
+            return false;
+        }
+        checkpoint(reason);
+        return true;
+    }
+
+    /**
+     * Take a checkpoint now and record how long it took.
+     */
+    public void checkpoint(String reason) throws IOException {
+        long start = System.currentTimeMillis();
+        log.logCheckpoint();
+        long duration = System.currentTimeMillis() - start;
+        synchronized (this) {
+            lastCheckpoint = System.currentTimeMillis();
+            checkpoints++;
+            lastDuration = duration;
+            maxDuration = Math.max(maxDuration, duration);
+            totalDuration += duration;
+            lastReason = reason;
+        }
+    }
+
+    /**
+     * Start checking the triggers in a background thread.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        stopped = false;
+        thread = new Thread("checkpoint scheduler") {
+            public void run() {
+                while (!stopped) {
+                    try {
+                        checkNow();
+                        Thread.sleep(pollInterval);
+                    } catch (InterruptedException e) {
+                        // stop() interrupts the sleep
+                    } catch (IOException e) {
+                        System.out.println("checkpoint failed: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        log.setCheckpointScheduler(this);
+    }
+
+    /**
+     * Stop the background thread, waiting for a checkpoint in progress.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            stopped = true;
+        }
+        if (t != null) {
+            log.setCheckpointScheduler(null);
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                // give up waiting
+            }
+        }
+    }
+
+    /**
+     * @return the number of checkpoints taken
+     */
+    public synchronized int getCheckpointCount() {
+        return checkpoints;
+    }
+
+    /**
+     * @return how long the last checkpoint took, in milliseconds
+     */
+    public synchronized long getLastDuration() {
+        return lastDuration;
+    }
+
+    /**
+     * @return how long the longest checkpoint took, in milliseconds
+     */
+    public synchronized long getMaxDuration() {
+        return maxDuration;
+    }
+
+    /**
+     * @return how long all the checkpoints took together, in milliseconds
+     */
+    public synchronized long getTotalDuration() {
+        return totalDuration;
+    }
+
+    /**
+     * @return the trigger of the last checkpoint, or null if none was taken
+     */
+    public synchronized String getLastReason() {
+        return lastReason;
+    }
+
+    public synchronized String toString() {
+        return checkpoints + " checkpoints, last " + lastDuration + " ms (" + lastReason + "), max " +
+                maxDuration + " ms, total " + totalDuration + " ms";
+    }
+}
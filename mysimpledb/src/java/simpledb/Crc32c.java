@@ -0,0 +1,47 @@
+package simpledb;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of every log record.  It detects the
+ * torn or partially written records a crash can leave at the end of the
+ * log better than CRC-32 and is the usual choice for storage formats.
+ * Table driven, one byte at a time.
+ */
+class Crc32c implements Checksum {
+
+    private static final int POLY = 0x82F63B78;   // reversed Castagnoli polynomial
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            TABLE[i] = c;
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+    }
+
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        for (int i = off; i < off + len; i++) {
+            c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xff];
+        }
+        crc = c;
+    }
+
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
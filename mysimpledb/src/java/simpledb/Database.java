@@ -20,6 +20,7 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final CheckpointScheduler _checkpointer;
 
     private Database() {
         _catalog = new Catalog();
@@ -32,6 +33,10 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _checkpointer = new CheckpointScheduler(_logfile);
+        if (_checkpointer.isEnabled()) {
+            _checkpointer.start();
+        }
         // startControllerThread();
     }
 
@@ -56,6 +61,13 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /**
+     * Return the checkpoint scheduler of the static Database instance
+     */
+    public static CheckpointScheduler getCheckpointScheduler() {
+        return _instance.get()._checkpointer;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
@@ -81,6 +93,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // stop the old checkpointer before the new instance opens the same log
+        _instance.get()._checkpointer.stop();
         _instance.set(new Database());
     }
 
@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort returns the tuples of a child sorted on one field, sorting
+ * in memory when they fit and spilling sorted runs otherwise.
+ * <p/>
+ * Tuples are collected until they take up the memory budget, sorted, and
+ * written to a SpillFile as a run.  The runs are merged with a priority
+ * queue, at most {@link #MAX_FAN_IN} at a time; while there are more
+ * runs than the final merge takes they are first merged into longer ones.
+ * When everything fits in memory no file is written.  The child must be
+ * open; {@link #open} reads all of it.
+ */
+class ExternalSort implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The most runs merged at once
+     */
+    static final int MAX_FAN_IN = 64;
+
+    private final DbIterator child;
+    private final TupleComparator comparator;
+    private final long memoryBudget;
+    private final int maxRuns;
+
+    private transient ArrayList<Tuple> sorted;
+    private transient int pos;
+    private transient ArrayList<SpillFile> runs;
+    private transient PriorityQueue<Head> heads;
+    private transient List<SpillFile> merging;
+    private transient Tuple next;
+
+    /**
+     * @param child        the tuples to sort
+     * @param field        the field to sort on
+     * @param asc          true for ascending order
+     * @param memoryBudget the bytes of tuples to sort in memory at once
+     * @param maxRuns      the most runs to leave for the final merge; 1 makes
+     *                     rewinds cheap, at the price of writing all tuples
+     *                     once more
+     */
+    public ExternalSort(DbIterator child, int field, boolean asc, long memoryBudget, int maxRuns) {
+        this.child = child;
+        this.comparator = new TupleComparator(field, asc);
+        this.memoryBudget = memoryBudget;
+        this.maxRuns = Math.max(1, Math.min(maxRuns, MAX_FAN_IN));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * @return the number of runs spilled to disk, 0 if the sort was done in
+     * memory
+     */
+    public int getRunCount() {
+        return runs == null ? 0 : runs.size();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        close();
+        int size = child.getTupleDesc().getSize();
+        ArrayList<Tuple> buf = new ArrayList<Tuple>();
+        ArrayList<SpillFile> spilled = new ArrayList<SpillFile>();
+        long bytes = 0;
+        while (child.hasNext()) {
+            buf.add(child.next());
+            bytes += size;
+            if (bytes > memoryBudget) {
+                spilled.add(writeRun(buf));
+                buf = new ArrayList<Tuple>();
+                bytes = 0;
+            }
+        }
+        Collections.sort(buf, comparator);
+        if (spilled.isEmpty()) {
+            sorted = buf;
+            pos = 0;
+            return;
+        }
+        if (!buf.isEmpty()) {
+            spilled.add(writeRun(buf));
+        }
+        while (spilled.size() > maxRuns) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < spilled.size(); i += MAX_FAN_IN) {
+                List<SpillFile> group = spilled.subList(i, Math.min(spilled.size(), i + MAX_FAN_IN));
+                SpillFile out = new SpillFile(getTupleDesc());
+                startMerge(group);
+                Tuple t;
+                while ((t = nextMerged()) != null) {
+                    out.add(t);
+                }
+                out.finish();
+                for (SpillFile f : group) {
+                    f.delete();
+                }
+                merged.add(out);
+            }
+            spilled = merged;
+        }
+        runs = spilled;
+        startMerge(runs);
+    }
+
+    private SpillFile writeRun(ArrayList<Tuple> buf) throws DbException {
+        Collections.sort(buf, comparator);
+        SpillFile run = new SpillFile(getTupleDesc());
+        for (Tuple t : buf) {
+            run.add(t);
+        }
+        run.finish();
+        return run;
+    }
+
+    /**
+     * The next tuple of a run, ordered by the tuple and then by the run, so
+     * that the merge is stable
+     */
+    private class Head implements Comparable<Head> {
+        final Tuple tuple;
+        final int run;
+
+        Head(Tuple tuple, int run) {
+            this.tuple = tuple;
+            this.run = run;
+        }
+
+        public int compareTo(Head o) {
+            int c = comparator.compare(tuple, o.tuple);
+            return c != 0 ? c : run - o.run;
+        }
+    }
+
+    private void startMerge(List<SpillFile> files) throws DbException {
+        merging = files;
+        heads = new PriorityQueue<Head>(Math.max(1, files.size()));
+        for (int i = 0; i < files.size(); i++) {
+            SpillFile f = files.get(i);
+            f.open();
+            if (f.hasNext()) {
+                heads.add(new Head(f.next(), i));
+            }
+        }
+    }
+
+    private Tuple nextMerged() throws DbException {
+        Head h = heads.poll();
+        if (h == null) {
+            return null;
+        }
+        SpillFile f = merging.get(h.run);
+        if (f.hasNext()) {
+            heads.add(new Head(f.next(), h.run));
+        }
+        return h.tuple;
+    }
+
+    public boolean hasNext() throws DbException {
+        if (next == null) {
+            if (sorted != null) {
+                next = pos < sorted.size() ? sorted.get(pos++) : null;
+            } else if (heads != null) {
+                next = nextMerged();
+            }
+        }
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    public void rewind() throws DbException {
+        next = null;
+        if (sorted != null) {
+            pos = 0;
+        } else if (runs != null) {
+            startMerge(runs);
+        }
+    }
+
+    /**
+     * Drop the sorted tuples and remove the runs.
+     */
+    public void close() {
+        if (runs != null) {
+            for (SpillFile f : runs) {
+                f.delete();
+            }
+        }
+        runs = null;
+        heads = null;
+        merging = null;
+        sorted = null;
+        next = null;
+    }
+}
@@ -10,6 +10,7 @@ public class Filter extends Operator {
     private static final long serialVersionUID = 1L;
     private Predicate pred;
     private DbIterator iter;
+    private RuntimeFilters runtimeFilters = new RuntimeFilters();
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -27,6 +28,36 @@ public class Filter extends Operator {
         return pred;
     }
 
+    /**
+     * Drop the tuples whose field is not in a Bloom filter from now on.  The
+     * filter is pushed down to the child when it is a SeqScan or a Filter,
+     * and applied before the predicate otherwise.
+     *
+     * @param field  the field of the tuples of this operator to look up
+     * @param filter the filter, e.g. of the build side of a HashEquiJoin
+     */
+    public void addRuntimeFilter(int field, BloomFilter filter) {
+        if (iter instanceof SeqScan) {
+            ((SeqScan) iter).addRuntimeFilter(field, filter);
+        } else if (iter instanceof Filter) {
+            ((Filter) iter).addRuntimeFilter(field, filter);
+        } else {
+            runtimeFilters.add(field, filter);
+        }
+    }
+
+    /**
+     * Stop applying a filter added by addRuntimeFilter.
+     */
+    public void removeRuntimeFilter(BloomFilter filter) {
+        if (iter instanceof SeqScan) {
+            ((SeqScan) iter).removeRuntimeFilter(filter);
+        } else if (iter instanceof Filter) {
+            ((Filter) iter).removeRuntimeFilter(filter);
+        }
+        runtimeFilters.remove(filter);
+    }
+
     public TupleDesc getTupleDesc() {
         return iter.getTupleDesc();
     }
@@ -60,7 +91,7 @@ public class Filter extends Operator {
         
     	while (iter.hasNext()) {
         	Tuple t = iter.next();
-        	if (pred.filter(t)) {
+        	if (runtimeFilters.passes(t) && pred.filter(t)) {
         		//System.out.println("returning tuple: " + t.toString());
         		return t;
         	}
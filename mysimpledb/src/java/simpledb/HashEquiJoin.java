@@ -3,12 +3,83 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational join operation for
+ * equality predicates, with a hybrid hash join.
+ * <p/>
+ * The smaller child, as far as its estimated cardinality or the size of
+ * the table it scans tells, is the build side: its tuples are loaded into a
+ * hash table on the join field, and the tuples of the other child, the
+ * probe side, look their matches up in it.  The hash table is split into
+ * partitions by the hash of the join field.  When the build side outgrows
+ * the memory budget, the largest partitions in memory are spilled to
+ * temporary files, and so are the probe tuples that hash to them
+ * (partitions that stay in memory are joined right away, as in a hybrid
+ * hash join).  Every pair of spilled partitions is then joined the same way
+ * with the next hash function, building on the smaller of the two, until
+ * each fits (a Grace hash join).  A partition of equal join fields cannot
+ * be split, and after {@link #MAX_LEVELS} rounds it is joined in memory
+ * whatever its size.
+ * <p/>
+ * While it builds, the join also collects the join fields of the build
+ * side in a BloomFilter and then pushes it down to the probe side: a
+ * SeqScan, or a Filter over one, drops the probe tuples that cannot join
+ * as soon as they are read, and any other probe side has them dropped
+ * before they are looked up or spilled.  Set simpledb.JoinBloomFilter to
+ * false to turn this off.
+ * <p/>
+ * The memory budget is read from the system property
+ * simpledb.HashJoinMemory, in bytes, and the number of partitions from
+ * simpledb.HashJoinPartitions.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * How many rounds of partitioning a pair of spilled partitions gets
+     */
+    static final int MAX_LEVELS = 8;
+
+    /**
+     * Bytes of build tuples held in memory before partitions are spilled
+     */
+    static long memoryBudget = Long.getLong("simpledb.HashJoinMemory", 4 << 20);
+
+    static int numPartitions = Integer.getInteger("simpledb.HashJoinPartitions", 16);
+
+    // mostly useful for testing
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    // mostly useful for testing
+    public static void setNumPartitions(int partitions) {
+        numPartitions = partitions;
+    }
+
+    static boolean bloomFilters = !"false".equals(System.getProperty("simpledb.JoinBloomFilter"));
+
+    // mostly useful for testing
+    public static void setBloomFilters(boolean enabled) {
+        bloomFilters = enabled;
+    }
+
+    private JoinPredicate pred;
+    private DbIterator child1;
+    private DbIterator child2;
+
+    private transient boolean buildChild1;
+    private transient Pass first;
+    private transient Pass pass;
+    private transient LinkedList<Pass> pending;
+    private transient Tuple probeTuple;
+    private transient int spills;
+    private transient BloomFilter bloom;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -18,50 +89,164 @@ public class HashEquiJoin extends Operator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
-        // some code goes here
-    	throw new UnsupportedOperationException();
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("HashEquiJoin needs an EQUALS predicate, not " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
     }
 
     public JoinPredicate getJoinPredicate() {
-        // some code goes here
-        return null;
+        return pred;
     }
 
     public TupleDesc getTupleDesc() {
-        // some code goes here
-        return null;
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * @return the field name of join field1. Should be quantified by
+     * alias or table name.
+     */
     public String getJoinField1Name() {
-        // some code goes here
-        return null;
+        return child1.getTupleDesc().getFieldName(pred.getField1());
     }
 
+    /**
+     * @return the field name of join field2. Should be quantified by
+     * alias or table name.
+     */
     public String getJoinField2Name() {
-        // some code goes here
-        return null;
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return true if the hash table is built on child1, false if on child2.
+     * Known once the join is open.
+     */
+    public boolean buildsOnChild1() {
+        return buildChild1;
+    }
+
+    /**
+     * @return the Bloom filter of the join fields of the build side from the
+     * last time it was built, null if it was not
+     */
+    public BloomFilter getBloomFilter() {
+        return bloom;
+    }
+
+    /**
+     * Push a Bloom filter down to the probe side, if it is a SeqScan or a
+     * Filter.
+     *
+     * @return true if it was pushed down
+     */
+    static boolean pushBloomFilter(DbIterator it, int field, BloomFilter filter) {
+        if (it instanceof SeqScan) {
+            ((SeqScan) it).addRuntimeFilter(field, filter);
+            return true;
+        } else if (it instanceof Filter) {
+            ((Filter) it).addRuntimeFilter(field, filter);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of partitions spilled to disk since the join was
+     * opened
+     */
+    public int getSpillCount() {
+        return spills;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        // some code goes here
+        child1.open();
+        child2.open();
+        long size1 = estimateBytes(child1);
+        long size2 = estimateBytes(child2);
+        buildChild1 = size1 >= 0 && (size2 < 0 || size1 < size2);
+        spills = 0;
+        bloom = null;
+        reset();
+        super.open();
     }
 
     public void close() {
-        // some code goes here
+        super.close();
+        reset();
+        child1.close();
+        child2.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
+        child1.rewind();
+        child2.rewind();
+        if (first != null && first.spilled == 0 && first.built) {
+            // everything fit in memory: only the probe side is read again
+            probeTuple = null;
+            first.matches = null;
+            pass = first;
+        } else {
+            reset();
+        }
     }
 
-    transient Iterator<Tuple> listIt = null;
+    /**
+     * Forget the hash tables and remove the spill files.
+     */
+    private void reset() {
+        if (first != null) {
+            first.release();
+        }
+        if (pass != null) {
+            pass.release();
+        }
+        if (pending != null) {
+            for (Pass p : pending) {
+                p.release();
+            }
+        }
+        first = null;
+        pass = null;
+        pending = new LinkedList<Pass>();
+        probeTuple = null;
+    }
+
+    /**
+     * Estimate the size of the tuples a child returns, from the estimated
+     * cardinality of an operator or the size of the table a scan reads.
+     *
+     * @return the estimated size in bytes, or -1 if it is unknown
+     */
+    static long estimateBytes(DbIterator it) {
+        if (it instanceof Operator) {
+            Operator o = (Operator) it;
+            if (o.getEstimatedCardinality() > 0) {
+                return (long) o.getEstimatedCardinality() * o.getTupleDesc().getSize();
+            }
+            DbIterator[] children = o.getChildren();
+            if (children.length == 1 && children[0] != null) {
+                return estimateBytes(children[0]);  // no bigger than its child
+            }
+        } else if (it instanceof SeqScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId());
+            if (f instanceof HeapFile) {
+                return (long) ((HeapFile) f).numPages() * BufferPool.getPageSize();
+            }
+        } else if (it instanceof SpillFile) {
+            return ((SpillFile) it).bytes();
+        }
+        return -1;
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
      * <p/>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -71,24 +256,287 @@ public class HashEquiJoin extends Operator {
      * <p/>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
+     * Tuples come back in no particular order.
      *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // some code goes here
-        return null;
+        while (true) {
+            if (pass != null && pass.matches != null && pass.matches.hasNext()) {
+                Tuple build = pass.matches.next();
+                return pass.buildLeft ? mergetup(build, probeTuple) : mergetup(probeTuple, build);
+            }
+            if (pass == null) {
+                if (first == null) {
+                    if (buildChild1) {
+                        first = new Pass(child1, pred.getField1(), child2, pred.getField2(), true, 0);
+                    } else {
+                        first = new Pass(child2, pred.getField2(), child1, pred.getField1(), false, 0);
+                    }
+                    pass = first;
+                } else if (!pending.isEmpty()) {
+                    pass = pending.removeFirst();
+                } else {
+                    return null;
+                }
+            }
+            if (!pass.built) {
+                pass.build();
+            }
+            probeTuple = pass.nextProbe();
+            if (probeTuple == null) {
+                pass.finishProbe();
+                if (pass != first || pass.spilled > 0) {
+                    pass.release();
+                }
+                pass = null;
+            }
+        }
+    }
+
+    private Tuple mergetup(Tuple t1, Tuple t2) {
+        Tuple newtup = new Tuple(getTupleDesc());
+        int size1 = t1.getTupleDesc().numFields();
+
+        for (int i = 0; i < size1; i++)
+            newtup.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            newtup.setField(i + size1, t2.getField(i));
+
+        return newtup;
+    }
+
+    /**
+     * @return the partition of a join field in the given round; each round
+     * mixes the hash with a different seed
+     */
+    static int partition(Field key, int level, int partitions) {
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * One round of the hash join: a build input, a probe input and the
+     * partitions of the build input that stay in memory.  The children are
+     * the inputs of round 0, pairs of spill files those of later rounds.
+     */
+    private class Pass {
+        final DbIterator build;
+        final int buildField;
+        final DbIterator probe;
+        final int probeField;
+        final boolean buildLeft;
+        final int level;
+        final int partitions = numPartitions;
+
+        final List<HashMap<Field, ArrayList<Tuple>>> tables;
+        final long[] bytes;
+        final SpillFile[] buildSpills;
+        final SpillFile[] probeSpills;
+        int spilled = 0;
+        boolean built = false;
+        Iterator<Tuple> matches;
+        BloomFilter bloom;
+        boolean bloomPushed = false;
+
+        Pass(DbIterator build, int buildField, DbIterator probe, int probeField, boolean buildLeft, int level) {
+            this.build = build;
+            this.buildField = buildField;
+            this.probe = probe;
+            this.probeField = probeField;
+            this.buildLeft = buildLeft;
+            this.level = level;
+            tables = new ArrayList<HashMap<Field, ArrayList<Tuple>>>(partitions);
+            for (int p = 0; p < partitions; p++) {
+                tables.add(null);
+            }
+            bytes = new long[partitions];
+            buildSpills = new SpillFile[partitions];
+            probeSpills = new SpillFile[partitions];
+        }
+
+        /**
+         * Load the build input into the hash tables, spilling the largest
+         * partitions while the tables are over the memory budget.
+         */
+        void build() throws DbException, TransactionAbortedException {
+            if (level > 0) {
+                build.open();
+                probe.open();
+            }
+            int size = build.getTupleDesc().getSize();
+            if (level == 0 && bloomFilters) {
+                long expected = estimateBytes(build);
+                bloom = new BloomFilter((expected > 0 ? expected : memoryBudget) / size);
+                HashEquiJoin.this.bloom = bloom;
+            }
+            long total = 0;
+            while (build.hasNext()) {
+                Tuple t = build.next();
+                Field key = t.getField(buildField);
+                if (bloom != null) {
+                    bloom.add(key);
+                }
+                int p = partition(key, level, partitions);
+                if (buildSpills[p] != null) {
+                    buildSpills[p].add(t);
+                    continue;
+                }
+                if (tables.get(p) == null) {
+                    tables.set(p, new HashMap<Field, ArrayList<Tuple>>());
+                }
+                ArrayList<Tuple> l = tables.get(p).get(key);
+                if (l == null) {
+                    l = new ArrayList<Tuple>(1);
+                    tables.get(p).put(key, l);
+                }
+                l.add(t);
+                bytes[p] += size;
+                total += size;
+                while (total > memoryBudget && level < MAX_LEVELS) {
+                    int victim = -1;
+                    for (int i = 0; i < partitions; i++) {
+                        if (buildSpills[i] == null && bytes[i] > 0 && (victim < 0 || bytes[i] > bytes[victim])) {
+                            victim = i;
+                        }
+                    }
+                    if (victim < 0) {
+                        break;
+                    }
+                    total -= bytes[victim];
+                    spill(victim);
+                }
+            }
+            for (int p = 0; p < partitions; p++) {
+                if (buildSpills[p] != null) {
+                    probeSpills[p] = new SpillFile(probe.getTupleDesc());
+                }
+            }
+            if (bloom != null) {
+                bloomPushed = pushBloomFilter(probe, probeField, bloom);
+            }
+            built = true;
+        }
+
+        private void spill(int p) throws DbException {
+            SpillFile f = new SpillFile(build.getTupleDesc());
+            for (ArrayList<Tuple> l : tables.get(p).values()) {
+                for (Tuple t : l) {
+                    f.add(t);
+                }
+            }
+            tables.set(p, null);
+            bytes[p] = 0;
+            buildSpills[p] = f;
+            spilled++;
+            spills++;
+        }
+
+        /**
+         * @return the next probe tuple that has matches in memory, with
+         * matches set to them; probe tuples of spilled partitions are
+         * written to their spill files on the way.  Null at the end of the
+         * probe input.
+         */
+        Tuple nextProbe() throws DbException, TransactionAbortedException {
+            while (probe.hasNext()) {
+                Tuple t = probe.next();
+                Field key = t.getField(probeField);
+                if (bloom != null && !bloomPushed && !bloom.mightContain(key)) {
+                    continue;
+                }
+                int p = partition(key, level, partitions);
+                if (probeSpills[p] != null) {
+                    probeSpills[p].add(t);
+                    continue;
+                }
+                if (tables.get(p) == null) {
+                    continue;
+                }
+                ArrayList<Tuple> l = tables.get(p).get(key);
+                if (l != null) {
+                    matches = l.iterator();
+                    return t;
+                }
+            }
+            matches = null;
+            return null;
+        }
+
+        /**
+         * Queue the pairs of spilled partitions for the next round, each
+         * building on the smaller of its two files.
+         */
+        void finishProbe() throws DbException {
+            for (int p = 0; p < partitions; p++) {
+                SpillFile b = buildSpills[p];
+                SpillFile pr = probeSpills[p];
+                if (b == null) {
+                    continue;
+                }
+                buildSpills[p] = null;
+                probeSpills[p] = null;
+                if (b.size() == 0 || pr.size() == 0) {
+                    b.delete();
+                    pr.delete();
+                    continue;
+                }
+                b.finish();
+                pr.finish();
+                if (pr.size() < b.size()) {
+                    pending.add(new Pass(pr, probeField, b, buildField, !buildLeft, level + 1));
+                } else {
+                    pending.add(new Pass(b, buildField, pr, probeField, buildLeft, level + 1));
+                }
+            }
+        }
+
+        /**
+         * Drop the hash tables and remove the spill files of this round.
+         */
+        void release() {
+            for (int p = 0; p < partitions; p++) {
+                tables.set(p, null);
+                if (buildSpills[p] != null) {
+                    buildSpills[p].delete();
+                    buildSpills[p] = null;
+                }
+                if (probeSpills[p] != null) {
+                    probeSpills[p].delete();
+                    probeSpills[p] = null;
+                }
+            }
+            if (level > 0) {
+                ((SpillFile) build).delete();
+                ((SpillFile) probe).delete();
+            }
+            if (bloomPushed) {
+                if (probe instanceof SeqScan) {
+                    ((SeqScan) probe).removeRuntimeFilter(bloom);
+                } else {
+                    ((Filter) probe).removeRuntimeFilter(bloom);
+                }
+                bloomPushed = false;
+            }
+            matches = null;
+        }
     }
 
     @Override
     public DbIterator[] getChildren() {
-        // some code goes here
-        return null;
+        return new DbIterator[]{child1, child2};
     }
 
     @Override
     public void setChildren(DbIterator[] children) {
-        // some code goes here
+        child1 = children[0];
+        child2 = children[1];
     }
 
 }
@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The HashSemiJoin operator returns the tuples of its left child that have
+ * at least one match in its right child (a semi-join) or, as an anti-join,
+ * the ones that have none.  It runs IN, NOT IN and EXISTS subqueries: the
+ * right child is the subquery, and each left tuple comes out at most once,
+ * without the fields of the right child.
+ * <p/>
+ * On open the distinct join fields of the right child are loaded into a
+ * hash set, and each left tuple is then looked up in it once; no left tuple
+ * is compared to more right fields than it takes to find its first match.
+ * For <, <=, > and >= only the right field that is easiest to match, the
+ * smallest or the largest, is kept, and for the other predicates the right
+ * fields are tried in turn until one matches.  Without a predicate, as for
+ * EXISTS, every right tuple matches and only the first one is read.
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate pred;
+    private DbIterator child1;
+    private DbIterator child2;
+    private boolean anti;
+
+    private transient HashSet<Field> keys;
+    private transient Field bound;
+    private transient boolean matchesAll;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p      The predicate to use to join the children, or null if
+     *               every tuple of child2 matches
+     * @param child1 Iterator for the left(outer) relation, whose tuples are
+     *               returned
+     * @param child2 Iterator for the right(inner) relation, e.g. a subquery
+     * @param anti   true to return the tuples of child1 that have no match,
+     *               false for the ones that have one
+     */
+    public HashSemiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, boolean anti) {
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+    }
+
+    /**
+     * @return the predicate, null if every tuple of child2 matches
+     */
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return true for an anti-join, false for a semi-join
+     */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    /**
+     * @return the field name of join field1, null without a predicate
+     */
+    public String getJoinField1Name() {
+        return pred == null ? null : child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, null without a predicate
+     */
+    public String getJoinField2Name() {
+        return pred == null ? null : child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        build();
+        super.open();
+    }
+
+    /**
+     * @return true if an operator only ever matches the smallest or the
+     * largest of a set of fields when it matches any of them
+     */
+    private static boolean isRange(Predicate.Op op) {
+        return op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * Read the join fields of child2.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        keys = new HashSet<Field>();
+        bound = null;
+        if (pred == null) {
+            matchesAll = child2.hasNext();
+            return;
+        }
+        Predicate.Op op = pred.getOperator();
+        while (child2.hasNext()) {
+            Field f = child2.next().getField(pred.getField2());
+            if (!isRange(op)) {
+                keys.add(f);
+            } else if (bound == null || bound.compare(op, f)) {
+                // e.g. for >, a smaller field matches whatever bound matched
+                bound = f;
+            }
+        }
+    }
+
+    /**
+     * @return true if a tuple of child1 matches at least one of child2
+     */
+    private boolean matches(Tuple t) {
+        if (pred == null) {
+            return matchesAll;
+        }
+        Field f = t.getField(pred.getField1());
+        Predicate.Op op = pred.getOperator();
+        if (op == Predicate.Op.EQUALS) {
+            return keys.contains(f);
+        } else if (isRange(op)) {
+            return bound != null && f.compare(op, bound);
+        }
+        for (Field k : keys) {
+            if (f.compare(op, k)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void close() {
+        super.close();
+        keys = null;
+        bound = null;
+        child1.close();
+        child2.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the fields of child2 stay loaded
+        child1.rewind();
+    }
+
+    /**
+     * Returns the next tuple of child1 that has a match in child2, or for an
+     * anti-join that has none, or null if there are no more tuples.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            if (matches(t) != anti) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+}
@@ -101,6 +101,20 @@ public class HeapFile implements DbFile {
 	
 	File hf;
 	TupleDesc td;
+	
+	/**
+	 * Page LSNs: for every page, the id of the log and the LSN of the last
+	 * log record applied to the copy of the page on disk (see force)
+	 */
+	File lsnFile;
+	static final int LSN_ENTRY_SIZE = 16;
+	
+	/**
+	 * LSNs of the pages written since the last force, by page number, with
+	 * the id of the log they belong to; not in lsnFile until the pages are
+	 * on disk
+	 */
+	private HashMap<Integer, long[]> pendingLSNs = new HashMap<Integer, long[]>();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -111,6 +125,10 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         this.hf = f;
         this.td = td;
+        this.lsnFile = new File(f.getPath() + ".lsn");
+        if (f.length() == 0) {
+        	lsnFile.delete();			// a new table, the LSNs belong to an older one
+        }
     }
 
     /**
@@ -184,6 +202,68 @@ public class HeapFile implements DbFile {
     	out.seek(page_offset);
     	out.write(data, 0, data.length);
     	out.close();
+    	
+    	// the LSN is recorded by the next force, once the page is on disk
+    	long lsn = ((HeapPage) page).getLSN();
+    	if (lsn >= 0) {
+    		pendingLSNs.put(page.getId().pageNumber(), new long[] { Database.getLogFile().getLogId(), lsn });
+    	}
+    }
+    
+    /**
+     * Force the pages written so far to disk, and then record their LSNs.
+     * The LSNs are written only after the pages are on disk, or after a
+     * crash an LSN could make recovery skip redoing a change the disk never
+     * got; losing an LSN instead only means redoing records that are already
+     * applied.  Callers writing several pages force once after the last.
+     */
+    public synchronized void force() throws IOException {
+    	RandomAccessFile out = new RandomAccessFile(this.hf, "rw");
+    	try {
+    		out.getChannel().force(true);
+    	} finally {
+    		out.close();
+    	}
+    	if (pendingLSNs.isEmpty()) {
+    		return;
+    	}
+    	
+    	RandomAccessFile lsnout = new RandomAccessFile(this.lsnFile, "rw");
+    	try {
+    		for (Map.Entry<Integer, long[]> e : pendingLSNs.entrySet()) {
+    			lsnout.seek((long) e.getKey()*LSN_ENTRY_SIZE);
+    			lsnout.writeLong(e.getValue()[0]);
+    			lsnout.writeLong(e.getValue()[1]);
+    		}
+    		lsnout.getChannel().force(true);
+    	} finally {
+    		lsnout.close();
+    	}
+    	pendingLSNs.clear();
+    }
+    
+    /**
+     * Returns the LSN of the last log record applied to the copy of the
+     * specified page on disk as of the last force, which recovery uses to
+     * skip redoing records the page already reflects.
+     *
+     * @return the page LSN, or -1 if it is not known for the current log
+     */
+    public synchronized long getPageLSN(PageId pid) throws IOException {
+    	long offset = (long) pid.pageNumber()*LSN_ENTRY_SIZE;
+    	if (offset + LSN_ENTRY_SIZE > lsnFile.length()) {
+    		return -1;
+    	}
+    	
+    	RandomAccessFile in = new RandomAccessFile(this.lsnFile, "r");
+    	try {
+    		in.seek(offset);
+    		long logId = in.readLong();
+    		long lsn = in.readLong();
+    		return (logId == Database.getLogFile().getLogId()) ? lsn : -1;
+    	} finally {
+    		in.close();
+    	}
     }
 
     /**
@@ -63,6 +63,11 @@ public class HeapPage implements Page {
     byte[] oldData;
     private final Byte oldDataLock = new Byte((byte) 0);
 
+    /**
+     * LSN of the last log record applied to this page, or -1 if unknown
+     */
+    private volatile long lsn = -1;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -110,7 +115,7 @@ public class HeapPage implements Page {
      * @return the number of tuples on this page
      */
     private int getNumTuples() {
-        return (int) Math.floor((BufferPool.getPageSize()*8) / (this.td.getSize()*8+1));
+        return numSlots(td);
     }
 
     /**
@@ -119,7 +124,39 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
-        return (int) Math.ceil(this.getNumTuples()/8.0);
+        return headerSize(td);
+    }
+
+    /**
+     * @return the number of tuple slots on a page of a table with the
+     * specified schema
+     */
+    static int numSlots(TupleDesc td) {
+        return (int) Math.floor((BufferPool.getPageSize()*8) / (td.getSize()*8+1));
+    }
+
+    /**
+     * @return the number of header bytes on a page of a table with the
+     * specified schema
+     */
+    static int headerSize(TupleDesc td) {
+        return (int) Math.ceil(numSlots(td)/8.0);
+    }
+
+    /**
+     * @return the LSN of the last log record applied to this page, or -1
+     * if it is not known
+     */
+    public long getLSN() {
+        return lsn;
+    }
+
+    /**
+     * Record that the log record with the specified LSN has been applied to
+     * this page.  HeapFile.writePage stores it with the page.
+     */
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
     }
 
     /**
@@ -141,6 +178,16 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Return the raw bytes of the before image of this page.  The returned
+     * array is never modified in place, so callers may keep a reference to it.
+     */
+    byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData;
+        }
+    }
+
     public void setBeforeImage() {
         synchronized (oldDataLock) {
             oldData = getPageData().clone();
@@ -3,17 +3,58 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation, with a block
+ * nested loops join: it reads a block of tuples of the outer relation
+ * (child1) into memory and scans the inner relation (child2) once per
+ * block, rather than once per outer tuple.
+ * <p/>
+ * A block holds as many tuples as fit on simpledb.JoinBlockPages pages of
+ * the outer relation, or simpledb.JoinBlockTuples tuples if that is set.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Pages of outer tuples in a block
+     */
+    static int blockPages = Integer.getInteger("simpledb.JoinBlockPages", 16);
+
+    /**
+     * Outer tuples in a block; overrides blockPages unless 0
+     */
+    static int blockTuples = Integer.getInteger("simpledb.JoinBlockTuples", 0);
+
+    // mostly useful for testing
+    public static void setBlockPages(int pages) {
+        blockPages = pages;
+        blockTuples = 0;
+    }
+
+    // mostly useful for testing
+    public static void setBlockTuples(int tuples) {
+        blockTuples = tuples;
+    }
+
+    /**
+     * @return the number of outer tuples of the given schema in a block
+     */
+    public static int getBlockSize(TupleDesc outer) {
+        if (blockTuples > 0) {
+            return blockTuples;
+        }
+        return Math.max(1, blockPages * HeapPage.numSlots(outer));
+    }
+
     DbIterator iter1;
     DbIterator iter2;
     JoinPredicate pred;
-    
-    Tuple t1 = null;
+
+    ArrayList<Tuple> block = new ArrayList<Tuple>();
+    boolean rewindInner = false;
+    int pos = 0;
     Tuple t2 = null;
+    int scans = 0;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -73,10 +114,19 @@ public class Join extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         iter1.rewind();
         iter2.rewind();
-        t1 = null;
+        block.clear();
+        rewindInner = false;
         t2 = null;
     }
 
+    /**
+     * @return the number of times the inner relation was scanned since the
+     * join was created
+     */
+    public int getInnerScans() {
+        return scans;
+    }
+
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -91,34 +141,48 @@ public class Join extends Operator {
      * <p/>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
+     * Within a block of outer tuples, results come in the order of the inner
+     * relation.
      *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (t1 == null && iter1.hasNext()) {
-        	// should execute first time only (t1 is null)
-        	t1 = iter1.next();
-        }
-        
-        while (t1 != null) {
-        	while (iter2.hasNext()) {
-        		t2 = iter2.next();
-        		if (pred.filter(t1, t2)) {
-        			return mergetup(t1, t2);
-        		}
-        	}
-        	
-        	if (!iter1.hasNext()) {
-        		// we've reached the end of the table
-        		break;
-        	}
-        	
-        	t1 = iter1.next();
-        	iter2.rewind();
+        while (true) {
+            if (block.isEmpty()) {
+                int size = getBlockSize(iter1.getTupleDesc());
+                while (block.size() < size && iter1.hasNext()) {
+                    block.add(iter1.next());
+                }
+                if (block.isEmpty()) {
+                    // we've reached the end of the outer relation
+                    return null;
+                }
+                if (rewindInner) {
+                    iter2.rewind();
+                }
+                rewindInner = true;
+                scans++;
+                t2 = null;
+            }
+
+            while (t2 != null || iter2.hasNext()) {
+                if (t2 == null) {
+                    t2 = iter2.next();
+                    pos = 0;
+                }
+                while (pos < block.size()) {
+                    Tuple t1 = block.get(pos++);
+                    if (pred.filter(t1, t2)) {
+                        return mergetup(t1, t2);
+                    }
+                }
+                t2 = null;
+            }
+
+            // the inner relation is done with this block
+            block.clear();
         }
-        
-        return null;
     }
 
     private Tuple mergetup(Tuple t1, Tuple t2) {
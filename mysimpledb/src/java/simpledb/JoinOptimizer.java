@@ -43,38 +43,44 @@ public class JoinOptimizer {
         int t1id = 0, t2id = 0;
         DbIterator j;
 
+        if (lj instanceof LogicalSubplanJoinNode) {
+            // only whether a tuple has a match in the subquery matters
+            LogicalSubplanJoinNode sj = (LogicalSubplanJoinNode) lj;
+            JoinPredicate p = null;
+            if (sj.f1QuantifiedName != null) {
+                try {
+                    t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+                }
+                p = new JoinPredicate(t1id, lj.p, 0);
+            }
+            return new HashSemiJoin(p, plan1, plan2, sj.anti);
+        }
+
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
         } catch (NoSuchElementException e) {
             throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
         }
 
-        if (lj instanceof LogicalSubplanJoinNode) {
-            t2id = 0;
-        } else {
-            try {
-                t2id = plan2.getTupleDesc().fieldNameToIndex(
-                        lj.f2QuantifiedName);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field "
-                        + lj.f2QuantifiedName);
-            }
+        try {
+            t2id = plan2.getTupleDesc().fieldNameToIndex(
+                    lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field "
+                    + lj.f2QuantifiedName);
         }
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
-
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (DbIterator) ct
-                        .newInstance(new Object[]{p, plan1, plan2});
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
-            }
+        if (lj.sortMerge || (SortMergeJoin.supports(lj.p)
+                && SortMergeJoin.isSorted(plan1, t1id, SortMergeJoin.ascending(lj.p))
+                && SortMergeJoin.isSorted(plan2, t2id, SortMergeJoin.ascending(lj.p)))) {
+            // chosen by the optimizer, or both sides are in order already
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2);
         } else {
             j = new Join(p, plan1, plan2);
         }
@@ -105,13 +111,134 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        return chooseJoin(j, card1, card2, cost1, cost2).cost;
+    }
+
+    /**
+     * The join algorithm picked for a join, and its estimated cost
+     */
+    private static class JoinChoice {
+        final boolean sortMerge;
+        final double cost;
+
+        JoinChoice(boolean sortMerge, double cost) {
+            this.sortMerge = sortMerge;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * @return the cheapest way to run a join: a SortMergeJoin, or the
+     * HashEquiJoin or Join that instantiateJoin builds otherwise
+     */
+    private JoinChoice chooseJoin(LogicalJoinNode j, int card1, int card2,
+                                  double cost1, double cost2) {
         if (j instanceof LogicalSubplanJoinNode) {
-            // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 4.
-            return card1 + cost1 + cost2;
+            // A LogicalSubplanJoinNode represents a subquery, run as a
+            // HashSemiJoin: each side is read once and every outer tuple is
+            // looked up once.
+            return new JoinChoice(false, card1 + cost1 + cost2);
+        }
+        double cost;
+        if (j.p == Predicate.Op.EQUALS) {
+            cost = estimateHashJoinCost(j, card1, card2, cost1, cost2);
         } else {
-            return cost1 + card1 * cost2;
+            cost = estimateBlockJoinCost(j, card1, card2, cost1, cost2);
+        }
+        if (SortMergeJoin.supports(j.p)) {
+            double merge = estimateSortMergeJoinCost(j, card1, card2, cost1, cost2);
+            if (merge < cost) {
+                return new JoinChoice(true, merge);
+            }
         }
+        return new JoinChoice(false, cost);
+    }
+
+    /**
+     * Estimate the cost of a SortMergeJoin: both inputs are read and sorted,
+     * with a pass of writing and reading sorted runs if they do not fit in
+     * memory, and then merged.  An equality merge reads each side once; a
+     * band merge joins each outer tuple to a run of inner tuples, about as
+     * many as the join returns (see estimateTableJoinCardinality).
+     */
+    private double estimateSortMergeJoinCost(LogicalJoinNode j, int card1, int card2,
+                                             double cost1, double cost2) {
+        int size = tupleSize(j);
+        double cost = cost1 + cost2 + sortCost(card1, cost1, size) + sortCost(card2, cost2, size);
+        if (j.p == Predicate.Op.EQUALS) {
+            return cost + card1 + card2;
+        }
+        // the distinct values of the join fields only matter to an equality
+        // join, so no statistics are needed here
+        int matches = estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
+                j.f1PureName, j.f2PureName, card1, card2, true, true, null,
+                p.getTableAliasToIdMapping());
+        return cost + card1 + card2 + matches;
+    }
+
+    private static double sortCost(int card, double scanCost, int tupleSize) {
+        double cost = card * (Math.log(Math.max(card, 2)) / Math.log(2));
+        if ((long) card * tupleSize > SortMergeJoin.getMemoryBudget()) {
+            cost += 2 * scanCost;
+        }
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of a block nested loops Join: the outer relation is
+     * read once, the inner once per block of outer tuples, and the predicate
+     * is applied to every pair.
+     */
+    private double estimateBlockJoinCost(LogicalJoinNode j, int card1, int card2,
+                                         double cost1, double cost2) {
+        double blocks = Math.max(1, Math.ceil((double) card1 / Join.getBlockSize(outerTupleDesc(j))));
+        return cost1 + blocks * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * @return the schema of the outer table of a join, which is narrower
+     * than the outer relation when that is a join itself
+     */
+    private TupleDesc outerTupleDesc(LogicalJoinNode j) {
+        Integer id1 = p.getTableId(j.t1Alias);
+        if (id1 != null) {
+            return Database.getCatalog().getTupleDesc(id1);
+        }
+        return new TupleDesc(new Type[]{Type.INT_TYPE});
+    }
+
+    /**
+     * Estimate the cost of a HashEquiJoin: both inputs are read once, every
+     * tuple is hashed once, and the part of the smaller input that does not
+     * fit in the memory budget is spilled, together with the same part of
+     * the larger input, written once and read once more.
+     */
+    private double estimateHashJoinCost(LogicalJoinNode j, int card1, int card2,
+                                        double cost1, double cost2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        long buildBytes = (long) Math.min(card1, card2) * tupleSize(j);
+        if (buildBytes > HashEquiJoin.getMemoryBudget()) {
+            double spilled = 1.0 - (double) HashEquiJoin.getMemoryBudget() / buildBytes;
+            cost += 2 * spilled * (cost1 + cost2);
+        }
+        return cost;
+    }
+
+    /**
+     * @return the size of the smaller tuple of the two tables of a join, a
+     * lower bound of the tuples joined when either side is a join itself
+     */
+    private int tupleSize(LogicalJoinNode j) {
+        int size = Integer.MAX_VALUE;
+        Integer id1 = p.getTableId(j.t1Alias);
+        if (id1 != null) {
+            size = Database.getCatalog().getTupleDesc(id1).getSize();
+        }
+        Integer id2 = j.t2Alias == null ? null : p.getTableId(j.t2Alias);
+        if (id2 != null) {
+            size = Math.min(size, Database.getCatalog().getTupleDesc(id2).getSize());
+        }
+        return size == Integer.MAX_VALUE ? Type.INT_TYPE.getLen() : size;
     }
 
     /**
@@ -130,8 +257,8 @@ public class JoinOptimizer {
     public int estimateJoinCardinality(LogicalJoinNode j, int card1, int card2,
                                        boolean t1pkey, boolean t2pkey, Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
-            // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 4.
+            // A LogicalSubplanJoinNode represents a subquery; it returns
+            // each outer tuple at most once.
             return card1;
         } else {
             return estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
@@ -180,10 +307,11 @@ public class JoinOptimizer {
         	}
         }
         
+        // in double, as the product of two cardinalities overflows an int
         if (joinOp.equals(Predicate.Op.EQUALS)) {
-        	card = card1 * card2 / Math.max(dva, dvb);
+        	card = (int) Math.min(Integer.MAX_VALUE, (double) card1 * card2 / Math.max(dva, dvb));
         } else {
-        	card = (int) (card1 * card2 * 0.7);
+        	card = (int) Math.min(Integer.MAX_VALUE, 0.7 * card1 * card2);
         }
         
         return card <= 0 ? 1 : card;
@@ -347,12 +475,13 @@ public class JoinOptimizer {
 
         if (this.p.getTableId(j.t1Alias) == null)
             throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
+        // the inner side of a subquery join is the subquery, not a table
+        if (j.t2Alias != null && this.p.getTableId(j.t2Alias) == null)
             throw new ParsingException("Unknown table " + j.t2Alias);
 
         String table1Name = Database.getCatalog().getTableName(
                 this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
+        String table2Name = j.t2Alias == null ? null : Database.getCatalog().getTableName(
                 this.p.getTableId(j.t2Alias));
         String table1Alias = j.t1Alias;
         String table2Alias = j.t2Alias;
@@ -428,20 +557,24 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        JoinChoice choice1 = chooseJoin(j, t1card, t2card, t1cost, t2cost);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
+        JoinChoice choice2 = chooseJoin(j2, t2card, t1card, t2cost, t1cost);
+        if (!(j instanceof LogicalSubplanJoinNode) && choice2.cost < choice1.cost) {
             boolean tmp;
             j = j2;
-            cost1 = cost2;
+            choice1 = choice2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
+        double cost1 = choice1.cost;
         if (cost1 >= bestCostSoFar)
             return null;
+        if (choice1.sortMerge) {
+            j = j.withSortMerge();
+        }
 
         CostCard cc = new CostCard();
 
@@ -536,7 +669,7 @@ public class JoinOptimizer {
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
-            String table2Name = Database.getCatalog().getTableName(
+            String table2Name = j.t2Alias == null ? null : Database.getCatalog().getTableName(
                     this.p.getTableId(j.t2Alias));
 
             // Double c = pc.getCost(pathSoFar);
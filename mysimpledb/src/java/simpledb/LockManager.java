@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.PrintStream;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
@@ -7,10 +8,45 @@ import java.util.HashSet;
 
 public class LockManager {
 	
+	/**
+	 * Policies for dealing with deadlocks.  TIMEOUT aborts a transaction that has to wait
+	 * after it has been running for too long.  WAIT_DIE and WOUND_WAIT prevent deadlocks
+	 * using the age of each transaction (smaller TransactionIds are older):
+	 * <ul>
+	 * <li>WAIT_DIE: an older transaction waits for a younger one, a younger transaction
+	 * requesting a lock held by an older one aborts immediately.
+	 * <li>WOUND_WAIT: an older transaction wounds (aborts) the younger transactions in its
+	 * way, a younger transaction waits for an older one.  Wounded transactions abort the
+	 * next time they request or wait for a lock.
+	 * </ul>
+	 * The default policy can be selected at startup with -Dsimpledb.DeadlockPolicy=x
+	 * where x is timeout, wait-die or wound-wait.
+	 */
+	public enum DeadlockPolicy { TIMEOUT, WAIT_DIE, WOUND_WAIT }
+	
+	private static DeadlockPolicy defaultPolicy = parsePolicy(System.getProperty("simpledb.DeadlockPolicy"));
+	
+	/**
+	 * Helper function that converts the name of a deadlock policy (e.g. "wound-wait") to a DeadlockPolicy
+	 */
+	static DeadlockPolicy parsePolicy(String name) {
+		if (name == null || name.equals("")) {
+			return DeadlockPolicy.TIMEOUT;
+		}
+		return DeadlockPolicy.valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+	
+	/**
+	 * Set the policy used by lock managers created from now on
+	 */
+	public static void setDefaultPolicy(DeadlockPolicy policy) { defaultPolicy = policy; }
+	
+	public static DeadlockPolicy getDefaultPolicy() { return defaultPolicy; }
+	
 	public class TransactionEntry {
 		private TransactionId tid;
-		private HashSet<PageId> holding = new HashSet<PageId>();
-		private HashSet<PageId> waiting = new HashSet<PageId>();
+		private HashSet<PageId> holding = new HashSet<PageId>(8);
+		private HashSet<PageId> waiting = null;	// allocated the first time we have to wait
 		private long endTime;
 		
 		static final long maxTime = 100;
@@ -24,23 +60,29 @@ public class LockManager {
 		
 		public void addHolding(PageId pid) { 
 			holding.add(pid);
-			waiting.remove(pid);
+			if (waiting != null) { waiting.remove(pid); }
 		}
 		
-		public void addWaiting(PageId pid) { waiting.add(pid); }
+		public void addWaiting(PageId pid) { 
+			if (waiting == null) { waiting = new HashSet<PageId>(2); }
+			waiting.add(pid); 
+		}
 		
 		public void removeHolding(PageId pid) { holding.remove(pid); }
 		
-		public HashSet<PageId> getWait() { return waiting; }
+		public Set<PageId> getWait() { 
+			if (waiting == null) { return Collections.emptySet(); }
+			return waiting; 
+		}
 		
-		public HashSet<PageId> getHold() { return holding; }
+		public Set<PageId> getHold() { return holding; }
 		
 		public boolean isExpired() { return (endTime < System.currentTimeMillis()); }
 
 	}
 	
 	public class LockEntry {
-		private HashSet<TransactionId> holding = new HashSet<TransactionId>();
+		private HashSet<TransactionId> holding = new HashSet<TransactionId>(4);
 		private ConcurrentLinkedDeque<TransactionId> queue = new ConcurrentLinkedDeque<TransactionId>();
 		private Permissions permtype = Permissions.READ_ONLY;
 		private boolean inUse = false;
@@ -48,6 +90,22 @@ public class LockManager {
 		
 		LockEntry(PageId pid) { this.pid = pid; }
 		
+		/**
+		 * Reset a recycled entry so that it can be used for another page
+		 */
+		void reset(PageId pid) {
+			this.pid = pid;
+			holding.clear();
+			queue.clear();
+			permtype = Permissions.READ_ONLY;
+			inUse = false;
+		}
+		
+		/**
+		 * @return true if nobody holds or is waiting for this lock, so the entry can be reclaimed
+		 */
+		public boolean isFree() { return !inUse && queue.isEmpty(); }
+		
 		public PageId getPid() { return pid; }
 		
 		public boolean isInUse() { return inUse; }
@@ -94,6 +152,46 @@ public class LockManager {
 		}
 		
 		public void removeQueued(TransactionId tid) { queue.remove(tid); }
+		
+		/**
+		 * @return the transactions other than tid that hold or are queued for this lock
+		 */
+		public HashSet<TransactionId> getConflicts(TransactionId tid) {
+			HashSet<TransactionId> conflicts = new HashSet<TransactionId>(holding);
+			conflicts.addAll(queue);
+			conflicts.remove(tid);
+			return conflicts;
+		}
+	}
+	
+	/**
+	 * Contention statistics for one lock.  Only locks that have seen contention (a wait,
+	 * an upgrade, or an abort) get an entry, so uncontended locks cost nothing.
+	 */
+	public class LockStats {
+		private PageId pid;
+		private int waits = 0;			// requests that had to wait
+		private long waitTime = 0;		// total time spent waiting, in ms
+		private int maxQueue = 0;		// longest queue seen
+		private int upgrades = 0;		// read to write upgrade requests
+		private int upgradeWaits = 0;	// upgrade requests that could not be granted right away
+		private int aborts = 0;			// requests aborted by the deadlock policy
+		
+		LockStats(PageId pid) { this.pid = pid; }
+		
+		public PageId getPid() { return pid; }
+		
+		public int getWaits() { return waits; }
+		
+		public long getWaitTime() { return waitTime; }
+		
+		public int getMaxQueue() { return maxQueue; }
+		
+		public int getUpgrades() { return upgrades; }
+		
+		public int getUpgradeWaits() { return upgradeWaits; }
+		
+		public int getAborts() { return aborts; }
 	}
 	
 	/**
@@ -102,11 +200,48 @@ public class LockManager {
 	private ConcurrentHashMap<PageId,LockEntry> locktable = new ConcurrentHashMap<PageId,LockEntry>();
 	private ConcurrentHashMap<TransactionId, TransactionEntry> transtable = new ConcurrentHashMap<TransactionId, TransactionEntry>();
 	private boolean debug = false;
+	private DeadlockPolicy policy = defaultPolicy;
+	
+	/**
+	 * Transactions that have been wounded by an older transaction (WOUND_WAIT only)
+	 */
+	private HashSet<TransactionId> wounded = new HashSet<TransactionId>();
+	
+	/**
+	 * Contention statistics, see LockStats.  Only the maxStatsEntries locks that saw
+	 * contention most recently are kept, so the map does not grow with every page the
+	 * database ever had contention on.
+	 */
+	private LinkedHashMap<PageId, LockStats> stats = new LinkedHashMap<PageId, LockStats>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<PageId, LockStats> eldest) {
+			return size() > maxStatsEntries;
+		}
+	};
+	static int maxStatsEntries = 1024;
+	
+	// mostly useful for testing
+	public static void setMaxStatsEntries(int entries) {
+		maxStatsEntries = entries;
+	}
+	
+	/**
+	 * Lock entries that have been removed from the lock table and can be reused.
+	 * Entries are removed from the lock table as soon as nobody holds or waits for them,
+	 * so the size of the lock table is proportional to the number of active locks.
+	 */
+	private ArrayDeque<LockEntry> freeEntries = new ArrayDeque<LockEntry>();
+	static final int maxFreeEntries = 64;
 	
 	public LockManager() {
 		if (debug) { System.out.println("NEW LOCK MANAGER CREATED"); }
 	}
 	
+	public synchronized void setDeadlockPolicy(DeadlockPolicy policy) { this.policy = policy; }
+	
+	public synchronized DeadlockPolicy getDeadlockPolicy() { return policy; }
+	
 	public void lockRequest(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
 				
 		// double check permissions in case I screwed up
@@ -115,6 +250,8 @@ public class LockManager {
 		}
 		
 		boolean waiting = true;
+		boolean upgradeCounted = false;
+		long waitStart = 0;		// when we first had to wait, for contention statistics
 		
 		while (waiting) {
 			
@@ -124,7 +261,7 @@ public class LockManager {
 				
 				// create a new lock entry if one doesn't already exist
 				if (lock == null) {
-					lock = new LockEntry(pid);
+					lock = newLockEntry(pid);
 				}
 				
 				// create a new transaction entry if one doesn't already exist
@@ -132,6 +269,11 @@ public class LockManager {
 					trans = new TransactionEntry(tid);
 				}
 				
+				// were we wounded by an older transaction while we were busy?
+				if (wounded.contains(tid)) {
+					throw abortRequest(pid, waitStart);
+				}
+				
 				// do we already have the lock?
 				if (lock.isHolding(tid) && !lock.isUpgrade(tid, perm)) {
 					waiting = false;
@@ -163,9 +305,7 @@ public class LockManager {
 
 					} else {
 						// check for deadlock
-						if (trans.isExpired()) {
-							throw new TransactionAbortedException();
-						}
+						checkDeadlock(tid, trans, lock, waitStart);
 						
 						// we can't get the lock at this time, so add ourselves to the queue if we're not already on it
 						if (!lock.isQueued(tid)) {
@@ -179,6 +319,12 @@ public class LockManager {
 					
 					if (lock.isUpgrade(tid, perm)) {
 						
+						if (!upgradeCounted) {
+							upgradeCounted = true;
+							getStats(pid).upgrades++;
+							if (!lock.canUpgrade(tid, perm)) { getStats(pid).upgradeWaits++; }
+						}
+						
 						if (lock.canUpgrade(tid, perm)) {
 							// we are cleared to upgrade
 							lock.setUse(tid, true, perm);
@@ -189,9 +335,7 @@ public class LockManager {
 							
 						} else {
 							// check for deadlock
-							if (trans.isExpired()) {
-								throw new TransactionAbortedException();
-							}
+							checkDeadlock(tid, trans, lock, waitStart);
 							
 							// we can't get the lock at this time but we're an upgrade, so jump to the head of the queue
 							if (!lock.isQueued(tid)) {
@@ -202,9 +346,7 @@ public class LockManager {
 						
 					} else {
 						// check for deadlock
-						if (trans.isExpired()) {
-							throw new TransactionAbortedException();
-						}
+						checkDeadlock(tid, trans, lock, waitStart);
 						
 						// we can't get the lock at this time, so add ourselves to the queue if we're not already on it
 						if (!lock.isQueued(tid)) {
@@ -216,6 +358,18 @@ public class LockManager {
 				
 				locktable.put(pid, lock);
 				transtable.put(tid, trans);
+				
+				// update contention statistics
+				if (waiting) {
+					LockStats ls = getStats(pid);
+					if (waitStart == 0) {
+						waitStart = System.currentTimeMillis();
+						ls.waits++;
+					}
+					ls.maxQueue = Math.max(ls.maxQueue, lock.queue.size());
+				} else if (waitStart != 0) {
+					getStats(pid).waitTime += System.currentTimeMillis() - waitStart;
+				}
 			}
 			
 			// spin wait if necessary
@@ -232,20 +386,15 @@ public class LockManager {
 		LockEntry lock = locktable.get(pid);
 		TransactionEntry trans = transtable.get(tid);
 		
-		// does this lock exist?
-		if (lock == null) {
-			throw new RuntimeException("the lock should exist assuming we aren't calling lockRelease before lockRequest");
-		}
-
-		// do we even have the lock?
-		if (!lock.isHolding(tid)) {
+		// do we even have the lock? (no lock entry means nobody holds it)
+		if (lock == null || !lock.isHolding(tid)) {
 			return;
 		}
 		
 		// update lock entry, lock table, transaction entry, and transaction table
 		lock.setUse(tid, false);
 		trans.removeHolding(pid);
-		locktable.put(pid, lock);
+		reclaim(lock);
 		transtable.put(tid, trans);
 		
 		if (debug) { System.out.println("tid " + tid.toString() + ": released lock for " + pid.toString()); }
@@ -282,8 +431,10 @@ public class LockManager {
 			PageId pid = waitit.next();
 			
 			LockEntry lock = locktable.get(pid);
-			lock.removeQueued(tid);
-			locktable.put(pid, lock);
+			if (lock != null) {
+				lock.removeQueued(tid);
+				reclaim(lock);
+			}
 		}
 		
 		// release the locks we are holding
@@ -294,7 +445,7 @@ public class LockManager {
 			
 			LockEntry lock = locktable.get(pid);
 			lock.setUse(tid, false);
-			locktable.put(pid, lock);
+			reclaim(lock);
 			
 			if (debug) { System.out.println("tid " + tid.toString() + ": released lock for " + pid.toString()); }
 			
@@ -302,6 +453,7 @@ public class LockManager {
 		
 		// delete the transaction object
 		transtable.remove(tid);
+		wounded.remove(tid);
 		
 		if (debug) { System.out.println("tid " + tid.toString() + ": closed"); }
 	}
@@ -310,4 +462,165 @@ public class LockManager {
 		transactionCommit(tid);
 	}
 	
+	/**
+	 * Helper function that records an aborted lock request in the contention statistics
+	 * and returns the exception to throw.  Must be called while holding the lock manager's monitor.
+	 * @param waitStart	when the request started waiting, or 0 if it has not waited
+	 */
+	private TransactionAbortedException abortRequest(PageId pid, long waitStart) {
+		LockStats ls = getStats(pid);
+		ls.aborts++;
+		if (waitStart != 0) {
+			ls.waitTime += System.currentTimeMillis() - waitStart;
+		}
+		return new TransactionAbortedException();
+	}
+	
+	/**
+	 * Helper function that returns the contention statistics for a lock, creating them if needed.
+	 * Must be called while holding the lock manager's monitor.
+	 */
+	private LockStats getStats(PageId pid) {
+		LockStats ls = stats.get(pid);
+		if (ls == null) {
+			ls = new LockStats(pid);
+			stats.put(pid, ls);
+		}
+		return ls;
+	}
+	
+	/**
+	 * @return a copy of the contention statistics of every lock that has seen contention
+	 */
+	public synchronized List<LockStats> getLockStats() {
+		ArrayList<LockStats> copy = new ArrayList<LockStats>();
+		for (LockStats ls : stats.values()) {
+			LockStats c = new LockStats(ls.pid);
+			c.waits = ls.waits;
+			c.waitTime = ls.waitTime;
+			c.maxQueue = ls.maxQueue;
+			c.upgrades = ls.upgrades;
+			c.upgradeWaits = ls.upgradeWaits;
+			c.aborts = ls.aborts;
+			copy.add(c);
+		}
+		return copy;
+	}
+	
+	/**
+	 * @return the number of transactions currently queued for the lock on pid
+	 */
+	public synchronized int getQueueLength(PageId pid) {
+		LockEntry lock = locktable.get(pid);
+		return (lock == null) ? 0 : lock.queue.size();
+	}
+	
+	/**
+	 * @return the current wait-for edges as {waiter, holder, pid} triples:  waiter
+	 * is queued for the lock on pid, which is held by holder
+	 */
+	public synchronized List<Object[]> getWaitsFor() {
+		ArrayList<Object[]> edges = new ArrayList<Object[]>();
+		for (LockEntry lock : locktable.values()) {
+			for (TransactionId waiter : lock.queue) {
+				for (TransactionId holder : lock.holding) {
+					if (!holder.equals(waiter)) {
+						edges.add(new Object[] {waiter, holder, lock.getPid()});
+					}
+				}
+			}
+		}
+		return edges;
+	}
+	
+	/**
+	 * Forget all contention statistics
+	 */
+	public synchronized void resetStats() {
+		stats.clear();
+	}
+	
+	/**
+	 * Print the contention statistics and the current wait-for edges
+	 */
+	public synchronized void dumpStats(PrintStream out) {
+		out.println("LOCK CONTENTION (table page waits wait_ms max_queue queue upgrades upgrade_waits aborts)");
+		for (LockStats ls : stats.values()) {
+			out.println(ls.pid.getTableId() + " " + ls.pid.pageNumber() + " " + ls.waits + " " + ls.waitTime + " " 
+					+ ls.maxQueue + " " + getQueueLength(ls.pid) + " " + ls.upgrades + " " + ls.upgradeWaits + " " + ls.aborts);
+		}
+		out.println("WAITS FOR (waiter holder table page)");
+		for (Object[] edge : getWaitsFor()) {
+			PageId pid = (PageId) edge[2];
+			out.println(((TransactionId) edge[0]).getId() + " " + ((TransactionId) edge[1]).getId() + " " 
+					+ pid.getTableId() + " " + pid.pageNumber());
+		}
+	}
+	
+	/**
+	 * Helper function called when tid has to wait for a lock.  Throws a
+	 * TransactionAbortedException if the deadlock policy says that tid should
+	 * abort instead of waiting.  Must be called while holding the lock manager's monitor.
+	 */
+	private void checkDeadlock(TransactionId tid, TransactionEntry trans, LockEntry lock, long waitStart) 
+			throws TransactionAbortedException {
+		switch (policy) {
+			case WAIT_DIE:
+				// die if anyone in our way is older than us
+				for (TransactionId other : lock.getConflicts(tid)) {
+					if (other.getId() < tid.getId()) {
+						throw abortRequest(lock.getPid(), waitStart);
+					}
+				}
+				break;
+			case WOUND_WAIT:
+				// wound everyone in our way that is younger than us, then wait
+				for (TransactionId other : lock.getConflicts(tid)) {
+					if (other.getId() > tid.getId()) {
+						wounded.add(other);
+						if (debug) { System.out.println("tid " + tid.toString() + ": wounded tid " + other.toString()); }
+					}
+				}
+				break;
+			default:
+				if (trans.isExpired()) {
+					throw abortRequest(lock.getPid(), waitStart);
+				}
+		}
+	}
+	
+	/**
+	 * @return the number of pages that currently have a lock entry
+	 */
+	public synchronized int numLockEntries() {
+		return locktable.size();
+	}
+	
+	/**
+	 * Helper function that returns a lock entry for a page, reusing a reclaimed entry if possible.
+	 * Must be called while holding the lock manager's monitor.
+	 */
+	private LockEntry newLockEntry(PageId pid) {
+		LockEntry lock = freeEntries.poll();
+		if (lock == null) {
+			return new LockEntry(pid);
+		}
+		lock.reset(pid);
+		return lock;
+	}
+	
+	/**
+	 * Helper function that removes a lock entry from the lock table once nobody holds or
+	 * waits for it.  Must be called while holding the lock manager's monitor.
+	 */
+	private void reclaim(LockEntry lock) {
+		if (!lock.isFree()) {
+			return;
+		}
+		locktable.remove(lock.getPid());
+		if (freeEntries.size() < maxFreeEntries) {
+			freeEntries.push(lock);
+		}
+	}
+	
 }
\ No newline at end of file
@@ -2,8 +2,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.zip.Checksum;
 
 /**
  LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,38 +40,63 @@ import java.lang.reflect.*;
  * <p/>
  * <ul>
  * <p/>
- * <li> The first long integer of the file represents the offset of the
- * last written checkpoint, or -1 if there are no checkpoints
+ * <li> The log is stored in fixed-size segment files next to the log file,
+ * which is a control file holding the offset of the last written
+ * checkpoint (or -1 if there are no checkpoints), the offset of the
+ * first record still in the log and the version of this format (see
+ * LogStorage).  Offsets are positions in
+ * the log as if all segments were concatenated, starting at 0.
  * <p/>
- * <li> All additional data in the log consists of log records.  Log
- * records are variable length.
+ * <li> The log consists of log records.  Log records are variable length.
  * <p/>
- * <li> Each log record begins with an integer type and a long integer
- * transaction id.
+ * <li> Each log record begins with an integer length of the whole record in
+ * bytes, so scans can read a record with a single read, an integer type, a
+ * long integer
+ * transaction id and the long integer LSN of the previous record of the same
+ * transaction (its prevLSN, or -1 for its first record and for CHECKPOINT
+ * records).  Rollback and undo follow these backward chains, so they only
+ * read the records of the transactions they undo.
  * <p/>
- * <li> Each log record ends with a long integer file offset representing
- * the position in the log file where the record began.
+ * <li> Each log record ends with an integer CRC-32C of the record from its
+ * length through its payload, which detects records torn by a crash at the
+ * end of the log, and a long integer file offset representing
+ * the position in the log file where the record began.  This offset is
+ * also the record's log sequence number (LSN).
  * <p/>
  * <li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
  * CHECKPOINT, and CLR
  * <p/>
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  * <p/>
- * <li>UPDATE RECORDS consist of two entries, a before image and an
- * after image.  These images are serialized Page objects, and can be
- * accessed with the LogFile.readPageData() and LogFile.writePageData()
- * methods.  See LogFile.print() for an example.
+ * <li>UPDATE RECORDS consist of the byte ranges of the page that changed,
+ * each with its contents before and after the update (see PageDiff).
+ * Only the changed bytes are logged, not whole page images.
  * <p/>
- * <li>CLR RECORDS consist of one entry, an after image.  CLR stands for
- * compensating log record and it is written during undo phase of rollback
- * and recovery.
+ * <li>CLR RECORDS consist of the long integer LSN of the record undo goes
+ * on with after it (the prevLSN of the UPDATE it compensates, its
+ * undo-next LSN), followed by the byte ranges an undo wrote to the page and
+ * their contents after the undo.  CLR stands for compensating log record
+ * and it is written during undo phase of rollback and recovery.  A CLR is
+ * never undone itself, and undo skips the records it already compensated.
  * <p/>
- * <li> CHECKPOINT records consist of active transactions at the time
- * the checkpoint was taken and their first log record on disk.  The format
- * of the record is an integer count of the number of transactions, as well
- * as a long integer transaction id for each active transaction.
+ * <li> CHECKPOINT records consist of the active transaction table and the
+ * dirty page table at the time the checkpoint was taken.  The format of the
+ * record is an integer count of the number of active transactions, a long
+ * integer transaction id and the long integer LSNs of the first and the last
+ * log record for each of them, an integer count of the number of dirty pages, and a
+ * page id (see writePageId; page types are small integer codes registered
+ * in PageTypes, not class names) and a long integer recovery LSN for each of
+ * them.  Checkpoints are fuzzy: they don't flush any pages, so redo starts
+ * at the smallest recovery LSN in the dirty page table (or at the
+ * checkpoint if it is empty).
  * <p/>
  * </ul>
+ * <p/>
+ * Records are not written to the file as they are logged.  They are
+ * serialized into an in-memory log buffer and a log writer thread writes the
+ * buffer to the file in large sequential writes, either when the buffer
+ * fills up or when some thread waits for the log to be durable up to an LSN
+ * (see {@link #flushTo}).
  *
  * @author mhay, adapted from Madden
  */
@@ -78,17 +104,204 @@ import java.lang.reflect.*;
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private LogStorage storage;
     private LogFileRecovery logFileRecovery;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_TID = -1;
+
+    /**
+     * Version of the record format described above, stored with the log so
+     * recovery refuses logs it can't read
+     */
+    static final int LOG_FORMAT_VERSION = 3;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /**
+     * The frame around the payload of every record: length, type, tid and
+     * prevLSN before it, checksum and start offset after it
+     */
+    final static int RECORD_HEADER_SIZE = INT_SIZE + INT_SIZE + LONG_SIZE + LONG_SIZE;
+    final static int RECORD_TRAILER_SIZE = INT_SIZE + LONG_SIZE;
+
     private Set<Long> activeTids = new HashSet<Long>();
 
+    /**
+     * LSN of the first log record of every active transaction; the log
+     * before the smallest of these can't be truncated
+     */
+    private HashMap<Long, Long> tidToFirstLogRecord = new HashMap<Long, Long>();
+
+    /**
+     * LSN of the last log record of every active transaction, the head of its
+     * prevLSN chain
+     */
+    private HashMap<Long, Long> tidToLastLogRecord = new HashMap<Long, Long>();
+
+    /**
+     * Tail cache: the most recently logged transaction records, so rollback
+     * can follow prevLSN chains without reading the log.  Oldest first,
+     * bounded by tailCacheSize bytes of serialized records; protected by the
+     * LogFile monitor.
+     */
+    private final LinkedHashMap<Long, LogRecord> tailCache = new LinkedHashMap<Long, LogRecord>();
+    private long tailCacheBytes = 0;
+
+    /**
+     * Size of the tail cache, set with -Dsimpledb.LogTailCacheSize
+     */
+    static int tailCacheSize = Integer.getInteger("simpledb.LogTailCacheSize", 1 << 20);
+
+    /**
+     * Serializes checkpoints; checkpointRedoLSN is the LSN where redo would
+     * start after the last checkpoint taken by this LogFile
+     */
+    private final Object checkpointLock = new Object();
+    private volatile long checkpointRedoLSN = NO_CHECKPOINT_ID;
+    private volatile long checkpointEnd = NO_CHECKPOINT_ID;     // LSN just past that checkpoint
+
+    /**
+     * The scheduler running checkpoints of this log in the background, if any
+     */
+    private volatile CheckpointScheduler checkpointer;
+
+    /**
+     * LSNs from which the log must be kept regardless of checkpoints
+     */
+    private final ArrayList<Long> pins = new ArrayList<Long>();
+
+    /**
+     * Size of the log segment files, set with -Dsimpledb.LogSegmentSize
+     */
+    private static long logSegmentSize = Long.getLong("simpledb.LogSegmentSize", 16 << 20);
+
+    public static long getSegmentSize() {
+        return logSegmentSize;
+    }
+
+    // takes effect for log files opened afterwards; mostly useful for testing
+    public static void setSegmentSize(long segmentSize) {
+        logSegmentSize = segmentSize;
+    }
+
+    /**
+     * @return the size of the segment files this log is stored in, which
+     * is the segment size when it was opened
+     */
+    long getStorageSegmentSize() {
+        return storage.getSegmentSize();
+    }
+
+    /**
+     * Number of threads recovery applies redo records with, set with
+     * -Dsimpledb.RedoThreads; defaults to the number of processors
+     */
+    private static int redoThreads = Integer.getInteger("simpledb.RedoThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    public static int getRedoThreads() {
+        return redoThreads;
+    }
+
+    // mostly useful for testing
+    public static void setRedoThreads(int threads) {
+        redoThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Growable byte array whose contents can be written to a channel
+     * without copying
+     */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer(int size) {
+            super(size);
+        }
+
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        void checksum(Checksum c) {
+            c.update(buf, 0, count);
+        }
+    }
+
+    /**
+     * Log buffer: records are appended to buffer (through out) and the log
+     * writer swaps it with spare before writing it to the file, so appends
+     * can continue while it writes.  bufferStart is the LSN of the first byte
+     * in buffer, i.e. the file offset it will be written at.  Protected by
+     * bufferLock, which is never held while acquiring another lock.
+     */
+    private final Object bufferLock = new Object();
+    private LogBuffer buffer;
+    private LogBuffer spare;
+    private DataOutputStream out;
+    private long bufferStart = 0;
+
+    /**
+     * The payload of the record being appended is serialized here before it
+     * is framed into the log buffer; protected by the LogFile monitor
+     */
+    private final LogBuffer payload = new LogBuffer(256);
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    private final Crc32c crc = new Crc32c();
+
+    /**
+     * Size of the log buffer; the log writer is woken up to write the buffer
+     * when it is half full.  Set with -Dsimpledb.LogBufferSize
+     */
+    static int logBufferSize = Integer.getInteger("simpledb.LogBufferSize", 1 << 20);
+
+    /**
+     * Group commit: threads that need the log durable up to some LSN register
+     * it in flushRequested and wait; the single log writer thread writes and
+     * forces the log once for every thread that arrived while it was idle or
+     * busy with the previous force.  All fields below are protected by
+     * flushLock.
+     */
+    private final Object flushLock = new Object();
+    private long flushRequested = 0;  // highest LSN some thread is waiting for
+    private long flushedLSN = 0;      // every byte before this LSN is on disk
+    private boolean writeRequested = false;  // the log buffer is filling up
+    private IOException flushError = null;
+    private Thread flusher = null;
+    private long forceCount = 0;
+    private long writeCount = 0;
+
+    /**
+     * Asynchronous commits: the log must be durable up to asyncRequested by
+     * asyncDeadline, but nobody waits for it.  Also protected by flushLock.
+     */
+    private long asyncRequested = 0;
+    private long asyncDeadline = 0;
+
+    /**
+     * How long (in ms) an asynchronous commit may stay in the log buffer
+     * before the log writer forces it, set with -Dsimpledb.AsyncCommitDelay.
+     * This bounds the commits a crash can lose.
+     */
+    static long asyncCommitDelay = Long.getLong("simpledb.AsyncCommitDelay", 10);
+
+    // mostly useful for testing
+    public static void setAsyncCommitDelay(long ms) {
+        asyncCommitDelay = ms;
+    }
+
+    /**
+     * How long (in ms) the log writer waits for more committers to join a
+     * group before forcing, set with -Dsimpledb.GroupCommitDelay
+     */
+    static long groupCommitDelay = Long.getLong("simpledb.GroupCommitDelay", 0);
+
+    /**
+     * How long (in ms) an idle log writer thread lingers before it exits
+     */
+    static final long FLUSHER_IDLE_TIME = 1000;
+
     /**
      * Constructor.
      * Initialize and back the log file with the specified file.
@@ -103,9 +316,12 @@ public class LogFile {
      */
     public LogFile(File f) throws IOException {
         this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        storage = new LogStorage(f, logSegmentSize);
         recoveryUndecided = true;
-        logFileRecovery = new LogFileRecovery(new RandomAccessFile(logFile, "r"));
+        buffer = new LogBuffer(logBufferSize);
+        spare = new LogBuffer(logBufferSize);
+        out = new DataOutputStream(buffer);
+        logFileRecovery = new LogFileRecovery(new LogInput(storage));
 
 
         // install shutdown hook to force cleanup on close
@@ -125,16 +341,129 @@ public class LogFile {
         // the log.
         if (recoveryUndecided) {
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
+            storage.reset();
+            synchronized (bufferLock) {
+                bufferStart = storage.length();
+            }
+            tidToLastLogRecord.clear();
+            tailCache.clear();
+            tailCacheBytes = 0;
+        }
+        // records are appended to the log buffer, and the log writer writes
+        // the buffer at bufferStart, so the file pointer doesn't matter
+    }
+
+    /**
+     * @return the LSN the next log record will get, i.e. the end of the log
+     */
+    public long getCurrentLSN() {
+        synchronized (bufferLock) {
+            return bufferStart + buffer.size();
+        }
+    }
+
+    /**
+     * @return the LSN up to which the log is known to be on disk; every
+     * record with a smaller LSN is durable
+     */
+    public long getFlushedLSN() {
+        synchronized (flushLock) {
+            return flushedLSN;
+        }
+    }
+
+    /**
+     * Called after appending a record: wake up the log writer if the log
+     * buffer is getting full.
+     */
+    private void appended(long bufferedBytes) {
+        if (bufferedBytes >= logBufferSize / 2) {
+            synchronized (flushLock) {
+                writeRequested = true;
+                startWriter();
+            }
         }
-        // we're about to append a log record... make sure we're at the end of the log!
-        if (raf.getFilePointer() != raf.length()) {
-            throw new RuntimeException("About to append to log file but not" +
-                    " located at end of log!  Risk overwriting log data!");
+    }
+
+    /**
+     * Append a record to the log buffer: frame the payload written to
+     * payloadOut since the last append with the record header, checksum and
+     * start offset, and make the record the last one of its transaction.
+     * Called with the LogFile monitor held.
+     *
+     * @param diff the diff of an UPDATE record, kept in the returned
+     *             LogRecord for the tail cache; null otherwise
+     * @return the record appended
+     */
+    private LogRecord append(int type, long tid, PageDiff diff) throws IOException {
+        LogRecord r;
+        long buffered;
+        synchronized (bufferLock) {
+            long recordStart = bufferStart + buffer.size();
+            long prevLSN = LogRecord.NO_PREV_LSN;
+            if (tid != NO_TID) {
+                Long prev = tidToLastLogRecord.put(tid, recordStart);
+                if (prev != null) {
+                    prevLSN = prev;
+                }
+            }
+
+            int length = RECORD_HEADER_SIZE + payload.size() + RECORD_TRAILER_SIZE;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.putInt(length).putInt(type).putLong(tid).putLong(prevLSN);
+            crc.reset();
+            crc.update(header.array(), 0, RECORD_HEADER_SIZE);
+            payload.checksum(crc);
+
+            out.write(header.array());
+            payload.writeTo(out);
+            out.writeInt((int) crc.getValue());
+            out.writeLong(recordStart);
+            buffered = buffer.size();
+            r = new LogRecord(recordStart, type, tid, prevLSN, diff, length);
         }
+        payload.reset();
+        appended(buffered);
+        return r;
+    }
+
+    /**
+     * Add a record just appended to the tail cache, evicting the oldest
+     * records beyond tailCacheSize.  Called with the LogFile monitor held.
+     */
+    private void cacheRecord(LogRecord r) {
+        tailCache.put(r.lsn, r);
+        tailCacheBytes += r.size;
+        Iterator<LogRecord> it = tailCache.values().iterator();
+        while (tailCacheBytes > tailCacheSize && it.hasNext()) {
+            tailCacheBytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the record with the specified LSN if it is in the tail cache,
+     * or null
+     */
+    synchronized LogRecord getCachedRecord(long lsn) {
+        return tailCache.get(lsn);
+    }
+
+    /**
+     * Make the specified record the last one of a transaction, so the
+     * records recovery logs for it continue its chain.
+     */
+    synchronized void setLastLSN(long tid, long lsn) {
+        tidToLastLogRecord.put(tid, lsn);
+    }
+
+    /**
+     * @return the LSN of the last record logged by the specified
+     * transaction, or -1 if it has logged nothing since it began
+     */
+    synchronized long getLastLSN(long tid) {
+        Long last = tidToLastLogRecord.get(tid);
+        return (last == null) ? LogRecord.NO_PREV_LSN : last;
     }
 
     private void checkActive(TransactionId tid, boolean shouldBeActive) throws IOException {
@@ -162,11 +491,10 @@ public class LogFile {
             throws IOException {
         checkActive(tid, false);
         preAppend();
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(recordStart);
+        LogRecord r = append(LogType.BEGIN_RECORD, tid.getId(), null);
+        cacheRecord(r);
         activeTids.add(tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), r.lsn);
     }
 
     /**
@@ -175,17 +503,42 @@ public class LogFile {
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        //should we verify that this is a live transaction?
-        checkActive(tid, true);
-        preAppend();
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, true);
+    }
+
+    /**
+     * Write a commit record for the specified tid.  A synchronous commit
+     * forces the log to disk before returning; an asynchronous one returns
+     * once the record is in the log buffer and the log writer forces it
+     * within asyncCommitDelay ms.  A crash before then loses the whole
+     * transaction, since recovery undoes it like any other loser.
+     *
+     * @param tid         The committing transaction.
+     * @param synchronous whether to wait for the commit record to be durable
+     */
+    public void logCommit(TransactionId tid, boolean synchronous) throws IOException {
+        long recordStart;
+        synchronized (this) {
+            //should we verify that this is a live transaction?
+            checkActive(tid, true);
+            preAppend();
+
+            recordStart = append(LogType.COMMIT_RECORD, tid.getId(), null).lsn;
+        }
 
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(recordStart);
-        force();
-        activeTids.remove(tid.getId());
+        // wait outside the monitor so other committers can join the group
+        if (synchronous) {
+            flushTo(recordStart);
+        } else {
+            flushSoon(recordStart);
+        }
+
+        synchronized (this) {
+            activeTids.remove(tid.getId());
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        }
     }
 
     /**
@@ -205,7 +558,7 @@ public class LogFile {
                 checkActive(tid, true);
 
                 // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
+                // live transactions (needs tidToLastLogRecord)
                 System.out.println("rollback called");
                 logFileRecovery.rollback(tid);
             }
@@ -221,12 +574,11 @@ public class LogFile {
      */
     public synchronized void logAbort(Long tid) throws IOException {
         preAppend();
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.ABORT_RECORD);
-        raf.writeLong(tid);
-        raf.writeLong(recordStart);
-        force();
+        long recordStart = append(LogType.ABORT_RECORD, tid, null).lsn;
+        flushTo(recordStart);
         activeTids.remove(tid);
+        tidToFirstLogRecord.remove(tid);
+        tidToLastLogRecord.remove(tid);
     }
 
     /**
@@ -236,188 +588,255 @@ public class LogFile {
      * @param tid    The transaction performing the write
      * @param before The before image of the page
      * @param after  The after image of the page
+     * @return the LSN of the update record
      * @see simpledb.Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before,
+    public synchronized long logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
         checkActive(tid, true);
         preAppend();
-        /* update record consists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
+        /* the payload of an update record is the changed byte ranges with
+           their before and after bytes (see PageDiff)
         */
 
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(recordStart);
-    }
-
-    /**
-     * Write a CLR record to disk for the specified tid and page
-     * (with provided after image.)
-     *
-     * @param tid    The transaction performing the write
-     * @param after  The after image of the page
-     * @see simpledb.Page#getBeforeImage
-     */
-    public synchronized void logCLR(TransactionId tid, Page after)
-            throws IOException {
-        logCLR(tid.getId(), after);
+        PageDiff diff = PageDiff.compute(before, after);
+        diff.write(payloadOut, true);
+        LogRecord r = append(LogType.UPDATE_RECORD, tid.getId(), diff);
+        cacheRecord(r);
+        if (!tidToFirstLogRecord.containsKey(tid.getId())) {
+            // some callers never log a BEGIN record
+            tidToFirstLogRecord.put(tid.getId(), r.lsn);
+        }
+        return r.lsn;
     }
 
     /**
-     * Write a CLR record to disk for the specified tid and page
-     * (with provided after image.)
+     * Write a CLR record to disk for the specified tid, compensating
+     * for the specified update.
      *
      * @param tid    The transaction performing the write. Need
      *               long because may not have a live transaction.
-     * @param after  The after image of the page
-     * @see simpledb.Page#getBeforeImage
+     * @param undone The UPDATE record being undone
+     * @return the LSN of the CLR
      */
-    public synchronized void logCLR(Long tid, Page after)
+    synchronized long logCLR(Long tid, LogRecord undone)
             throws IOException {
 
         // transaction may be active or we may be in recovery mode
         preAppend();
-        /* update record consists of
-
-           record type
-           transaction id
-           after page data (see writePageData)
-           start offset
+        /* the payload of a CLR is the undo-next LSN and the undone byte
+           ranges with their bytes after the undo (see PageDiff)
         */
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.CLR_RECORD);
-        raf.writeLong(tid);
-        writePageData(raf, after);
-        raf.writeLong(recordStart);
+        payloadOut.writeLong(undone.prevLSN);
+        undone.diff.inverse().write(payloadOut, false);
+        return append(LogType.CLR_RECORD, tid, null).lsn;
     }
 
 
-    static void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /**
+     * Write a page image: its id (see writePageId), an integer length and
+     * its data.
+     */
+    static void writePageData(DataOutput raf, Page p) throws IOException {
+        PageTypes.writePage(raf, p);
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /**
+     * Write a page id as the code of its page type (see PageTypes) followed
+     * by its serialized form.
+     */
+    static void writePageId(DataOutput raf, PageId pid) throws IOException {
+        PageTypes.writePageId(raf, pid);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    static PageId readPageId(DataInput raf) throws IOException {
+        return PageTypes.readPageId(raf);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+    static Page readPageData(DataInput raf) throws IOException {
+        return PageTypes.readPage(raf);
     }
 
-    static Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /**
+     * Checkpoint the log and write a checkpoint record.
+     */
+    public void logCheckpoint() throws IOException {
+        // fuzzy checkpoint: neither the buffer pool nor the log is blocked
+        // while pages are written; the checkpoint only records where redo
+        // and undo have to start
+        synchronized (checkpointLock) {
+            long startCpOffset, redoLSN;
+
+            synchronized (this) {
+                preAppend();
+                Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+                // no other record can be appended while we hold the monitor
+                startCpOffset = getCurrentLSN();
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+                //write table of outstanding transactions
+                payloadOut.writeInt(activeTids.size());
+                for (Long key : activeTids) {
+                    Long first = tidToFirstLogRecord.get(key);
+                    payloadOut.writeLong(key);
+                    payloadOut.writeLong(first == null ? startCpOffset : first);
+                    payloadOut.writeLong(getLastLSN(key));
+                }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                //write table of pages whose logged changes may not be on disk
+                redoLSN = startCpOffset;
+                payloadOut.writeInt(dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                    writePageId(payloadOut, e.getKey());
+                    payloadOut.writeLong(e.getValue());
+                    redoLSN = Math.min(redoLSN, e.getValue());
+                }
+                append(LogType.CHECKPOINT_RECORD, NO_TID, null);
+                checkpointEnd = getCurrentLSN();
             }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+            //once the CP is on disk, make sure the CP location in the
+            // control file is updated
+            flushTo(startCpOffset);
+            storage.setCheckpoint(startCpOffset);
+            checkpointRedoLSN = redoLSN;
+        }
+
+        logTruncate();
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /**
+     * Truncate any unneeded portion of the log to reduce its space
+     * consumption
+     */
+    public void logTruncate() throws IOException {
+        long keep = neededFrom();
+        if (keep == NO_CHECKPOINT_ID) {
+            return;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        // the checkpoint stopped tracking pages that were written before it,
+        // so their writes must be on disk before the records that redo them
+        // go; done outside the monitor so appends don't wait for the syncs
+        forceTables();
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+        synchronized (this) {
+            for (Long pinned : pins) {
+                keep = Math.min(keep, pinned);
+            }
 
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+            int deleted = storage.truncate(keep);
+            if (deleted > 0) {
+                System.out.println("log truncated to " + keep + ", " + deleted + " segment(s) deleted");
+            }
         }
-        return newPage;
     }
 
     /**
-     * Checkpoint the log and write a checkpoint record.
+     * Force every heap file in the catalog to disk, with its page LSNs.
      */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                preAppend();
-                long startCpOffset, endCpOffset;
-
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(LogType.CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+    static void forceTables() throws IOException {
+        Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        while (it.hasNext()) {
+            DbFile f = Database.getCatalog().getDatabaseFile(it.next());
+            if (f instanceof HeapFile) {
+                ((HeapFile) f).force();
+            }
+        }
+    }
 
-                //write list of outstanding transactions
-                raf.writeInt(activeTids.size());
-                for (Long key : activeTids) {
-                    raf.writeLong(key);
-                }
+    /**
+     * @return the first LSN recovery from the last checkpoint taken by this
+     * LogFile needs, or NO_CHECKPOINT_ID if it hasn't taken one
+     */
+    private synchronized long neededFrom() {
+        // redo starts at the redo LSN of the last checkpoint, and rollback
+        // and undo need every record of the active transactions
+        long keep = checkpointRedoLSN;
+        if (keep == NO_CHECKPOINT_ID) {
+            return keep;
+        }
+        for (Long first : tidToFirstLogRecord.values()) {
+            keep = Math.min(keep, first);
+        }
+        return keep;
+    }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(startCpOffset);
+    /**
+     * Take a checkpoint and keep the part of the log recovery from it needs
+     * until {@link #unpin} is called, e.g. while a backup copies it.
+     *
+     * @return the LSN of the checkpoint and the first LSN recovery from it
+     * needs
+     */
+    long[] checkpointAndPin() throws IOException {
+        synchronized (checkpointLock) {
+            logCheckpoint();
+            synchronized (this) {
+                long keep = neededFrom();
+                pins.add(keep);
+                return new long[]{storage.getCheckpoint(), keep};
             }
         }
+    }
 
+    /**
+     * Keep the log from the specified LSN on until {@link #unpin} is called,
+     * e.g. while a {@link LogReader} may still need it.
+     *
+     * @throws IOException if the log has already been truncated past the LSN
+     */
+    synchronized void pin(long lsn) throws IOException {
+        if (lsn < storage.getStart()) {
+            throw new IOException("log starts at " + storage.getStart() + ", after " + lsn);
+        }
+        pins.add(lsn);
+    }
 
-        logTruncate();
+    /**
+     * Let truncation drop the log kept by checkpointAndPin or pin.
+     */
+    synchronized void unpin(long lsn) {
+        pins.remove(Long.valueOf(lsn));
     }
 
     /**
-     * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * Move a pin to a later LSN, without letting truncation run in between.
+     */
+    synchronized void repin(long from, long to) {
+        pins.remove(Long.valueOf(from));
+        pins.add(to);
+    }
+
+    /**
+     * Copy the log between two LSNs to a new log stored in the specified
+     * file (see {@link LogStorage#copyTo}).
+     */
+    void copyTo(File dest, long from, long to, long checkpoint) throws IOException {
+        storage.copyTo(dest, from, to, checkpoint);
+    }
+
+    /**
+     * @return the id of the current log; page LSNs recorded under a
+     * different id refer to an older log and must be ignored
+     */
+    public long getLogId() {
+        return storage.getLogId();
+    }
+
+    /**
+     * @return a new LogInput over this log, positioned at its first record
+     */
+    LogInput newInput() {
+        return new LogInput(storage);
+    }
+
+    /**
+     * @return the number of segment files the log is currently stored in
      */
-    public synchronized void logTruncate() throws IOException {
-        // todo: implement me
+    public int numSegments() {
+        return storage.numSegments();
     }
 
     /**
@@ -425,14 +844,32 @@ public class LogFile {
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
-        try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
-        } catch (IOException e) {
-            System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
-            e.printStackTrace();
+    public void shutdown() {
+        CheckpointScheduler s = checkpointer;
+        if (s != null) {
+            s.stop();           // waits for a background checkpoint in progress
         }
+        // same lock order as logCheckpoint: checkpointLock, then this
+        synchronized (checkpointLock) {
+            try {
+                logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                force();
+                synchronized (this) {
+                    storage.close();
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Set the scheduler that checkpoints this log in the background, which
+     * shutdown stops before it takes the last checkpoint; null when it stops.
+     */
+    void setCheckpointScheduler(CheckpointScheduler checkpointer) {
+        this.checkpointer = checkpointer;
     }
 
     /**
@@ -443,15 +880,298 @@ public class LogFile {
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
+                if (storage.getFormatVersion() != LOG_FORMAT_VERSION) {
+                    throw new IOException("log format version " + storage.getFormatVersion() +
+                            " is not supported, expected " + LOG_FORMAT_VERSION);
+                }
                 recoveryUndecided = false;
-                raf.seek(raf.length());      // go to end of log file
+                synchronized (bufferLock) {
+                    bufferStart = storage.length();     // go to end of log file
+                }
+                synchronized (flushLock) {
+                    flushedLSN = bufferStart;           // the log read from disk is durable
+                }
                 logFileRecovery.recover();
             }
         }
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Throw away the end of the log from the specified LSN on, found by
+     * recovery not to hold an intact record, so new records replace it.
+     * Called during recovery, before anything is appended.
+     */
+    synchronized void discardTail(long lsn) throws IOException {
+        System.out.println("discarding torn log tail at " + lsn);
+        storage.truncateEnd(lsn);
+        synchronized (bufferLock) {
+            bufferStart = storage.length();
+        }
+        synchronized (flushLock) {
+            flushedLSN = bufferStart;
+        }
+    }
+
+    /**
+     * @return the number of UPDATE and CLR records the last recovery redid
+     */
+    public int getRedoApplied() {
+        return logFileRecovery.getRedone();
+    }
+
+    /**
+     * @return the number of UPDATE and CLR records the last recovery did not
+     * redo because the page LSN showed they were already on disk
+     */
+    public int getRedoSkipped() {
+        return logFileRecovery.getSkipped();
+    }
+
+    /**
+     * @return the number of bytes of log the redo pass of the last recovery
+     * scanned
+     */
+    public long getRedoBytes() {
+        return logFileRecovery.getRedoBytes();
+    }
+
+    /**
+     * @return how long the redo pass of the last recovery took, in
+     * milliseconds
+     */
+    public long getRedoMillis() {
+        return logFileRecovery.getRedoMillis();
+    }
+
+    /**
+     * @return the number of bytes logged since the last checkpoint, which
+     * is how much of the log recovery would have to redo now
+     */
+    public long getBytesSinceCheckpoint() throws IOException {
+        if (isRecoveryUndecided()) {
+            return 0;
+        }
+        long since = checkpointEnd;
+        if (since == NO_CHECKPOINT_ID) {
+            long cp = storage.getCheckpoint();
+            since = cp == NO_CHECKPOINT_ID ? storage.getStart() : cp;
+        }
+        return getCurrentLSN() - since;
+    }
+
+    /**
+     * @return true until the database either recovers from this log or logs
+     * something, throwing the old contents away.  A checkpoint taken before
+     * would throw them away too.
+     */
+    synchronized boolean isRecoveryUndecided() {
+        return recoveryUndecided;
+    }
+
+    /**
+     * Force every record logged so far to disk.
+     */
+    public void force() throws IOException {
+        long end = getCurrentLSN();
+        if (end > 0) {
+            flushTo(end - 1);
+        }
+    }
+
+    /**
+     * Wait until the log record with the specified LSN (and every record
+     * before it) is on disk.  The log writer thread does the write and the
+     * force, serving every waiting thread with a single call to
+     * FileChannel.force.
+     *
+     * @param lsn the LSN of the log record that must be durable on return
+     */
+    public void flushTo(long lsn) throws IOException {
+        synchronized (flushLock) {
+            if (lsn < flushedLSN) {
+                return;
+            }
+            if (lsn >= flushRequested) {
+                flushRequested = lsn + 1;
+            }
+            startWriter();
+
+            while (flushedLSN <= lsn && flushError == null) {
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted waiting for log force");
+                }
+            }
+            if (flushedLSN <= lsn) {
+                throw new IOException("could not force log: " + flushError.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Ask the log writer to make the log durable up to the specified LSN
+     * within asyncCommitDelay ms, without waiting for it.
+     */
+    private void flushSoon(long lsn) {
+        synchronized (flushLock) {
+            if (lsn < flushedLSN) {
+                return;
+            }
+            if (asyncRequested <= flushedLSN) {
+                asyncDeadline = System.currentTimeMillis() + asyncCommitDelay;
+            }
+            asyncRequested = Math.max(asyncRequested, lsn + 1);
+            startWriter();
+        }
+    }
+
+    /**
+     * Start the log writer thread, or wake it up if it is running.
+     * Must be called while holding flushLock.
+     */
+    private void startWriter() {
+        if (flusher == null) {
+            flusher = new Thread(new Runnable() {
+                public void run() {
+                    writerLoop();
+                }
+            }, "LogFile writer");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * Body of the log writer thread: write the log buffer to the file when
+     * it fills up, and write and force it whenever some thread waits for an
+     * LSN that isn't durable yet or asynchronous commits are due.  Exits
+     * once idle for a while.
+     */
+    private void writerLoop() {
+        while (true) {
+            synchronized (flushLock) {
+                long now = System.currentTimeMillis();
+                if (asyncRequested > flushedLSN && now >= asyncDeadline) {
+                    flushRequested = Math.max(flushRequested, asyncRequested);
+                }
+                if (flushRequested <= flushedLSN && !writeRequested) {
+                    boolean asyncPending = asyncRequested > flushedLSN;
+                    try {
+                        flushLock.wait(asyncPending ? Math.max(1, asyncDeadline - now) : FLUSHER_IDLE_TIME);
+                    } catch (InterruptedException e) {
+                        // fall through and check for work
+                    }
+                    if (asyncPending || asyncRequested > flushedLSN) {
+                        continue;   // check whether they are due now
+                    }
+                }
+                if (flushRequested <= flushedLSN && !writeRequested) {
+                    flusher = null;
+                    return;
+                }
+            }
+
+            if (groupCommitDelay > 0 && getFlushedLSN() < flushRequestedLSN()) {
+                try {
+                    Thread.sleep(groupCommitDelay);     // let more committers join
+                } catch (InterruptedException e) {
+                    // force now
+                }
+            }
+
+            // every LSN requested so far was logged before it was requested,
+            // so it is covered by the buffer we are about to write
+            boolean mustForce;
+            synchronized (flushLock) {
+                mustForce = flushRequested > flushedLSN;
+                writeRequested = false;
+            }
+            IOException error = null;
+            long written = 0;
+            try {
+                written = writeBuffer();
+                if (mustForce) {
+                    storage.force();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (flushLock) {
+                if (error == null) {
+                    writeCount++;
+                    if (mustForce) {
+                        flushedLSN = Math.max(flushedLSN, written);
+                        forceCount++;
+                    }
+                } else {
+                    flushError = error;
+                }
+                flushLock.notifyAll();
+                if (error != null) {
+                    flusher = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private long flushRequestedLSN() {
+        synchronized (flushLock) {
+            return flushRequested;
+        }
+    }
+
+    /**
+     * Write the contents of the log buffer to the end of the log file in a
+     * single sequential write.  Only called by the log writer thread.
+     *
+     * @return the LSN up to which the log has been written
+     */
+    private long writeBuffer() throws IOException {
+        LogBuffer full;
+        long start;
+        synchronized (bufferLock) {
+            if (buffer.size() == 0) {
+                return bufferStart;
+            }
+            full = buffer;
+            start = bufferStart;
+            buffer = spare;
+            out = new DataOutputStream(buffer);
+            bufferStart += full.size();
+        }
+
+        ByteBuffer data = full.contents();
+        storage.write(data, start);
+        long pos = start + full.size();
+
+        full.reset();
+        synchronized (bufferLock) {
+            spare = full;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the number of times the log buffer has been written to the file
+     */
+    public long getWriteCount() {
+        synchronized (flushLock) {
+            return writeCount;
+        }
+    }
+
+    /**
+     * @return the number of times the log has been forced to disk
+     */
+    public long getForceCount() {
+        synchronized (flushLock) {
+            return forceCount;
+        }
     }
 
 }
@@ -1,17 +1,24 @@
 package simpledb;
 
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * @author mhay
  */
 class LogFileRecovery {
 
-    private final RandomAccessFile readOnlyLog;
+    private final LogInput readOnlyLog;
+    private int redone, skipped;
+    private long redoBytes, redoMillis;
 
     /**
      * Helper class for LogFile during rollback and recovery.
@@ -22,7 +29,7 @@ class LogFileRecovery {
      *
      * @param readOnlyLog a read only copy of the log file
      */
-    public LogFileRecovery(RandomAccessFile readOnlyLog) {
+    public LogFileRecovery(LogInput readOnlyLog) {
         this.readOnlyLog = readOnlyLog;
     }
 
@@ -34,12 +41,13 @@ class LogFileRecovery {
         // and then jump back to it after printing
         Long currentOffset = readOnlyLog.getFilePointer();
 
-        readOnlyLog.seek(0);
-        long lastCheckpoint = readOnlyLog.readLong(); // ignore this
+        readOnlyLog.seek(readOnlyLog.getStart());
         System.out.println("BEGIN LOG FILE");
-        while (readOnlyLog.getFilePointer() < readOnlyLog.length()) {
-            int type = readOnlyLog.readInt();
-            long tid = readOnlyLog.readLong();
+        DataInputStream in;
+        while ((in = readOnlyLog.readRecord()) != null) {
+            int type = in.readInt();
+            long tid = in.readLong();
+            long prevLSN = in.readLong();
             switch (type) {
                 case LogType.BEGIN_RECORD:
                     System.out.println("<T_" + tid + " BEGIN>");
@@ -51,27 +59,29 @@ class LogFileRecovery {
                     System.out.println("<T_" + tid + " ABORT>");
                     break;
                 case LogType.UPDATE_RECORD:
-                    Page beforeImg = LogFile.readPageData(readOnlyLog);
-                    Page afterImg = LogFile.readPageData(readOnlyLog);  // after image
-                    System.out.println("<T_" + tid + " UPDATE pid=" + beforeImg.getId() +">");
+                    PageDiff diff = PageDiff.read(in, true);
+                    System.out.println("<T_" + tid + " UPDATE pid=" + diff.getPageId() +
+                            " ranges=" + diff.numRanges() + " prev=" + prevLSN + ">");
                     break;
                 case LogType.CLR_RECORD:
-                    afterImg = LogFile.readPageData(readOnlyLog);  // after image
-                    System.out.println("<T_" + tid + " CLR pid=" + afterImg.getId() +">");
+                    long undoNext = in.readLong();
+                    diff = PageDiff.read(in, false);
+                    System.out.println("<T_" + tid + " CLR pid=" + diff.getPageId() +
+                            " ranges=" + diff.numRanges() + " prev=" + prevLSN +
+                            " undoNext=" + undoNext + ">");
                     break;
                 case LogType.CHECKPOINT_RECORD:
-                    int count = readOnlyLog.readInt();
-                    Set<Long> tids = new HashSet<Long>();
-                    for (int i = 0; i < count; i++) {
-                        long nextTid = readOnlyLog.readLong();
-                        tids.add(nextTid);
-                    }
-                    System.out.println("<T_" + tid + " CHECKPOINT " + tids + ">");
+                    Map<Long, Long> tids = new HashMap<Long, Long>();
+                    long redoLSN = readCheckpoint(in, tids);
+                    System.out.println("<T_" + tid + " CHECKPOINT " + tids.keySet() +
+                            (redoLSN == Long.MAX_VALUE ? "" : " redo=" + redoLSN) + ">");
                     break;
                 default:
                     throw new RuntimeException("Unexpected type!  Type = " + type);
             }
-            long startOfRecord = readOnlyLog.readLong();   // ignored, only useful when going backwards thru log
+        }
+        if (readOnlyLog.getFilePointer() < readOnlyLog.length()) {
+            System.out.println("TORN RECORD AT " + readOnlyLog.getFilePointer());
         }
         System.out.println("END LOG FILE");
 
@@ -80,6 +90,35 @@ class LogFileRecovery {
 
     }
 
+    /**
+     * Read the payload of a checkpoint record.
+     *
+     * @param in     the record, positioned after its header
+     * @param active if not null, the active transactions of the checkpoint
+     *               are added to it, with the LSNs of their last records
+     * @return the smallest recovery LSN in the checkpoint's dirty page
+     * table, or Long.MAX_VALUE if it is empty
+     */
+    private long readCheckpoint(DataInput in, Map<Long, Long> active) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long tid = in.readLong();
+            in.readLong();     // first log record of tid
+            long last = in.readLong();
+            if (active != null) {
+                active.put(tid, last);
+            }
+        }
+
+        long redoLSN = Long.MAX_VALUE;
+        int dirty = in.readInt();
+        for (int i = 0; i < dirty; i++) {
+            LogFile.readPageId(in);
+            redoLSN = Math.min(redoLSN, in.readLong());
+        }
+        return redoLSN;
+    }
+
     /**
      * Rollback the specified transaction, setting the state of any
      * of pages it updated to their pre-updated state.  To preserve
@@ -94,42 +133,102 @@ class LogFileRecovery {
      * @throws java.io.IOException if tidToRollback has already committed
      */
     public void rollback(TransactionId tidToRollback) throws IOException {
-    	Long initialOffset = readOnlyLog.getFilePointer();					// store initial offset so we can reset it later
-
     	long trollback = tidToRollback.getId();
-        readOnlyLog.seek(readOnlyLog.length() - LogFile.LONG_SIZE);			// find final offset record
-        
-        while (readOnlyLog.getFilePointer() >= LogFile.LONG_SIZE) {
-        	Long ptr = readOnlyLog.readLong();								// read the log entry's offset record
-        	readOnlyLog.seek(ptr);											// seek to beginning of log entry
-        	
-        	int type = readOnlyLog.readInt();								// read the type of this log entry
-        	long tid = readOnlyLog.readLong();								// read the tid of this log entry
-        	
-        	if (type == LogType.COMMIT_RECORD && trollback == tid) {
-        		throw new IOException("transaction has already committed!");
-        	}
-        	else if (type == LogType.UPDATE_RECORD && trollback == tid) {
-        		Page beforeImg = LogFile.readPageData(readOnlyLog);			// read beforeImg from log
-        		int tableid = beforeImg.getId().getTableId();
-        		
-        		Database.getLogFile().logCLR(tid, beforeImg);				// write a CLR
-        		
-        		HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        		hf.writePage(beforeImg);									// write the beforeImg to the heapfile
-        		
-        		Database.getBufferPool().discardPage(beforeImg.getId());	// discard the page from the buffer pool
-        	}
-        	
-        	if ((ptr - LogFile.LONG_SIZE) >= 0) {
-        		readOnlyLog.seek(ptr - LogFile.LONG_SIZE); 					// seek to the previous log entry's offset record
-        	} else {
-        		break;														// we've reached the beginning of the log
-        	}
-        }
-        
-        Database.getLogFile().logAbort(trollback);
-        readOnlyLog.seek(initialOffset);									// reset initial offset
+    	long lsn = Database.getLogFile().getLastLSN(trollback);	// head of the transaction's chain
+    	if (lsn == LogRecord.NO_PREV_LSN) {
+    		lsn = findLastRecord(trollback);							// not active, maybe already committed
+    	}
+    	
+    	ArrayList<LogRecord> undone = new ArrayList<LogRecord>();
+    	ArrayList<Long> clrs = new ArrayList<Long>();
+    	while (lsn != LogRecord.NO_PREV_LSN) {
+    		LogRecord r = readRecord(lsn);
+    		
+    		if (r.type == LogType.COMMIT_RECORD) {
+    			throw new IOException("transaction has already committed!");
+    		}
+    		else if (r.type == LogType.UPDATE_RECORD) {
+    			clrs.add(Database.getLogFile().logCLR(trollback, r));		// write a CLR
+    			undone.add(r);
+    		}
+    		
+    		lsn = r.undoNext();											// previous record not undone yet
+    	}
+    	
+    	applyUndo(undone, clrs);
+    	for (LogRecord r : undone) {
+    		Database.getBufferPool().discardPage(r.diff.getPageId());	// discard the page from the buffer pool
+    	}
+    	
+    	Database.getLogFile().logAbort(trollback);
+    }
+
+    /**
+     * Write the before bytes of undone UPDATE records to the heap files, in
+     * the order they were undone, once the log is on disk up to their last
+     * CLR: the page LSNs must not get ahead of the log, and forcing it once
+     * for all of them costs one log force instead of one per record.
+     *
+     * @param clrs the LSNs of the CLRs written for the records
+     */
+    private void applyUndo(List<LogRecord> undone, List<Long> clrs) throws IOException {
+    	if (undone.isEmpty()) {
+    		return;
+    	}
+    	Database.getLogFile().flushTo(clrs.get(clrs.size() - 1));
+    	for (int i = 0; i < undone.size(); i++) {
+    		undone.get(i).diff.applyToDisk(false, clrs.get(i));
+    	}
+    }
+
+    /**
+     * Scan the log backward from the end for the last record of a
+     * transaction that is no longer active.
+     *
+     * @return its LSN, or -1 if the transaction has no records in the log
+     */
+    private long findLastRecord(long tid) throws IOException {
+    	Database.getLogFile().force();
+    	long initialOffset = readOnlyLog.getFilePointer();
+    	long found = LogRecord.NO_PREV_LSN;
+    	
+    	long end = readOnlyLog.length();
+    	while (end - LogFile.LONG_SIZE >= readOnlyLog.getStart()) {
+    		readOnlyLog.seek(end - LogFile.LONG_SIZE);
+    		long ptr = readOnlyLog.readLong();								// start of the previous record
+    		readOnlyLog.seek(ptr);
+    		DataInputStream in = readOnlyLog.readRecord();
+    		if (in == null) {
+    			throw new IOException("no intact log record at " + ptr);
+    		}
+    		in.readInt();
+    		if (in.readLong() == tid) {
+    			found = ptr;
+    			break;
+    		}
+    		end = ptr;
+    	}
+    	
+    	readOnlyLog.seek(initialOffset);
+    	return found;
+    }
+
+    /**
+     * Read the transaction record with the specified LSN, from the tail
+     * cache if it is still there.  Leaves the position of the log unchanged.
+     */
+    private LogRecord readRecord(long lsn) throws IOException {
+    	LogRecord r = Database.getLogFile().getCachedRecord(lsn);
+    	if (r != null) {
+    		return r;
+    	}
+    	
+    	Database.getLogFile().flushTo(lsn);				// it may still be in the log buffer
+    	long initialOffset = readOnlyLog.getFilePointer();
+    	readOnlyLog.seek(lsn);
+    	r = LogRecord.read(readOnlyLog);
+    	readOnlyLog.seek(initialOffset);
+    	return r;
     }
 
     /**
@@ -142,62 +241,135 @@ class LogFileRecovery {
      */
     public void recover() throws IOException {
     	Long initialOffset = readOnlyLog.getFilePointer();
-    	HashSet<Long> losers = new HashSet<Long>();
-    	HashSet<Long> undone = new HashSet<Long>();
+    	// losers, with the LSN of their last record
+    	HashMap<Long, Long> losers = new HashMap<Long, Long>();
     	print();
     	
-    	// locate the last checkpoint if one exists
-    	boolean checkpointfound = false;
-    	Long ptr = (long) -1;
-    	readOnlyLog.seek(readOnlyLog.length() - LogFile.LONG_SIZE);
+    	// locate the last checkpoint if one exists; redo starts at the
+    	// checkpoint or at the oldest change in its dirty page table
+    	Long ptr = readOnlyLog.getCheckpoint();
+    	long redoStart = readOnlyLog.getStart();
     	
-    	while (readOnlyLog.getFilePointer() >= LogFile.LONG_SIZE) {
-    		ptr = readOnlyLog.readLong();
+    	if (ptr != LogFile.NO_CHECKPOINT_ID && ptr >= readOnlyLog.getStart()) {
     		readOnlyLog.seek(ptr);
-    		int type = readOnlyLog.readInt();
-    		
-    		if (type == LogType.CHECKPOINT_RECORD) {
-    			checkpointfound = true;
-    			break;
+    		DataInputStream in = readOnlyLog.readRecord();
+    		if (in == null || in.readInt() != LogType.CHECKPOINT_RECORD) {
+    			throw new RuntimeException("control file does not point to a checkpoint!");
     		}
-    		
-    		try { 
-    			readOnlyLog.seek(ptr - LogFile.LONG_SIZE); 
-    		} catch (IOException e) {
-    			break;
+    		in.readLong();		// tid
+    		in.readLong();		// prevLSN
+    		long redoLSN = readCheckpoint(in, losers);
+            
+            redoStart = Math.min(readOnlyLog.getFilePointer(), redoLSN);
+    	}
+    	
+    	// redo phase; records already reflected by the page LSN on disk are
+    	// skipped.  This thread parses the log and hands each page's records,
+    	// in log order, to the worker that owns the page
+    	System.out.println("STARTING REDO at " + redoStart);
+    	readOnlyLog.seek(redoStart);
+    	redone = skipped = 0;
+    	long redoBegan = System.currentTimeMillis();
+    	RedoWorker[] workers = new RedoWorker[LogFile.getRedoThreads()];
+    	for (int i = 0; i < workers.length; i++) {
+    		workers[i] = new RedoWorker(i);
+    		workers[i].start();
+    	}
+    	
+    	try {
+    		redoScan(workers, losers);
+    	} finally {
+    		for (RedoWorker w : workers) {
+    			w.finish();
+    		}
+    	}
+    	for (RedoWorker w : workers) {
+    		redone += w.redone;
+    		skipped += w.skipped;
+    		if (w.error != null) {
+    			throw w.error;
     		}
     	}
+    	redoBytes = readOnlyLog.getFilePointer() - redoStart;
+    	redoMillis = System.currentTimeMillis() - redoBegan;
     	
-    	// redo phase
-    	System.out.println("STARTING REDO");
-    	if (checkpointfound) {
-    		readOnlyLog.readLong();
-    		int count = readOnlyLog.readInt();
-            for (int i = 0; i < count; i++) {
-                long nextTid = readOnlyLog.readLong();
-                losers.add(nextTid);
-            }
-            readOnlyLog.readLong();		// skip start of record ptr
-            
-            //System.out.println("Checkpoint located with losers: " + losers);
-            
-    	} else {
-    		if (ptr == (long) -1) {
-    			throw new RuntimeException("log is missing");
+    	System.out.println("REDO applied " + redone + " records, skipped " + skipped);
+    	
+    	// undo phase: follow the prevLSN chains of the losers, always undoing
+    	// the newest remaining record first; a CLR left by an earlier undo
+    	// jumps past the records it compensated
+    	System.out.println("STARTING UNDO with losers: " + losers.keySet());
+    	TreeMap<Long, Long> toUndo = new TreeMap<Long, Long>();	// LSN -> tid
+    	for (Map.Entry<Long, Long> e : losers.entrySet()) {
+    		if (e.getValue() != LogRecord.NO_PREV_LSN) {
+    			toUndo.put(e.getValue(), e.getKey());
+    			// CLRs continue the chain, so a crash during undo loses nothing
+    			Database.getLogFile().setLastLSN(e.getKey(), e.getValue());
     		}
-    		readOnlyLog.seek(ptr);
     	}
     	
-    	while (readOnlyLog.getFilePointer() < readOnlyLog.length()) {
-    		int type = readOnlyLog.readInt();
-    		long tid = readOnlyLog.readLong();
-    		int tableid;
-    		HeapFile hf;
+    	ArrayList<LogRecord> undone = new ArrayList<LogRecord>();
+    	ArrayList<Long> clrs = new ArrayList<Long>();
+    	while (!toUndo.isEmpty()) {
+    		Map.Entry<Long, Long> next = toUndo.pollLastEntry();
+    		long tid = next.getValue();
+    		readOnlyLog.seek(next.getKey());
+    		LogRecord r = LogRecord.read(readOnlyLog);
+    		
+    		switch (r.type) {
+	            case LogType.COMMIT_RECORD:
+	            case LogType.ABORT_RECORD:
+	            	// finished just as the checkpoint was taken
+	            	losers.remove(tid);
+	            	continue;
+	            case LogType.UPDATE_RECORD:
+	            	System.out.println("undo update " + r.lsn + " of " + tid);
+	                clrs.add(Database.getLogFile().logCLR(tid, r));
+	                undone.add(r);
+	                break;
+	            default:
+	            	break;
+    		}
+    		if (r.undoNext() != LogRecord.NO_PREV_LSN) {
+    			toUndo.put(r.undoNext(), tid);
+    		}
+    	}
+    	
+    	applyUndo(undone, clrs);
+    	
+    	// the pages redo and undo wrote, and their LSNs, are forced once here
+    	LogFile.forceTables();
+    	
+    	// write an abort record for every loser
+    	for (long tid : losers.keySet()) {
+    		Database.getLogFile().logAbort(tid);
+    	}
+    	
+    	// reset our seek position
+    	readOnlyLog.seek(initialOffset);
+    	
+    	print();
+    }
+
+    /**
+     * Parse the log from the current position to the end, tracking losers
+     * and the last record of each, and dispatching UPDATE and CLR records to
+     * the redo workers.
+     */
+    private void redoScan(RedoWorker[] workers, Map<Long, Long> losers) throws IOException {
+    	long lsn = readOnlyLog.getFilePointer();
+    	DataInputStream in;
+    	while ((in = readOnlyLog.readRecord()) != null) {
+    		int type = in.readInt();
+    		long tid = in.readLong();
+    		in.readLong();		// prevLSN
     		
     		switch (type) {
 	            case LogType.BEGIN_RECORD:
 	            	System.out.println("begin found " + tid);
-	                losers.add(tid);
+	            	if (!losers.containsKey(tid)) {
+	            		losers.put(tid, lsn);
+	            	}
 	                break;
 	            case LogType.COMMIT_RECORD:
 	            	System.out.println("commit found " + tid);
@@ -209,104 +381,155 @@ class LogFileRecovery {
 	                break;
 	            case LogType.UPDATE_RECORD:
 	            	System.out.println("update found " + tid);
-	                LogFile.readPageData(readOnlyLog);
-	                Page afterImg = LogFile.readPageData(readOnlyLog);
-	                
-	                tableid = afterImg.getId().getTableId();
-	                hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-	                hf.writePage(afterImg);
-	                
+	            	advance(losers, tid, lsn);
+	                dispatch(workers, PageDiff.read(in, true), lsn);
 	                break;
 	            case LogType.CLR_RECORD:
 	            	System.out.println("CLR found");
-	                afterImg = LogFile.readPageData(readOnlyLog);
-	                
-	                tableid = afterImg.getId().getTableId();
-	                hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-	                hf.writePage(afterImg);
-	                
+	            	advance(losers, tid, lsn);
+	            	in.readLong();		// undo-next LSN
+	                dispatch(workers, PageDiff.read(in, false), lsn);
 	                break;
 	            case LogType.CHECKPOINT_RECORD:
-	                throw new RuntimeException("Checkpoint record found - this should never happen!");
+	            	break;						// losers came from the last checkpoint
 	            default:
 	                throw new RuntimeException("Unexpected type!  Type = " + type);
     		}
-    		readOnlyLog.readLong();   // skip start of record ptr
+    		lsn = readOnlyLog.getFilePointer();
     	}
     	
-    	// undo phase
-    	System.out.println("STARTING UNDO with losers: " + losers);
-    	readOnlyLog.seek(readOnlyLog.length() - LogFile.LONG_SIZE);
-    	ptr = readOnlyLog.readLong();
-    	readOnlyLog.seek(ptr);
-    	
-    	while (!losers.isEmpty()) {
-    		int type = readOnlyLog.readInt();
-    		long tid = readOnlyLog.readLong();
-    		int tableid;
-    		HeapFile hf;
-    		
-    		switch (type) {
-	            case LogType.BEGIN_RECORD:
-	            	System.out.println("begin found");
-	                if (losers.contains(tid)) {
-	                	losers.remove(tid);
-	                	undone.add(tid);
-	                }
-	                break;
-	            case LogType.UPDATE_RECORD:
-	            	System.out.println("update found");
-	            	if (!losers.contains(tid)) {
-	            		LogFile.readPageData(readOnlyLog);
-	            		LogFile.readPageData(readOnlyLog);
-	            		break;
-	            	}
-	            	
-	                Page beforeImg = LogFile.readPageData(readOnlyLog);
-	                LogFile.readPageData(readOnlyLog);
-	                	                
-	                tableid = beforeImg.getId().getTableId();
-	                hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-	                hf.writePage(beforeImg);
-	                
-	                Database.getLogFile().logCLR(tid, beforeImg);
-	                
-	                break;
-	            case LogType.CLR_RECORD:
-	                LogFile.readPageData(readOnlyLog);
-	                break;
-	            case LogType.CHECKPOINT_RECORD:
-	            	int count = readOnlyLog.readInt();
-	                for (int i = 0; i < count; i++) {
-	                    readOnlyLog.readLong();
-	                }
-	                break;
-	            default:
-	            	System.out.println("something else found: " + type);
-	            	break;
+    	if (lsn < readOnlyLog.length()) {
+    		// a record torn by the crash ends the log
+    		Database.getLogFile().discardTail(lsn);
+    	}
+    }
+
+    /**
+     * Record lsn as the last record of tid if tid is a loser.  Redo may
+     * start before the checkpoint the losers were read from, so an older
+     * record never replaces a newer one.
+     */
+    private static void advance(Map<Long, Long> losers, long tid, long lsn) {
+    	Long last = losers.get(tid);
+    	if (last != null && last < lsn) {
+    		losers.put(tid, lsn);
+    	}
+    }
+
+    /**
+     * Hand a redo record to the worker that owns its page.
+     */
+    private void dispatch(RedoWorker[] workers, PageDiff diff, long lsn) throws IOException {
+    	int w = (diff.getPageId().hashCode() & Integer.MAX_VALUE) % workers.length;
+    	workers[w].add(new RedoRecord(diff, lsn));
+    }
+
+    private static class RedoRecord {
+    	final PageDiff diff;
+    	final long lsn;
+
+    	RedoRecord(PageDiff diff, long lsn) {
+    		this.diff = diff;
+    		this.lsn = lsn;
+    	}
+    }
+
+    /**
+     * Applies the redo records of the pages hashed to it in the order they
+     * were added, unless the page on disk already reflects them.  Since
+     * every record for a page goes to the same worker, pages are redone in
+     * log order while different pages are redone in parallel.
+     */
+    private static class RedoWorker extends Thread {
+    	private static final RedoRecord DONE = new RedoRecord(null, -1);
+
+    	// bounded, so parsing can't run arbitrarily far ahead of the workers
+    	private final BlockingQueue<RedoRecord> queue = new ArrayBlockingQueue<RedoRecord>(1024);
+    	int redone, skipped;
+    	volatile IOException error;
+
+    	RedoWorker(int i) {
+    		super("simpledb-redo-" + i);
+    		setDaemon(true);
+    	}
+
+    	void add(RedoRecord r) throws IOException {
+    		try {
+    			queue.put(r);
+    		} catch (InterruptedException e) {
+    			throw new IOException("interrupted during redo");
     		}
-    		ptr = readOnlyLog.readLong();
-    		
-    		try { 
-    			readOnlyLog.seek(ptr - LogFile.LONG_SIZE); 
-    			ptr = readOnlyLog.readLong();
-    	    	readOnlyLog.seek(ptr);
-    		} catch (IOException e) {
-    			break;
+    	}
+
+    	/**
+    	 * Wait until every record added so far has been applied.
+    	 */
+    	void finish() throws IOException {
+    		add(DONE);
+    		try {
+    			join();
+    		} catch (InterruptedException e) {
+    			throw new IOException("interrupted during redo");
     		}
     	}
-    	
-    	// create a CLR for every transaction in undone
-    	Iterator<Long> it = undone.iterator();
-    	
-    	while (it.hasNext()) {
-    		long tid = it.next();
-    		Database.getLogFile().logAbort(tid);
+
+    	public void run() {
+    		while (true) {
+    			RedoRecord r;
+    			try {
+    				r = queue.take();
+    			} catch (InterruptedException e) {
+    				continue;
+    			}
+    			if (r == DONE) {
+    				return;
+    			}
+    			if (error != null) {
+    				continue;		// keep draining so the parser doesn't block
+    			}
+    			try {
+    				if (r.diff.isOnDisk(r.lsn)) {
+    					skipped++;
+    				} else {
+    					r.diff.applyToDisk(true, r.lsn);
+    					redone++;
+    				}
+    			} catch (IOException e) {
+    				error = e;
+    			} catch (RuntimeException e) {
+    				error = new IOException(e.toString());
+    			}
+    		}
     	}
-    	
-    	// reset our seek position
-    	readOnlyLog.seek(initialOffset);
-    	
-    	print();
+    }
+
+    /**
+     * @return the number of UPDATE and CLR records the last call to recover
+     * applied during redo
+     */
+    public int getRedone() {
+    	return redone;
+    }
+
+    /**
+     * @return the number of UPDATE and CLR records the last call to recover
+     * skipped during redo because their pages were already up to date
+     */
+    public int getSkipped() {
+    	return skipped;
+    }
+
+    /**
+     * @return the number of bytes of log the last redo scanned
+     */
+    public long getRedoBytes() {
+    	return redoBytes;
+    }
+
+    /**
+     * @return how long the last redo took, in milliseconds
+     */
+    public long getRedoMillis() {
+    	return redoMillis;
     }
 }
@@ -0,0 +1,250 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * LogInput reads the log stored in a {@link LogStorage} through the
+ * DataInput interface, like a read-only RandomAccessFile whose file pointer
+ * is an LSN.  Used by LogFileRecovery for rollback, recovery and printing,
+ * and by LogReader.
+ * <p/>
+ * The log is read a window of {@link #windowSize} bytes at a time, so that
+ * reading a record costs a copy instead of a system call per field.  Reads
+ * that move forward fill the window from the position on; reads just before
+ * the window, as backward scans and prevLSN chains do, fill it so that it
+ * ends where the read ends, so the records before are read along with it.
+ * The window is dropped whenever the storage replaces bytes it may hold
+ * (see {@link LogStorage#getGeneration}) and whenever readRecord finds no
+ * intact record, since the record may still have been being written.
+ */
+class LogInput implements DataInput {
+
+    /**
+     * Size of the window of the log read at a time
+     */
+    static int windowSize = Integer.getInteger("simpledb.LogReadWindow", 1 << 16);
+
+    private final LogStorage storage;
+    private long pos;
+    private final byte[] scratch = new byte[LogFile.LONG_SIZE];
+
+    private byte[] window;
+    private long windowStart = 0;
+    private int windowLength = 0;
+    private long windowGeneration;
+    private long fills = 0;
+
+    LogInput(LogStorage storage) {
+        this.storage = storage;
+        this.pos = storage.getStart();
+    }
+
+    /**
+     * @return the LSN the next read will start at
+     */
+    long getFilePointer() {
+        return pos;
+    }
+
+    void seek(long lsn) throws IOException {
+        if (lsn < 0) {
+            throw new IOException("negative seek offset");
+        }
+        pos = lsn;
+    }
+
+    /**
+     * @return the LSN just past the end of the log
+     */
+    long length() {
+        return storage.length();
+    }
+
+    /**
+     * @return the LSN of the last checkpoint, or LogFile.NO_CHECKPOINT_ID
+     */
+    long getCheckpoint() throws IOException {
+        return storage.getCheckpoint();
+    }
+
+    /**
+     * @return the id of the log, which changes when it is reset
+     */
+    long getLogId() {
+        return storage.getLogId();
+    }
+
+    /**
+     * @return the LSN of the first record still in the log
+     */
+    long getStart() {
+        return storage.getStart();
+    }
+
+    /**
+     * Read the whole log record at the current position into memory, check
+     * its length and checksum, and move past it.
+     *
+     * @return the record from its type through its payload, or null (with
+     * the position unchanged) if there is no intact record at the current
+     * position: the end of the log, possibly torn by a crash
+     */
+    DataInputStream readRecord() throws IOException {
+        long start = pos;
+        long available = length() - start;
+        if (available < LogFile.RECORD_HEADER_SIZE + LogFile.RECORD_TRAILER_SIZE) {
+            return null;
+        }
+        int length = readInt();
+        if (length < LogFile.RECORD_HEADER_SIZE + LogFile.RECORD_TRAILER_SIZE || length > available) {
+            pos = start;
+            windowLength = 0;
+            return null;
+        }
+
+        byte[] record = new byte[length];
+        ByteBuffer.wrap(record).putInt(length);
+        readFully(record, LogFile.INT_SIZE, length - LogFile.INT_SIZE);
+
+        int checked = length - LogFile.RECORD_TRAILER_SIZE;
+        Crc32c crc = new Crc32c();
+        crc.update(record, 0, checked);
+        ByteBuffer trailer = ByteBuffer.wrap(record, checked, LogFile.RECORD_TRAILER_SIZE);
+        if (trailer.getInt() != (int) crc.getValue() || trailer.getLong() != start) {
+            pos = start;
+            windowLength = 0;
+            return null;
+        }
+        return new DataInputStream(new ByteArrayInputStream(record, LogFile.INT_SIZE,
+                checked - LogFile.INT_SIZE));
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        if (len >= windowSize) {
+            // too big for the window, read it directly
+            ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+            while (dst.hasRemaining()) {
+                int n = storage.read(dst, pos);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                pos += n;
+            }
+            return;
+        }
+        while (len > 0) {
+            if (!inWindow(pos)) {
+                fill(pos, len);
+            }
+            int n = (int) Math.min(len, windowStart + windowLength - pos);
+            System.arraycopy(window, (int) (pos - windowStart), b, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private boolean inWindow(long lsn) {
+        return windowLength > 0 && windowGeneration == storage.getGeneration() &&
+                lsn >= windowStart && lsn < windowStart + windowLength;
+    }
+
+    /**
+     * Fill the window for a read of len bytes at lsn.
+     */
+    private void fill(long lsn, int len) throws IOException {
+        if (window == null || window.length != windowSize) {
+            window = new byte[windowSize];
+        }
+        long from = lsn;
+        if (windowLength > 0 && lsn < windowStart) {
+            // reading backward: keep the bytes before lsn in the window
+            from = Math.max(storage.getStart(), lsn + len - window.length);
+        }
+        windowGeneration = storage.getGeneration();
+        windowStart = from;
+        windowLength = 0;
+        ByteBuffer dst = ByteBuffer.wrap(window);
+        while (dst.hasRemaining()) {
+            int n = storage.read(dst, from + dst.position());
+            if (n <= 0) {
+                break;
+            }
+        }
+        windowLength = dst.position();
+        fills++;
+        if (!inWindow(lsn)) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * @return the number of times the window has been filled
+     */
+    long getFills() {
+        return fills;
+    }
+
+    public int skipBytes(int n) throws IOException {
+        int skipped = (int) Math.max(0, Math.min(n, length() - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        readFully(scratch, 0, 1);
+        return scratch[0];
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    public short readShort() throws IOException {
+        readFully(scratch, 0, 2);
+        return (short) (((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff));
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    public int readInt() throws IOException {
+        readFully(scratch, 0, 4);
+        return ByteBuffer.wrap(scratch, 0, 4).getInt();
+    }
+
+    public long readLong() throws IOException {
+        readFully(scratch, 0, 8);
+        return ByteBuffer.wrap(scratch, 0, 8).getLong();
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public String readLine() throws IOException {
+        throw new UnsupportedOperationException("the log is binary");
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -0,0 +1,480 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * LogReader is a change stream over the log: it tails a {@link LogFile} and
+ * returns the tuples that committed transactions inserted and deleted, in
+ * commit order, for feeding caches and indexes without scanning tables.
+ * <p/>
+ * The changes are decoded from the UPDATE records of each transaction.  All
+ * the UPDATE records a transaction logs for a page are diffs against the
+ * page as it was when the transaction began (BufferPool only resets before
+ * images at commit), so the last one of each page holds all the changes of
+ * the transaction to it.  The slots whose header bit changed, or whose bytes
+ * changed while staying used, are the deleted and inserted tuples; PageDiff
+ * logs changed slots whole so that they can be decoded.  Transactions that
+ * abort, or that are undone by recovery, are dropped.
+ * <p/>
+ * Only records the log has forced to disk are read, so a change is never
+ * returned before its commit is durable.
+ * <p/>
+ * Memory: the diffs of in-flight transactions are kept until they add up to
+ * {@link #setMaxBufferedBytes}; past that, a transaction keeps nothing and
+ * its records are found again at commit by following its prevLSN chain.
+ * The same happens to transactions that began before the reader's starting
+ * point.  Only one page of changes is decoded at a time.
+ * <p/>
+ * Cursor: {@link #getRestartLSN} and {@link #getCommittedLSN} describe the
+ * reader's position.  A new reader constructed with them returns exactly
+ * the changes of the transactions this one has not finished returning; a
+ * transaction that was returned partially is returned again, whole.  The
+ * reader pins the log from its restart LSN, the way {@link Backup} does, so
+ * that checkpoints don't truncate what it still needs, until {@link #close}.
+ * A saved cursor is valid as long as the log still holds the restart LSN,
+ * i.e. until a checkpoint truncates it away or the log is reset.
+ *
+ * @see LogFile
+ * @see PageDiff
+ */
+public class LogReader {
+
+    /**
+     * An inserted or deleted tuple
+     */
+    public static class Change {
+        public enum Kind {
+            INSERT, DELETE
+        }
+
+        private final Kind kind;
+        private final long tid;
+        private final long commitLSN;
+        private final Tuple tuple;
+
+        Change(Kind kind, long tid, long commitLSN, Tuple tuple) {
+            this.kind = kind;
+            this.tid = tid;
+            this.commitLSN = commitLSN;
+            this.tuple = tuple;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the id of the transaction that made the change
+         */
+        public long getTransactionId() {
+            return tid;
+        }
+
+        /**
+         * @return the LSN of the COMMIT record of the transaction
+         */
+        public long getCommitLSN() {
+            return commitLSN;
+        }
+
+        public int getTableId() {
+            return tuple.getRecordId().getPageId().getTableId();
+        }
+
+        public RecordId getRecordId() {
+            return tuple.getRecordId();
+        }
+
+        /**
+         * @return the tuple inserted, or the tuple as it was before it was
+         * deleted
+         */
+        public Tuple getTuple() {
+            return tuple;
+        }
+
+        public String toString() {
+            return kind + " " + getTableId() + ":" + getRecordId().getPageId().pageNumber() + ":" +
+                    getRecordId().tupleno() + " " + tuple;
+        }
+    }
+
+    /**
+     * The part of an in-flight transaction the reader has seen
+     */
+    private static class Pending {
+        final long firstLSN;
+        // the last UPDATE record of each page, unless the diffs were dropped
+        LinkedHashMap<PageId, LogRecord> updates = new LinkedHashMap<PageId, LogRecord>();
+        int bytes;
+
+        Pending(long firstLSN) {
+            this.firstLSN = firstLSN;
+        }
+    }
+
+    /**
+     * Default for the most bytes of diffs kept for in-flight transactions
+     */
+    static int defaultMaxBufferedBytes = Integer.getInteger("simpledb.LogReaderBufferSize", 1 << 20);
+
+    private final LogFile log;
+    private final LogInput in;
+    private final long logId;
+    private int maxBufferedBytes = defaultMaxBufferedBytes;
+    // the LSN the log is pinned from, or -1
+    private long pinned = -1;
+
+    private final HashMap<Long, Pending> pending = new HashMap<Long, Pending>();
+    private int bufferedBytes = 0;
+
+    private long committedLSN;
+
+    // the transaction whose changes are being returned
+    private long emitting = LogFile.NO_TID;
+    private long emittingCommit;
+    private long emittingEnd;
+    private final LinkedList<LogRecord> toDecode = new LinkedList<LogRecord>();
+    private final LinkedList<Change> ready = new LinkedList<Change>();
+
+    /**
+     * Start reading the log at the specified LSN, which must be the LSN of a
+     * record or the end of the log (see {@link LogFile#getCurrentLSN}).
+     */
+    public LogReader(LogFile log, long lsn) throws IOException {
+        this(log, lsn, lsn);
+    }
+
+    /**
+     * Resume reading the log at a cursor taken from {@link #getRestartLSN}
+     * and {@link #getCommittedLSN}.
+     */
+    public LogReader(LogFile log, long restartLSN, long committedLSN) throws IOException {
+        this(log.newInput(), log, restartLSN, committedLSN);
+    }
+
+    /**
+     * Read the log through the specified input.
+     *
+     * @param log the log, or null to read every intact record of a log
+     *            written by another process (see {@link Standby}); such a
+     *            log is not pinned
+     */
+    LogReader(LogInput in, LogFile log, long restartLSN, long committedLSN) throws IOException {
+        this.log = log;
+        this.in = in;
+        this.logId = in.getLogId();
+        if (restartLSN < in.getStart()) {
+            throw new IOException("log starts at " + in.getStart() + ", after " + restartLSN);
+        }
+        in.seek(restartLSN);
+        this.committedLSN = committedLSN;
+        if (log != null) {
+            log.pin(restartLSN);
+            pinned = restartLSN;
+        }
+    }
+
+    /**
+     * Let checkpoints truncate the log the reader still needs.  The reader
+     * must not be used afterwards.
+     */
+    public void close() {
+        if (pinned != -1) {
+            log.unpin(pinned);
+            pinned = -1;
+        }
+    }
+
+    /**
+     * Move the pin up to the restart LSN.
+     */
+    private void movePin() {
+        if (pinned != -1) {
+            long lsn = getRestartLSN();
+            if (lsn > pinned) {
+                log.repin(pinned, lsn);
+                pinned = lsn;
+            }
+        }
+    }
+
+    /**
+     * Set the most bytes of diffs kept for in-flight transactions.
+     */
+    public void setMaxBufferedBytes(int bytes) {
+        this.maxBufferedBytes = bytes;
+    }
+
+    /**
+     * @return the LSN a new reader has to start at to return every change
+     * this one hasn't returned yet
+     */
+    public long getRestartLSN() {
+        long lsn = in.getFilePointer();
+        for (Pending p : pending.values()) {
+            lsn = Math.min(lsn, p.firstLSN);
+        }
+        if (emitting != LogFile.NO_TID) {
+            lsn = Math.min(lsn, emittingCommit);
+        }
+        return lsn;
+    }
+
+    /**
+     * @return the LSN up to which the changes of committed transactions have
+     * all been returned
+     */
+    public long getCommittedLSN() {
+        return committedLSN;
+    }
+
+    /**
+     * @return the LSN of the next log record to read
+     */
+    public long getPosition() {
+        return in.getFilePointer();
+    }
+
+    /**
+     * @return the next change, or null if the changes of all the
+     * transactions committed in the durable part of the log have been
+     * returned
+     */
+    public Change next() throws IOException {
+        checkLogId();
+        while (ready.isEmpty()) {
+            if (!toDecode.isEmpty()) {
+                LogRecord r = toDecode.removeFirst();
+                if (r.diff == null) {
+                    r = readRecord(r.lsn);
+                }
+                decode(r.diff);
+                continue;
+            }
+            finishTransaction();
+            if (!readNext()) {
+                movePin();
+                return null;
+            }
+        }
+        Change c = ready.removeFirst();
+        if (ready.isEmpty() && toDecode.isEmpty()) {
+            finishTransaction();
+        }
+        movePin();
+        return c;
+    }
+
+    /**
+     * Skip to the next committed transaction and return its changes as the
+     * last UPDATE record of each page it changed, with their diffs, instead
+     * of as tuples.  The cursor moves past the transaction at the next call,
+     * or at {@link #finishTransaction}.  Not to be mixed with next().
+     *
+     * @return the records, or null if there is no committed transaction left
+     * in the durable part of the log
+     */
+    List<LogRecord> nextTransaction() throws IOException {
+        checkLogId();
+        finishTransaction();
+        while (emitting == LogFile.NO_TID) {
+            if (!readNext()) {
+                movePin();
+                return null;
+            }
+        }
+        ArrayList<LogRecord> records = new ArrayList<LogRecord>();
+        for (LogRecord r : toDecode) {
+            records.add(r.diff == null ? readRecord(r.lsn) : r);
+        }
+        toDecode.clear();
+        movePin();
+        return records;
+    }
+
+    private void checkLogId() throws IOException {
+        if (in.getLogId() != logId) {
+            throw new IOException("the log has been reset since the reader started");
+        }
+    }
+
+    /**
+     * Move the cursor past the transaction whose changes have all been
+     * returned.
+     */
+    void finishTransaction() {
+        if (emitting != LogFile.NO_TID) {
+            emitting = LogFile.NO_TID;
+            committedLSN = emittingEnd;
+        }
+    }
+
+    /**
+     * Read and process the next durable log record.
+     *
+     * @return false if there is none
+     */
+    private boolean readNext() throws IOException {
+        long lsn = in.getFilePointer();
+        LogRecord r = LogRecord.readNext(in);
+        if (r == null) {
+            return false;
+        }
+        if (log != null && in.getFilePointer() > log.getFlushedLSN()) {
+            in.seek(lsn);
+            return false;
+        }
+
+        switch (r.type) {
+            case LogType.BEGIN_RECORD:
+            case LogType.UPDATE_RECORD:
+                Pending p = pending.get(r.tid);
+                if (p == null) {
+                    p = new Pending(r.lsn);
+                    if (r.prevLSN != LogRecord.NO_PREV_LSN) {
+                        p.updates = null;   // began before the reader's start
+                    }
+                    pending.put(r.tid, p);
+                }
+                if (r.type == LogType.UPDATE_RECORD && p.updates != null) {
+                    buffer(p, r);
+                }
+                break;
+            case LogType.ABORT_RECORD:
+                drop(r.tid);
+                break;
+            case LogType.COMMIT_RECORD:
+                Pending c = pending.get(r.tid);
+                drop(r.tid);
+                if (r.lsn < committedLSN) {
+                    break;      // returned before the cursor was taken
+                }
+                emitting = r.tid;
+                emittingCommit = r.lsn;
+                emittingEnd = in.getFilePointer();
+                if (c != null && c.updates != null) {
+                    toDecode.addAll(c.updates.values());
+                } else if (r.prevLSN != LogRecord.NO_PREV_LSN) {
+                    toDecode.addAll(walkChain(r.prevLSN));
+                }
+                break;
+            default:
+                // CLRs belong to transactions that abort; checkpoints carry no changes
+                break;
+        }
+        return true;
+    }
+
+    private void buffer(Pending p, LogRecord r) {
+        LogRecord old = p.updates.put(r.diff.getPageId(), r);
+        int delta = r.size - (old == null ? 0 : old.size);
+        p.bytes += delta;
+        bufferedBytes += delta;
+        if (bufferedBytes > maxBufferedBytes) {
+            // keep nothing of the transaction, its records are read again at commit
+            bufferedBytes -= p.bytes;
+            p.bytes = 0;
+            p.updates = null;
+        }
+    }
+
+    private void drop(long tid) {
+        Pending p = pending.remove(tid);
+        if (p != null) {
+            bufferedBytes -= p.bytes;
+        }
+    }
+
+    /**
+     * Follow a transaction's prevLSN chain back to its first record.
+     *
+     * @return the last UPDATE record of each page the transaction changed,
+     * without their diffs
+     */
+    private List<LogRecord> walkChain(long lsn) throws IOException {
+        LinkedHashMap<PageId, LogRecord> last = new LinkedHashMap<PageId, LogRecord>();
+        while (lsn != LogRecord.NO_PREV_LSN) {
+            LogRecord r = readRecord(lsn);
+            if (r.type == LogType.UPDATE_RECORD && !last.containsKey(r.diff.getPageId())) {
+                last.put(r.diff.getPageId(), new LogRecord(r.lsn, r.type, r.tid, r.prevLSN, null, r.size));
+            }
+            lsn = r.prevLSN;
+        }
+        ArrayList<LogRecord> result = new ArrayList<LogRecord>(last.values());
+        Collections.reverse(result);
+        return result;
+    }
+
+    private LogRecord readRecord(long lsn) throws IOException {
+        long pos = in.getFilePointer();
+        if (lsn < in.getStart()) {
+            throw new IOException("log record " + lsn + " has been truncated");
+        }
+        in.seek(lsn);
+        try {
+            return LogRecord.read(in);
+        } finally {
+            in.seek(pos);
+        }
+    }
+
+    /**
+     * Turn the changed slots of a heap page diff into changes: a slot that
+     * was used before is a deleted tuple and a slot that is used after an
+     * inserted one.  Bytes outside the ranges of the diff are left zero,
+     * which is what empty slots hold on disk.
+     */
+    private void decode(PageDiff diff) {
+        PageId pid = diff.getPageId();
+        TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+        byte[] empty = new byte[BufferPool.getPageSize()];
+        byte[] before = diff.undo(empty);
+        byte[] after = diff.redo(empty);
+        int first = HeapPage.headerSize(td);
+        int size = td.getSize();
+
+        for (int slot = 0; slot < HeapPage.numSlots(td); slot++) {
+            boolean usedBefore = (before[slot / 8] & (1 << (slot % 8))) != 0;
+            boolean usedAfter = (after[slot / 8] & (1 << (slot % 8))) != 0;
+            int off = first + slot * size;
+            boolean same = usedBefore == usedAfter && rangeEquals(before, after, off, size);
+            if (same) {
+                continue;
+            }
+            RecordId rid = new RecordId(pid, slot);
+            if (usedBefore) {
+                ready.add(new Change(Change.Kind.DELETE, emitting, emittingCommit,
+                        parseTuple(td, rid, before, off)));
+            }
+            if (usedAfter) {
+                ready.add(new Change(Change.Kind.INSERT, emitting, emittingCommit,
+                        parseTuple(td, rid, after, off)));
+            }
+        }
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Tuple parseTuple(TupleDesc td, RecordId rid, byte[] data, int off) {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, off, td.getSize()));
+        Tuple t = new Tuple(td);
+        t.setRecordId(rid);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            throw new RuntimeException("unparsable tuple in log", e);
+        }
+        return t;
+    }
+}
@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * LogRecord is a log record of a transaction as rollback and undo see it:
+ * its type, its transaction, the LSN of the previous record of the same
+ * transaction and, for UPDATE and CLR records, its page diff.  Following
+ * prevLSN from a transaction's last record visits exactly the records of
+ * that transaction, newest first.  Undo instead goes on from a CLR at its
+ * undoNextLSN, skipping the records the CLR's undo already compensated.
+ * <p/>
+ * LogFile keeps the most recently logged records in memory, so rollback of
+ * a short transaction usually doesn't read the log at all.
+ */
+class LogRecord {
+
+    /**
+     * prevLSN of the first record of a transaction
+     */
+    static final long NO_PREV_LSN = -1;
+
+    final long lsn;
+    final int type;
+    final long tid;
+    final long prevLSN;
+    final PageDiff diff;    // null except for UPDATE and CLR records
+    final int size;         // serialized length in bytes
+    final long undoNextLSN; // NO_PREV_LSN except for CLR records
+
+    LogRecord(long lsn, int type, long tid, long prevLSN, PageDiff diff, int size) {
+        this(lsn, type, tid, prevLSN, diff, size, NO_PREV_LSN);
+    }
+
+    LogRecord(long lsn, int type, long tid, long prevLSN, PageDiff diff, int size, long undoNextLSN) {
+        this.lsn = lsn;
+        this.type = type;
+        this.tid = tid;
+        this.prevLSN = prevLSN;
+        this.diff = diff;
+        this.size = size;
+        this.undoNextLSN = undoNextLSN;
+    }
+
+    /**
+     * @return the LSN of the record undo has to look at after this one
+     */
+    long undoNext() {
+        return (type == LogType.CLR_RECORD) ? undoNextLSN : prevLSN;
+    }
+
+    /**
+     * Read the transaction record at the current position of the log,
+     * leaving the position just past it.
+     */
+    static LogRecord read(LogInput log) throws IOException {
+        long lsn = log.getFilePointer();
+        LogRecord r = readNext(log);
+        if (r == null) {
+            throw new IOException("no intact log record at " + lsn);
+        }
+        if (r.type == LogType.CHECKPOINT_RECORD) {
+            throw new IOException("not a transaction record at " + lsn + ", type = " + r.type);
+        }
+        return r;
+    }
+
+    /**
+     * Read the record at the current position of the log, leaving the
+     * position just past it.  Checkpoint records are returned without their
+     * payload.
+     *
+     * @return the record, or null (with the position unchanged) if there is
+     * no intact record at the current position
+     */
+    static LogRecord readNext(LogInput log) throws IOException {
+        long lsn = log.getFilePointer();
+        DataInputStream in = log.readRecord();
+        if (in == null) {
+            return null;
+        }
+        int type = in.readInt();
+        long tid = in.readLong();
+        long prevLSN = in.readLong();
+
+        PageDiff diff = null;
+        long undoNextLSN = NO_PREV_LSN;
+        switch (type) {
+            case LogType.UPDATE_RECORD:
+                diff = PageDiff.read(in, true);
+                break;
+            case LogType.CLR_RECORD:
+                undoNextLSN = in.readLong();
+                diff = PageDiff.read(in, false);
+                break;
+            case LogType.BEGIN_RECORD:
+            case LogType.COMMIT_RECORD:
+            case LogType.ABORT_RECORD:
+            case LogType.CHECKPOINT_RECORD:
+                break;
+            default:
+                throw new IOException("unknown log record at " + lsn + ", type = " + type);
+        }
+        return new LogRecord(lsn, type, tid, prevLSN, diff, (int) (log.getFilePointer() - lsn), undoNextLSN);
+    }
+}
@@ -0,0 +1,443 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogStorage stores the log as a sequence of fixed-size segment files, so
+ * that the part of the log that is no longer needed for rollback or recovery
+ * can be deleted a segment at a time.
+ * <p/>
+ * The log is addressed by LSN: byte i of the log lives at offset
+ * i % segmentSize of segment i / segmentSize.  Segment n of the log named
+ * <tt>log</tt> is stored in <tt>log.n</tt> (zero padded), and <tt>log</tt>
+ * itself is a small control file holding three long integers: the LSN of
+ * the last checkpoint (or -1 if there is none), the LSN of the first record
+ * still in the log, and a random id that changes every time the log is
+ * reset, so that LSNs recorded elsewhere can be tied to this log; followed
+ * by the integer version of the record format the log was written in.
+ *
+ * @Threadsafe
+ */
+class LogStorage {
+
+    static final int CHECKPOINT_OFFSET = 0;
+    static final int START_OFFSET = LogFile.LONG_SIZE;
+    static final int LOG_ID_OFFSET = 2 * LogFile.LONG_SIZE;
+    static final int VERSION_OFFSET = 3 * LogFile.LONG_SIZE;
+
+    private final File control;
+    private final long segmentSize;
+    private final boolean readOnly;
+    private final RandomAccessFile controlFile;
+
+    /**
+     * Open segment files, by segment number
+     */
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+
+    /**
+     * Segments written since the last call to force()
+     */
+    private final HashSet<Long> unforced = new HashSet<Long>();
+
+    private long start;   // LSN of the first byte still in the log
+    private long end;     // LSN just past the last byte written
+    private long logId;
+    private int formatVersion = LogFile.LOG_FORMAT_VERSION;
+
+    /**
+     * Changes whenever bytes already in the log may be replaced, so that
+     * readers know to drop what they have buffered
+     */
+    private long generation = 0;
+
+    /**
+     * Open the log stored in the specified control file and the segment
+     * files next to it.
+     *
+     * @param control     the control file
+     * @param segmentSize the size in bytes of every segment file
+     */
+    LogStorage(File control, long segmentSize) throws IOException {
+        this(control, segmentSize, false);
+    }
+
+    /**
+     * Open the log stored in the specified control file and the segment
+     * files next to it, only for reading if readOnly is set, e.g. the log
+     * of another process.  A read-only log must exist.
+     */
+    LogStorage(File control, long segmentSize, boolean readOnly) throws IOException {
+        this.control = control;
+        this.segmentSize = segmentSize;
+        this.readOnly = readOnly;
+        controlFile = new RandomAccessFile(control, readOnly ? "r" : "rw");
+
+        if (controlFile.length() < 2 * LogFile.LONG_SIZE) {
+            start = 0;
+        } else {
+            controlFile.seek(START_OFFSET);
+            start = controlFile.readLong();
+        }
+        if (controlFile.length() >= 3 * LogFile.LONG_SIZE) {
+            controlFile.seek(LOG_ID_OFFSET);
+            logId = controlFile.readLong();
+        }
+        if (controlFile.length() >= VERSION_OFFSET + LogFile.INT_SIZE) {
+            controlFile.seek(VERSION_OFFSET);
+            formatVersion = controlFile.readInt();
+        } else if (controlFile.length() > 0) {
+            formatVersion = 1;      // written before the format was versioned
+        }
+
+        end = start;
+        for (long seg : existingSegments()) {
+            end = Math.max(end, seg * segmentSize + segmentFile(seg).length());
+        }
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return the id of this log, which changes whenever the log is reset
+     */
+    synchronized long getLogId() {
+        return logId;
+    }
+
+    /**
+     * @return the version of the record format the log was written in
+     */
+    synchronized int getFormatVersion() {
+        return formatVersion;
+    }
+
+    /**
+     * @return the LSN of the first byte still in the log
+     */
+    synchronized long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the LSN just past the last byte written to the log
+     */
+    synchronized long length() {
+        return end;
+    }
+
+    /**
+     * @return the LSN of the last checkpoint recorded with setCheckpoint,
+     * or LogFile.NO_CHECKPOINT_ID
+     */
+    synchronized long getCheckpoint() throws IOException {
+        if (controlFile.length() < LogFile.LONG_SIZE) {
+            return LogFile.NO_CHECKPOINT_ID;
+        }
+        controlFile.seek(CHECKPOINT_OFFSET);
+        return controlFile.readLong();
+    }
+
+    /**
+     * Durably record the LSN of the last checkpoint.
+     */
+    synchronized void setCheckpoint(long lsn) throws IOException {
+        controlFile.seek(CHECKPOINT_OFFSET);
+        controlFile.writeLong(lsn);
+        controlFile.getChannel().force(true);
+    }
+
+    /**
+     * Throw away the whole log and start an empty one at LSN 0.
+     */
+    synchronized void reset() throws IOException {
+        reset(LogFile.NO_CHECKPOINT_ID, 0, new Random().nextLong());
+    }
+
+    /**
+     * Throw away the whole log and start an empty one at the specified LSN.
+     */
+    private synchronized void reset(long checkpoint, long start, long logId) throws IOException {
+        for (RandomAccessFile f : segments.values()) {
+            f.close();
+        }
+        segments.clear();
+        unforced.clear();
+        for (long seg : existingSegments()) {
+            segmentFile(seg).delete();
+        }
+
+        this.start = end = start;
+        generation++;
+        this.logId = logId;
+        controlFile.setLength(0);
+        controlFile.writeLong(checkpoint);
+        controlFile.writeLong(start);
+        controlFile.writeLong(logId);
+        formatVersion = LogFile.LOG_FORMAT_VERSION;
+        controlFile.writeInt(formatVersion);
+        controlFile.getChannel().force(true);
+    }
+
+    /**
+     * Copy the part of the log between two LSNs to a new log with the same
+     * id, stored in the specified control file and segment files next to
+     * it.  The copy starts at from, ends at to and has its last checkpoint
+     * at checkpoint.  Reads the segments without blocking writers.
+     */
+    void copyTo(File dest, long from, long to, long checkpoint) throws IOException {
+        copyTo(dest, segmentSize, from, to, checkpoint);
+    }
+
+    /**
+     * Copy the part of the log between two LSNs to a new log with the same
+     * id stored in segments of the specified size (see above).
+     */
+    void copyTo(File dest, long destSegmentSize, long from, long to, long checkpoint) throws IOException {
+        LogStorage copy = new LogStorage(dest, destSegmentSize);
+        try {
+            copy.reset(checkpoint, from, getLogId());
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            long lsn = from;
+            while (lsn < to) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), to - lsn));
+                int n = read(buf, lsn);
+                if (n < 0) {
+                    throw new EOFException("log ends at " + lsn + ", before " + to);
+                }
+                buf.flip();
+                copy.write(buf, lsn);
+                lsn += n;
+            }
+            copy.force();
+        } finally {
+            copy.close();
+        }
+    }
+
+    /**
+     * Write data to the log at the specified LSN, spreading it over as many
+     * segments as needed.
+     */
+    void write(ByteBuffer data, long lsn) throws IOException {
+        while (data.hasRemaining()) {
+            long seg = lsn / segmentSize;
+            long offset = lsn % segmentSize;
+            int n = (int) Math.min(data.remaining(), segmentSize - offset);
+
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + n);
+            FileChannel ch = segment(seg, true).getChannel();
+            while (part.hasRemaining()) {
+                offset += ch.write(part, offset);
+            }
+
+            data.position(data.position() + n);
+            lsn += n;
+            synchronized (this) {
+                unforced.add(seg);
+                end = Math.max(end, lsn);
+            }
+        }
+    }
+
+    /**
+     * Read bytes of the log starting at the specified LSN into dst.  Reads
+     * at most up to the end of the segment holding lsn.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    int read(ByteBuffer dst, long lsn) throws IOException {
+        long limit;
+        RandomAccessFile f;
+        synchronized (this) {
+            if (lsn < start) {
+                throw new IOException("log record " + lsn + " has been truncated");
+            }
+            if (lsn >= end) {
+                return -1;
+            }
+            limit = Math.min(end, (lsn / segmentSize + 1) * segmentSize);
+            f = segment(lsn / segmentSize, false);
+        }
+        if (f == null) {
+            throw new IOException("log segment for record " + lsn + " is missing");
+        }
+
+        ByteBuffer part = dst.duplicate();
+        part.limit(part.position() + (int) Math.min(dst.remaining(), limit - lsn));
+        int n = f.getChannel().read(part, lsn % segmentSize);
+        if (n > 0) {
+            dst.position(dst.position() + n);
+        }
+        return n;
+    }
+
+    /**
+     * Force every segment written since the last force to disk.
+     */
+    void force() throws IOException {
+        ArrayList<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+        synchronized (this) {
+            for (long seg : unforced) {
+                RandomAccessFile f = segments.get(seg);
+                if (f != null) {
+                    files.add(f);
+                }
+            }
+            unforced.clear();
+        }
+        for (RandomAccessFile f : files) {
+            f.getChannel().force(true);
+        }
+    }
+
+    /**
+     * Drop the part of the log before the specified LSN, deleting every
+     * segment that lies entirely before it.
+     *
+     * @return the number of segments deleted
+     */
+    synchronized int truncate(long lsn) throws IOException {
+        if (lsn <= start) {
+            return 0;
+        }
+        lsn = Math.min(lsn, end);
+
+        // make the new start durable before the old segments go away
+        start = lsn;
+        controlFile.seek(START_OFFSET);
+        controlFile.writeLong(start);
+        controlFile.getChannel().force(true);
+
+        int deleted = 0;
+        for (long seg : existingSegments()) {
+            if ((seg + 1) * segmentSize <= start) {
+                RandomAccessFile f = segments.remove(seg);
+                if (f != null) {
+                    f.close();
+                }
+                unforced.remove(seg);
+                segmentFile(seg).delete();
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Drop the end of the log from the specified LSN on, e.g. a record torn
+     * by a crash, so that new records are appended in its place.
+     */
+    synchronized void truncateEnd(long lsn) throws IOException {
+        if (lsn >= end) {
+            return;
+        }
+        end = Math.max(lsn, start);
+        generation++;
+        for (long seg : existingSegments()) {
+            if (seg * segmentSize >= end) {
+                RandomAccessFile f = segments.remove(seg);
+                if (f != null) {
+                    f.close();
+                }
+                unforced.remove(seg);
+                segmentFile(seg).delete();
+            } else if ((seg + 1) * segmentSize > end) {
+                RandomAccessFile f = segment(seg, false);
+                f.setLength(end - seg * segmentSize);
+                f.getChannel().force(true);
+            }
+        }
+    }
+
+    /**
+     * Re-read the start, id and end of the log from disk, for reading a log
+     * that another process is writing.
+     */
+    synchronized void refresh() throws IOException {
+        long oldId = logId;
+        long oldEnd = end;
+        if (controlFile.length() >= 3 * LogFile.LONG_SIZE) {
+            controlFile.seek(START_OFFSET);
+            start = controlFile.readLong();
+            controlFile.seek(LOG_ID_OFFSET);
+            logId = controlFile.readLong();
+        }
+        end = start;
+        for (long seg : existingSegments()) {
+            end = Math.max(end, seg * segmentSize + segmentFile(seg).length());
+        }
+        if (logId != oldId || end < oldEnd) {
+            generation++;
+        }
+    }
+
+    /**
+     * @return the number of segment files currently on disk
+     */
+    synchronized int numSegments() {
+        return existingSegments().size();
+    }
+
+    synchronized void close() throws IOException {
+        for (RandomAccessFile f : segments.values()) {
+            f.close();
+        }
+        segments.clear();
+        controlFile.close();
+    }
+
+    File segmentFile(long seg) {
+        return new File(control.getAbsoluteFile().getParentFile(), String.format("%s.%06d", control.getName(), seg));
+    }
+
+    private synchronized RandomAccessFile segment(long seg, boolean create) throws IOException {
+        RandomAccessFile f = segments.get(seg);
+        if (f == null) {
+            File file = segmentFile(seg);
+            if (!create && !file.exists()) {
+                return null;
+            }
+            if (create && readOnly) {
+                throw new IOException("log " + control + " is open read-only");
+            }
+            f = new RandomAccessFile(file, readOnly ? "r" : "rw");
+            segments.put(seg, f);
+        }
+        return f;
+    }
+
+    /**
+     * @return the numbers of the segment files of this log on disk, in order
+     */
+    private List<Long> existingSegments() {
+        ArrayList<Long> result = new ArrayList<Long>();
+        String prefix = control.getName() + ".";
+        String[] names = control.getAbsoluteFile().getParentFile().list();
+        if (names == null) {
+            return result;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                try {
+                    result.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -35,6 +35,11 @@ public class LogicalJoinNode {
      */
     public Predicate.Op p;
 
+    /**
+     * True if the optimizer chose to run the join as a SortMergeJoin
+     */
+    public boolean sortMerge;
+
     public LogicalJoinNode() {
     }
 
@@ -77,6 +82,16 @@ public class LogicalJoinNode {
         return j2;
     }
 
+    /**
+     * Return a new LogicalJoinNode for the same join, to be run as a
+     * SortMergeJoin.
+     */
+    public LogicalJoinNode withSortMerge() {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j2.sortMerge = true;
+        return j2;
+    }
+
     @Override
     public boolean equals(Object o) {
         LogicalJoinNode j2 = (LogicalJoinNode) o;
@@ -157,16 +157,45 @@ public class LogicalPlan {
      *                          or is not in one of the tables added via {@link #addScan}
      */
     public void addJoin(String joinField1, DbIterator joinField2, Predicate.Op pred) throws ParsingException {
+        addJoin(joinField1, joinField2, pred, false);
+    }
+
+    /**
+     * Add a join between a field and a subquery that keeps the tuples with a
+     * match in the subquery (IN), or the ones without (NOT IN).
+     *
+     * @param anti true to keep the tuples without a match
+     * @see #addJoin(String, DbIterator, Predicate.Op)
+     */
+    public void addJoin(String joinField1, DbIterator joinField2, Predicate.Op pred, boolean anti) throws ParsingException {
         joinField1 = disambiguateName(joinField1);
 
         String table1 = joinField1.split("[.]")[0];
         String pureField = joinField1.split("[.]")[1];
 
-        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, pureField, joinField2, pred);
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, pureField, joinField2, pred, anti);
         System.out.println("Added subplan join on " + joinField1);
         joins.addElement(lj);
     }
 
+    /**
+     * Add an EXISTS subquery: the tuples of the plan are kept if the
+     * subquery returns any tuple, or for NOT EXISTS if it returns none.
+     *
+     * @param subplan the subquery
+     * @param anti    true for NOT EXISTS
+     * @throws ParsingException if no table has been added via {@link #addScan}
+     */
+    public void addExists(DbIterator subplan, boolean anti) throws ParsingException {
+        if (tables.isEmpty()) {
+            throw new ParsingException("EXISTS needs a table in the FROM clause");
+        }
+        String table1 = tables.elementAt(0).alias;
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, null, subplan, Predicate.Op.EQUALS, anti);
+        System.out.println("Added subplan join on " + table1);
+        joins.addElement(lj);
+    }
+
     /**
      * Add a scan to the plan. One scan node needs to be added for each alias of a table
      * accessed by the plan.
@@ -3,7 +3,8 @@ package simpledb;
 /**
  * A LogicalSubplanJoinNode represens the state needed of a join of a
  * table to a subplan in a LogicalQueryPlan -- inherits state from
- * {@link LogicalJoinNode}; t2 and f2 should always be null
+ * {@link LogicalJoinNode}; t2 and f2 should always be null, and f1 is null
+ * for an EXISTS subquery, which every tuple of t1 joins with
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
 
@@ -12,21 +13,34 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
      */
     DbIterator subPlan;
 
+    /**
+     * True to keep the tuples of t1 that do not join with the subplan (NOT IN,
+     * NOT EXISTS), false for the ones that do
+     */
+    boolean anti;
+
     public LogicalSubplanJoinNode(String table1, String joinField1, DbIterator sp, Predicate.Op pred) {
+        this(table1, joinField1, sp, pred, false);
+    }
+
+    public LogicalSubplanJoinNode(String table1, String joinField1, DbIterator sp, Predicate.Op pred, boolean anti) {
         t1Alias = table1;
-        String[] tmps = joinField1.split("[.]");
-        if (tmps.length > 1)
-            f1PureName = tmps[tmps.length - 1];
-        else
-            f1PureName = joinField1;
-        f1QuantifiedName = t1Alias + "." + f1PureName;
+        if (joinField1 != null) {
+            String[] tmps = joinField1.split("[.]");
+            if (tmps.length > 1)
+                f1PureName = tmps[tmps.length - 1];
+            else
+                f1PureName = joinField1;
+            f1QuantifiedName = t1Alias + "." + f1PureName;
+        }
         subPlan = sp;
         p = pred;
+        this.anti = anti;
     }
 
     @Override
     public int hashCode() {
-        return t1Alias.hashCode() + f1PureName.hashCode() + subPlan.hashCode();
+        return t1Alias.hashCode() + (f1PureName == null ? 0 : f1PureName.hashCode()) + subPlan.hashCode();
     }
 
     @Override
@@ -35,11 +49,12 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
 
-        return (j2.t1Alias.equals(t1Alias) && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode) o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias) && (f1PureName == null ? j2.f1PureName == null : f1PureName.equals(j2.f1PureName))
+                && ((LogicalSubplanJoinNode) o).subPlan.equals(subPlan) && ((LogicalSubplanJoinNode) o).anti == anti);
     }
 
     public LogicalSubplanJoinNode swapInnerOuter() {
-        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias, f1PureName, subPlan, p);
+        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias, f1PureName, subPlan, p, anti);
         return j2;
     }
 
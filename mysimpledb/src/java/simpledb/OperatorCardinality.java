@@ -27,6 +27,14 @@ public class OperatorCardinality {
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof HashSemiJoin) {
+            return updateSemiJoinCardinality((HashSemiJoin) o, tableAliasToId,
+                    tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
@@ -145,6 +153,15 @@ public class OperatorCardinality {
     private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
                                                          Map<String, Integer> tableAliasToId,
                                                          Map<String, TableStats> tableStats) {
+        return updateJoinCardinality(j, j.getJoinPredicate(),
+                j.getJoinField1Name(), j.getJoinField2Name(),
+                tableAliasToId, tableStats);
+    }
+
+    private static boolean updateJoinCardinality(Operator j, JoinPredicate pred,
+                                                 String joinField1Name, String joinField2Name,
+                                                 Map<String, Integer> tableAliasToId,
+                                                 Map<String, TableStats> tableStats) {
 
         DbIterator[] children = j.getChildren();
         DbIterator child1 = children[0];
@@ -152,10 +169,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -192,13 +209,36 @@ public class OperatorCardinality {
                     .getTableName()).estimateTableCardinality(1.0));
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                        .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                pred.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
     }
 
+    /**
+     * A semi-join returns each tuple of its left child at most once, and an
+     * anti-join too; the right child is a subquery, planned on its own.
+     */
+    private static boolean updateSemiJoinCardinality(HashSemiJoin j,
+                                                     Map<String, Integer> tableAliasToId,
+                                                     Map<String, TableStats> tableStats) {
+        DbIterator child1 = j.getChildren()[0];
+        int child1Card = 1;
+        boolean hasJoinPK = false;
+        if (child1 instanceof Operator) {
+            Operator child1O = (Operator) child1;
+            hasJoinPK = updateOperatorCardinality(child1O, tableAliasToId,
+                    tableStats);
+            child1Card = child1O.getEstimatedCardinality();
+        } else if (child1 instanceof SeqScan) {
+            child1Card = (int) (tableStats.get(((SeqScan) child1)
+                    .getTableName()).estimateTableCardinality(1.0));
+        }
+        j.setEstimatedCardinality(child1Card);
+        return hasJoinPK;
+    }
+
     private static boolean updateAggregateCardinality(Aggregate a,
                                                       Map<String, Integer> tableAliasToId,
                                                       Map<String, TableStats> tableStats) {
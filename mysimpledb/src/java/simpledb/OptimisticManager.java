@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * OptimisticManager keeps the private state of transactions running under
+ * optimistic concurrency control (OCC).
+ * <p/>
+ * An optimistic transaction never goes through the LockManager while it runs.
+ * It reads the snapshot of the database as of the moment it started (see
+ * {@link SnapshotManager}) and remembers every page it read.  Pages it asks
+ * for with READ_WRITE permission are copied into a private workspace that
+ * only it can see, so its writes are buffered until commit.
+ * <p/>
+ * At commit the BufferPool locks the read and write sets for the short time
+ * it takes to validate that no other transaction committed a change to any
+ * of those pages since the optimistic transaction started, and then installs
+ * the workspace pages in the buffer pool as regular dirty pages.
+ *
+ * @Threadsafe
+ */
+public class OptimisticManager {
+
+    /**
+     * Read set and private workspace of one optimistic transaction
+     */
+    private class Workspace {
+        final HashSet<PageId> readSet = new HashSet<PageId>();
+        final LinkedHashMap<PageId, Page> writeSet = new LinkedHashMap<PageId, Page>();
+    }
+
+    private HashMap<TransactionId, Workspace> workspaces = new HashMap<TransactionId, Workspace>();
+
+    /**
+     * Start tracking an optimistic transaction.  The caller must also begin a
+     * snapshot for it.
+     */
+    public synchronized void begin(TransactionId tid) {
+        workspaces.put(tid, new Workspace());
+    }
+
+    /**
+     * Stop tracking a transaction and throw away its workspace.
+     */
+    public synchronized void end(TransactionId tid) {
+        workspaces.remove(tid);
+    }
+
+    /**
+     * @return true if the specified transaction is running optimistically
+     */
+    public synchronized boolean isOptimistic(TransactionId tid) {
+        return workspaces.containsKey(tid);
+    }
+
+    /**
+     * @return the private copy of a page if the transaction has one, null otherwise
+     */
+    public synchronized Page getPrivatePage(TransactionId tid, PageId pid) {
+        Workspace ws = workspaces.get(tid);
+        return (ws == null) ? null : ws.writeSet.get(pid);
+    }
+
+    /**
+     * Record that the transaction read a page, and make the page part of its
+     * private workspace if it intends to write it.
+     *
+     * @param p    the transaction's snapshot copy of the page
+     * @param perm the permissions the page was requested with
+     */
+    public synchronized void addPage(TransactionId tid, Page p, Permissions perm) {
+        Workspace ws = workspaces.get(tid);
+        ws.readSet.add(p.getId());
+        if (perm.equals(Permissions.READ_WRITE)) {
+            ws.writeSet.put(p.getId(), p);
+        }
+    }
+
+    /**
+     * @return the pages the transaction read but did not write
+     */
+    public synchronized Set<PageId> getReadSet(TransactionId tid) {
+        Workspace ws = workspaces.get(tid);
+        HashSet<PageId> reads = new HashSet<PageId>(ws.readSet);
+        reads.removeAll(ws.writeSet.keySet());
+        return reads;
+    }
+
+    /**
+     * @return the private copies of the pages the transaction wrote
+     */
+    public synchronized Collection<Page> getWriteSet(TransactionId tid) {
+        return new ArrayList<Page>(workspaces.get(tid).writeSet.values());
+    }
+}
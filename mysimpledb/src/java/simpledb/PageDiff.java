@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * PageDiff is the physiological payload of UPDATE and CLR log records: the
+ * byte ranges of a page that changed, with their contents before and after
+ * the change.  Bytes outside the ranges are the same in both images, so
+ * applying the after bytes to a page in either state yields the after image
+ * and applying the before bytes yields the before image.  That keeps redo
+ * and undo idempotent without logging full page images.
+ * <p/>
+ * A diff is serialized as the page id (see {@link LogFile#writePageId}), an
+ * integer count of ranges, and for each range an integer offset, an integer
+ * length, the before bytes (UPDATE records only) and the after bytes.
+ */
+class PageDiff {
+
+    /**
+     * Unchanged runs shorter than this are folded into the surrounding range,
+     * since a new range costs two ints of header
+     */
+    static final int MIN_GAP = 8;
+
+    private final PageId pid;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDiff(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the ranges in which two images of the same page differ.  On
+     * heap pages a changed tuple slot is logged whole, together with its
+     * header byte, so that the tuples a diff inserts and deletes can be
+     * decoded from the diff alone (see {@link LogReader}).
+     */
+    static PageDiff compute(Page beforePage, Page afterPage) {
+        byte[] b = beforePage.getPageData();
+        byte[] a = afterPage.getPageData();
+        boolean[] changed = new boolean[a.length];
+        for (int i = 0; i < a.length; i++) {
+            changed[i] = a[i] != b[i];
+        }
+        if (afterPage instanceof HeapPage) {
+            HeapPage hp = (HeapPage) afterPage;
+            int first = hp.header.length;
+            int size = hp.td.getSize();
+            for (int slot = 0; slot < hp.numSlots; slot++) {
+                int off = first + slot * size;
+                for (int k = off; k < off + size; k++) {
+                    if (changed[k]) {
+                        Arrays.fill(changed, off, off + size, true);
+                        changed[slot / 8] = true;
+                        break;
+                    }
+                }
+            }
+        }
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+
+        int i = 0;
+        while (i < a.length) {
+            if (!changed[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;    // exclusive end of the changes seen so far
+            for (int j = end; j < a.length && j < end + MIN_GAP; j++) {
+                if (changed[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int len = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            System.arraycopy(b, start, before[r], 0, len);
+            System.arraycopy(a, start, after[r], 0, len);
+        }
+        return new PageDiff(afterPage.getId(), offsets, before, after);
+    }
+
+    /**
+     * @return a diff that undoes this one, as logged by a CLR
+     */
+    PageDiff inverse() {
+        return new PageDiff(pid, offsets, after, before);
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    /**
+     * @return the number of changed ranges
+     */
+    int numRanges() {
+        return offsets.length;
+    }
+
+    void write(DataOutput out, boolean withBefore) throws IOException {
+        LogFile.writePageId(out, pid);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            if (withBefore) {
+                out.write(before[r]);
+            }
+            out.write(after[r]);
+        }
+    }
+
+    static PageDiff read(DataInput in, boolean withBefore) throws IOException {
+        PageId pid = LogFile.readPageId(in);
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = withBefore ? new byte[n][] : null;
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            if (withBefore) {
+                before[r] = new byte[len];
+                in.readFully(before[r]);
+            }
+            after[r] = new byte[len];
+            in.readFully(after[r]);
+        }
+        return new PageDiff(pid, offsets, before, after);
+    }
+
+    /**
+     * Apply the after bytes of the diff to a copy of the page data.
+     */
+    byte[] redo(byte[] data) {
+        return apply(data, after);
+    }
+
+    /**
+     * Apply the before bytes of the diff to a copy of the page data.
+     */
+    byte[] undo(byte[] data) {
+        return apply(data, before);
+    }
+
+    private byte[] apply(byte[] data, byte[][] images) {
+        byte[] result = data.clone();
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(images[r], 0, result, offsets[r], images[r].length);
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the copy of the page on disk already reflects the log
+     * record with the specified LSN, according to its page LSN
+     */
+    boolean isOnDisk(long lsn) throws IOException {
+        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return hf.getPageLSN(pid) >= lsn;
+    }
+
+    /**
+     * Read the page from disk, apply the after (redo) or before (undo) bytes
+     * and write it back.  Pages past the end of the file start out empty.
+     *
+     * @param lsn the LSN of the log record being applied, which becomes the
+     *            page LSN
+     * @return the page as written
+     */
+    Page applyToDisk(boolean redo, long lsn) throws IOException {
+        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] data;
+        try {
+            data = ((HeapPage) hf.readPage(pid)).getPageData();
+        } catch (NoSuchElementException e) {
+            data = HeapPage.createEmptyPageData();
+        }
+        HeapPage p = new HeapPage((HeapPageId) pid, redo ? redo(data) : undo(data));
+        p.setLSN(lsn);
+        hf.writePage(p);
+        return p;
+    }
+}
@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PageTypes is the table of the kinds of pages that can appear in the log.
+ * Every kind is registered with a small integer code, which the log stores
+ * in place of class names, and a factory that rebuilds its page ids and
+ * pages, so reading the log needs no reflection.
+ * <p/>
+ * A page id is written as its one byte code, a one byte count of integers
+ * and the integers of {@link PageId#serialize}.
+ */
+class PageTypes {
+
+    /**
+     * Builds the page ids and pages of one kind of page
+     */
+    interface Factory {
+        PageId newPageId(int[] data);
+
+        Page newPage(PageId pid, byte[] data) throws IOException;
+    }
+
+    static final int HEAP_PAGE = 1;
+
+    private static final Map<Integer, Factory> factories = new HashMap<Integer, Factory>();
+    private static final Map<Class<?>, Integer> codes = new HashMap<Class<?>, Integer>();
+
+    static {
+        register(HEAP_PAGE, HeapPageId.class, new Factory() {
+            public PageId newPageId(int[] data) {
+                return new HeapPageId(data[0], data[1]);
+            }
+
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+    }
+
+    /**
+     * Register a kind of page.  Codes are stored in the log, so they must
+     * never be reused for a different kind.
+     *
+     * @param code    the code of the kind, between 1 and 255
+     * @param idClass the class of its page ids
+     * @param factory builds its page ids and pages
+     */
+    static synchronized void register(int code, Class<? extends PageId> idClass, Factory factory) {
+        if (code <= 0 || code > 255) {
+            throw new IllegalArgumentException("page type codes are between 1 and 255");
+        }
+        Integer old = codes.get(idClass);
+        if (factories.containsKey(code) && (old == null || old != code)) {
+            throw new IllegalArgumentException("page type code " + code + " is already registered");
+        }
+        factories.put(code, factory);
+        codes.put(idClass, code);
+    }
+
+    private static synchronized Factory factory(int code) throws IOException {
+        Factory f = factories.get(code);
+        if (f == null) {
+            throw new IOException("unknown page type " + code + " in log");
+        }
+        return f;
+    }
+
+    private static synchronized int code(PageId pid) throws IOException {
+        Integer code = codes.get(pid.getClass());
+        if (code == null) {
+            throw new IOException("page type " + pid.getClass().getName() + " is not registered");
+        }
+        return code;
+    }
+
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] data = pid.serialize();
+        out.writeByte(code(pid));
+        out.writeByte(data.length);
+        for (int i : data) {
+            out.writeInt(i);
+        }
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        Factory f = factory(in.readUnsignedByte());
+        int[] data = new int[in.readUnsignedByte()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = in.readInt();
+        }
+        return f.newPageId(data);
+    }
+
+    /**
+     * Write a page as its id, an integer length and its data.
+     */
+    static void writePage(DataOutput out, Page p) throws IOException {
+        writePageId(out, p.getId());
+        byte[] data = p.getPageData();
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    static Page readPage(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return factory(code(pid)).newPage(pid, data);
+    }
+}
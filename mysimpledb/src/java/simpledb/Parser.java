@@ -13,6 +13,11 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /**
+     * Applies the primary's log when running as a standby, otherwise null
+     */
+    static Standby standby = null;
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -51,6 +56,12 @@ public class Parser {
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
+        } else if (wx.getOperator().equals("EXISTS")) {
+            processExists(tid, wx, lp, false);
+        } else if (wx.getOperator().equals("NOT") && wx.nbOperands() == 1
+                && wx.getOperand(0) instanceof ZExpression
+                && ((ZExpression) wx.getOperand(0)).getOperator().equals("EXISTS")) {
+            processExists(tid, (ZExpression) wx.getOperand(0), lp, true);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -61,7 +72,10 @@ public class Parser {
             }
 
             boolean isJoin = false;
-            Predicate.Op op = getOp(wx.getOperator());
+            // IN and NOT IN are equality joins to a subquery
+            boolean anti = wx.getOperator().equals("NOT IN");
+            Predicate.Op op = anti || wx.getOperator().equals("IN") ? Predicate.Op.EQUALS
+                    : getOp(wx.getOperator());
 
             boolean op1const = ops.elementAt(0) instanceof ZConstant; // otherwise
             // is a
@@ -95,19 +109,8 @@ public class Parser {
                 }
 
                 if (!op2const) { // right op is a nested query
-                    try {
-                        LogicalPlan sublp = parseQueryLogicalPlan(tid,
-                                (ZQuery) ops.elementAt(1));
-                        DbIterator pp = sublp.physicalPlan(tid,
-                                TableStats.getStatsMap(), explain);
-                        lp.addJoin(tab1field, pp, op);
-                    } catch (IOException e) {
-                        throw new simpledb.ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    } catch (Zql.ParseException e) {
-                        throw new simpledb.ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    }
+                    DbIterator pp = parseSubquery(tid, (ZQuery) ops.elementAt(1));
+                    lp.addJoin(tab1field, pp, op, anti);
                 } else {
                     tab2field = ((ZConstant) ops.elementAt(1)).getValue();
                     lp.addJoin(tab1field, tab2field, op);
@@ -133,6 +136,35 @@ public class Parser {
 
     }
 
+    /**
+     * Add an EXISTS subquery to a plan.
+     *
+     * @param wx   the EXISTS expression
+     * @param anti true for NOT EXISTS
+     */
+    void processExists(TransactionId tid, ZExpression wx, LogicalPlan lp, boolean anti)
+            throws simpledb.ParsingException {
+        if (wx.nbOperands() != 1 || !(wx.getOperand(0) instanceof ZQuery)) {
+            throw new simpledb.ParsingException("EXISTS needs a subquery.");
+        }
+        lp.addExists(parseSubquery(tid, (ZQuery) wx.getOperand(0)), anti);
+    }
+
+    /**
+     * @return the physical plan of a subquery
+     */
+    DbIterator parseSubquery(TransactionId tid, ZQuery q)
+            throws simpledb.ParsingException {
+        try {
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, q);
+            return sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        } catch (IOException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + q);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + q);
+        }
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -143,6 +175,10 @@ public class Parser {
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
             try {
+                // system tables are snapshots of internal state taken when they are queried
+                if (SystemTables.isSystemTable(fromIt.getTable())) {
+                    SystemTables.refresh(fromIt.getTable());
+                }
 
                 int id = Database.getCatalog().getTableId(fromIt.getTable()); // will
                 // fall
@@ -521,6 +557,8 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
+                    if (standby != null && (s instanceof ZInsert || s instanceof ZDelete))
+                        throw new DbException("a standby is read only");
                     if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
@@ -590,7 +628,7 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 7) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -600,7 +638,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-asynccommit] [-standby primaryLog primaryDir] [-f queryFile]";
 
     protected void shutdown() {
         System.out.println("Bye");
@@ -620,6 +658,20 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-asynccommit")) {
+                    Transaction.setDefaultSynchronousCommit(false);
+                    System.out.println("Asynchronous commit enabled.");
+                } else if (argv[i].equals("-standby")) {
+                    if (i + 2 >= argv.length) {
+                        System.out.println("Expected primary log and directory after -standby\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    File dir = new File(argv[0]).getAbsoluteFile().getParentFile();
+                    standby = new Standby(new File(argv[i + 1]), new File(argv[i + 2]), dir);
+                    standby.start();
+                    i += 2;
+                    System.out.println("Standby of " + argv[i - 1] + ", read only.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
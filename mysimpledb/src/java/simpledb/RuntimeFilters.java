@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * The Bloom filters pushed down to an iterator, each on one field of its
+ * tuples, and the number of tuples they dropped.
+ */
+class RuntimeFilters implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<Integer> fields = new ArrayList<Integer>();
+    private final ArrayList<BloomFilter> filters = new ArrayList<BloomFilter>();
+    private long dropped = 0;
+
+    void add(int field, BloomFilter filter) {
+        fields.add(field);
+        filters.add(filter);
+    }
+
+    void remove(BloomFilter filter) {
+        int i = filters.indexOf(filter);
+        if (i >= 0) {
+            fields.remove(i);
+            filters.remove(i);
+        }
+    }
+
+    boolean isEmpty() {
+        return filters.isEmpty();
+    }
+
+    /**
+     * @return true if the tuple passes every filter; counts it as dropped
+     * otherwise
+     */
+    boolean passes(Tuple t) {
+        for (int i = 0; i < filters.size(); i++) {
+            if (!filters.get(i).mightContain(t.getField(fields.get(i)))) {
+                dropped++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+}
@@ -13,6 +13,8 @@ public class SeqScan implements DbIterator {
     private DbFileIterator dbi;
     private int tableid;
     private String tableAlias;
+    private RuntimeFilters runtimeFilters = new RuntimeFilters();
+    private transient Tuple next = null;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -44,6 +46,13 @@ public class SeqScan implements DbIterator {
         return Database.getCatalog().getTableName(this.tableid);
     }
 
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return this.tableid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      */
@@ -56,6 +65,7 @@ public class SeqScan implements DbIterator {
     }
 
     public void open() throws DbException, TransactionAbortedException {
+        next = null;
         dbi.open();
     }
 
@@ -87,21 +97,65 @@ public class SeqScan implements DbIterator {
         return new TupleDesc(typeAr,fieldAr);
     }
 
+    /**
+     * Drop the tuples whose field is not in a Bloom filter from now on, as
+     * soon as they are read from their pages.
+     *
+     * @param field  the field of the tuples of this scan to look up
+     * @param filter the filter, e.g. of the build side of a HashEquiJoin
+     */
+    public void addRuntimeFilter(int field, BloomFilter filter) {
+        runtimeFilters.add(field, filter);
+    }
+
+    /**
+     * Stop applying a filter added by addRuntimeFilter.
+     */
+    public void removeRuntimeFilter(BloomFilter filter) {
+        runtimeFilters.remove(filter);
+    }
+
+    /**
+     * @return the number of tuples the runtime filters dropped
+     */
+    public long getRuntimeFiltered() {
+        return runtimeFilters.getDropped();
+    }
+
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return dbi.hasNext();
+        if (next == null && runtimeFilters.isEmpty()) {
+            return dbi.hasNext();
+        }
+        while (next == null && dbi.hasNext()) {
+            Tuple t = dbi.next();
+            if (runtimeFilters.passes(t)) {
+                next = t;
+            }
+        }
+        return next != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        return dbi.next();
+        if (next == null && runtimeFilters.isEmpty()) {
+            return dbi.next();
+        }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = next;
+        next = null;
+        return t;
     }
 
     public void close() {
+        next = null;
         dbi.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        next = null;
         dbi.rewind();
     }
 }
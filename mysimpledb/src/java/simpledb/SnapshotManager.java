@@ -0,0 +1,292 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SnapshotManager lets read-only transactions see a consistent, committed
+ * version of every page without going through the LockManager.
+ * <p/>
+ * Every writer commit gets a sequence number.  A snapshot transaction
+ * remembers the sequence number of the last commit at the time it began and
+ * only ever sees page contents committed at or before that point.  The
+ * current committed version of a page is its before image in the buffer pool
+ * (or the copy kept in <code>stolen</code> if an uncommitted version of the
+ * page has been written to disk).  Older committed versions are retained
+ * only while some active snapshot may still need them.
+ * <p/>
+ * The version of a page a snapshot sees never changes, so each snapshot
+ * keeps the pages it has materialized and reads them again without going
+ * through this class's monitor.
+ * <p/>
+ * Lock ordering: the BufferPool calls into this class while holding its own
+ * monitor, so this class must never call back into a synchronized BufferPool
+ * method while holding its own monitor.
+ *
+ * @Threadsafe
+ */
+public class SnapshotManager {
+
+    /**
+     * A committed image of a page that was current for commits
+     * [start, end).
+     */
+    private class PageVersion {
+        final long start;
+        final long end;
+        final byte[] data;
+
+        PageVersion(long start, long end, byte[] data) {
+            this.start = start;
+            this.end = end;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The most pages each snapshot keeps materialized
+     */
+    static final int MAX_CACHED_PAGES = BufferPool.DEFAULT_PAGES;
+
+    /**
+     * An active snapshot: the commit sequence number it reads as of, and the
+     * pages it has read, least recently used first
+     */
+    private static class Snapshot {
+        final long seq;
+        final LinkedHashMap<PageId, Page> pages = new LinkedHashMap<PageId, Page>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, Page> eldest) {
+                return size() > MAX_CACHED_PAGES;
+            }
+        };
+
+        Snapshot(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Sequence number of the last writer commit
+     */
+    private long commitSeq = 0;
+
+    /**
+     * Active snapshot transactions.  Concurrent so that isSnapshot and
+     * getCachedPage do not need the monitor; it is only changed while
+     * holding it.
+     */
+    private ConcurrentHashMap<TransactionId, Snapshot> snapshots = new ConcurrentHashMap<TransactionId, Snapshot>();
+
+    /**
+     * Sequence number of the last commit that changed each page.  Pages that are
+     * missing were last changed before every active snapshot began.
+     */
+    private HashMap<PageId, Long> pageSeq = new HashMap<PageId, Long>();
+
+    /**
+     * Older committed versions of pages, newest first
+     */
+    private HashMap<PageId, LinkedList<PageVersion>> versions = new HashMap<PageId, LinkedList<PageVersion>>();
+
+    /**
+     * Committed images of pages whose uncommitted contents have been flushed to disk
+     */
+    private HashMap<PageId, byte[]> stolen = new HashMap<PageId, byte[]>();
+
+    /**
+     * Start a snapshot for the specified transaction as of the last commit.
+     */
+    public synchronized void begin(TransactionId tid) {
+        snapshots.put(tid, new Snapshot(commitSeq));
+    }
+
+    /**
+     * End the snapshot of the specified transaction (if it has one) and drop
+     * any page versions that no remaining snapshot can see.
+     */
+    public synchronized void end(TransactionId tid) {
+        if (snapshots.remove(tid) == null) {
+            return;
+        }
+
+        if (snapshots.isEmpty()) {
+            pageSeq.clear();
+            versions.clear();
+            return;
+        }
+
+        long minActive = Long.MAX_VALUE;
+        for (Snapshot snap : snapshots.values()) {
+            minActive = Math.min(minActive, snap.seq);
+        }
+
+        Iterator<Map.Entry<PageId, Long>> seqit = pageSeq.entrySet().iterator();
+        while (seqit.hasNext()) {
+            if (seqit.next().getValue() <= minActive) {
+                seqit.remove();
+            }
+        }
+
+        Iterator<LinkedList<PageVersion>> verit = versions.values().iterator();
+        while (verit.hasNext()) {
+            LinkedList<PageVersion> list = verit.next();
+            while (!list.isEmpty() && list.getLast().end <= minActive) {
+                list.removeLast();
+            }
+            if (list.isEmpty()) {
+                verit.remove();
+            }
+        }
+    }
+
+    /**
+     * @return true if the specified transaction is reading from a snapshot
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * @return true if a transaction committed a change to the specified page
+     * after the snapshot of the specified transaction began
+     */
+    public synchronized boolean isStale(TransactionId tid, PageId pid) {
+        Long seq = pageSeq.get(pid);
+        return seq != null && seq > snapshots.get(tid).seq;
+    }
+
+    /**
+     * Called by the BufferPool when the uncommitted contents of a page are
+     * about to be written to disk.  Remembers the committed image so that
+     * snapshots keep seeing it even if the page is evicted and re-read.
+     */
+    public synchronized void pageFlushed(HeapPage p) {
+        if (!stolen.containsKey(p.getId())) {
+            stolen.put(p.getId(), p.getBeforeImageData());
+        }
+    }
+
+    /**
+     * Install the committed contents of the specified pages.  The before image
+     * of every cached page is updated here so that snapshot readers see either
+     * all or none of the transaction's changes.
+     *
+     * @param pids  the pages held by the committing transaction
+     * @param cache the pages currently cached by the buffer pool
+     */
+    public synchronized void commit(PageId[] pids, Map<PageId, Page> cache) {
+        long seq = ++commitSeq;
+
+        for (PageId pid : pids) {
+            HeapPage p = (HeapPage) cache.get(pid);
+            byte[] before = stolen.remove(pid);
+            boolean changed = (before != null);
+
+            if (p != null) {
+                before = p.getBeforeImageData();
+                changed = !snapshots.isEmpty() && !Arrays.equals(before, p.getPageData());
+                p.setBeforeImage();
+            }
+
+            if (changed && !snapshots.isEmpty()) {
+                // keep the old committed version around for active snapshots
+                Long prev = pageSeq.get(pid);
+                LinkedList<PageVersion> list = versions.get(pid);
+                if (list == null) {
+                    list = new LinkedList<PageVersion>();
+                    versions.put(pid, list);
+                }
+                list.addFirst(new PageVersion(prev == null ? 0 : prev, seq, before));
+                pageSeq.put(pid, seq);
+            }
+        }
+    }
+
+    /**
+     * Forget the committed images of pages that an aborting transaction wrote
+     * to disk; rollback has already restored them.
+     */
+    public synchronized void abort(PageId[] pids) {
+        for (PageId pid : pids) {
+            stolen.remove(pid);
+        }
+    }
+
+    /**
+     * @return the version of a page that the specified snapshot transaction
+     * has already read, or null if it has not read it or is not a snapshot
+     */
+    public Page getCachedPage(TransactionId tid, PageId pid) {
+        Snapshot snapshot = snapshots.get(tid);
+        if (snapshot == null) {
+            return null;
+        }
+        synchronized (snapshot) {
+            return snapshot.pages.get(pid);
+        }
+    }
+
+    /**
+     * Return a private copy of the version of the page visible to the
+     * specified snapshot transaction, and keep it for the transaction's
+     * later reads (see {@link #getCachedPage}).
+     *
+     * @param tid     the snapshot transaction
+     * @param current the page as currently cached by the buffer pool
+     */
+    public Page getPage(TransactionId tid, HeapPage current) throws DbException {
+        byte[] data;
+        Snapshot snapshot;
+
+        synchronized (this) {
+            snapshot = snapshots.get(tid);
+            if (snapshot == null) {
+                throw new DbException("transaction " + tid.getId() + " has no snapshot");
+            }
+            long snap = snapshot.seq;
+
+            PageId pid = current.getId();
+            Long seq = pageSeq.get(pid);
+            data = null;
+
+            if (seq == null || seq <= snap) {
+                // nothing committed on this page since the snapshot began
+                data = stolen.get(pid);
+                if (data == null) {
+                    data = current.getBeforeImageData();
+                }
+            } else {
+                LinkedList<PageVersion> list = versions.get(pid);
+                if (list != null) {
+                    for (PageVersion v : list) {
+                        if (v.start <= snap && snap < v.end) {
+                            data = v.data;
+                            break;
+                        }
+                    }
+                }
+                if (data == null) {
+                    throw new DbException("no version of page " + pid.pageNumber() + " visible to snapshot");
+                }
+            }
+        }
+
+        Page p;
+        try {
+            p = new HeapPage(current.getId(), data);
+        } catch (IOException e) {
+            throw new DbException("could not read snapshot page");
+        }
+        synchronized (snapshot) {
+            Page cached = snapshot.pages.get(p.getId());
+            if (cached != null) {
+                return cached;
+            }
+            snapshot.pages.put(p.getId(), p);
+        }
+        return p;
+    }
+}
@@ -0,0 +1,320 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator implements the relational join operation for
+ * equality and range (band) predicates by merging its children in the
+ * order of their join fields.
+ * <p/>
+ * A child that is already sorted on its join field, by an OrderBy or by
+ * another SortMergeJoin, is read as it is; otherwise it is sorted with an
+ * ExternalSort, which spills sorted runs to disk when the child does not
+ * fit in simpledb.SortMemory bytes.
+ * <p/>
+ * For an equality predicate both sides are sorted ascending and merged; the
+ * inner tuples of one join field value are held in memory while the outer
+ * tuples of that value are joined to them.  For <, <=, > and >= the inner
+ * side is sorted so that the inner tuples matching an outer tuple come
+ * first: ascending for > and >=, descending for < and <=.  The outer side
+ * is sorted the same way, so each outer tuple matches at least the inner
+ * tuples the one before it matched; for each outer tuple the inner side is
+ * read from its start, those are joined without testing the predicate, and
+ * the predicate is tested only past them, up to the first inner tuple it
+ * rejects.
+ * <p/>
+ * Results come in the order of the outer join field.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Bytes of tuples sorted in memory at once
+     */
+    static long memoryBudget = Long.getLong("simpledb.SortMemory", 4 << 20);
+
+    // mostly useful for testing
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    private JoinPredicate pred;
+    private DbIterator child1;
+    private DbIterator child2;
+
+    private transient ExternalSort sort1;
+    private transient ExternalSort sort2;
+    private transient DbIterator left;
+    private transient DbIterator right;
+
+    private transient Tuple t1;
+    private transient Tuple t2;
+    private transient ArrayList<Tuple> group;
+    private transient int pos;
+    private transient int known;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p      The predicate to use to join the children; one of =, <,
+     *               <=, > and >=
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("SortMergeJoin cannot join on " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return true if a SortMergeJoin can join on the given operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if both sides are sorted ascending for the given operator
+     */
+    static boolean ascending(Predicate.Op op) {
+        return op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if the tuples of an iterator come sorted on a field
+     */
+    public static boolean isSorted(DbIterator it, int field, boolean asc) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.getOrderByField() == field && o.isASC() == asc;
+        } else if (it instanceof SortMergeJoin) {
+            return ((SortMergeJoin) it).isSortedOn(field, asc);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the results of this join come sorted on a field
+     */
+    public boolean isSortedOn(int field, boolean asc) {
+        if (asc != ascending(pred.getOperator())) {
+            return false;
+        }
+        if (field == pred.getField1()) {
+            return true;
+        }
+        return pred.getOperator() == Predicate.Op.EQUALS
+                && field == child1.getTupleDesc().numFields() + pred.getField2();
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the field name of join field1. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return the field name of join field2. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the number of sorted runs the children were spilled to, 0 if
+     * they were sorted in memory or not at all
+     */
+    public int getRunCount() {
+        return (sort1 == null ? 0 : sort1.getRunCount()) + (sort2 == null ? 0 : sort2.getRunCount());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        boolean asc = ascending(pred.getOperator());
+        sort1 = null;
+        sort2 = null;
+        left = child1;
+        right = child2;
+        if (!isSorted(child1, pred.getField1(), asc)) {
+            sort1 = new ExternalSort(child1, pred.getField1(), asc, memoryBudget, ExternalSort.MAX_FAN_IN);
+            sort1.open();
+            left = sort1;
+        }
+        if (!isSorted(child2, pred.getField2(), asc)) {
+            // a band join reads the inner side once per outer tuple
+            int runs = pred.getOperator() == Predicate.Op.EQUALS ? ExternalSort.MAX_FAN_IN : 1;
+            sort2 = new ExternalSort(child2, pred.getField2(), asc, memoryBudget, runs);
+            sort2.open();
+            right = sort2;
+        }
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (sort1 != null) {
+            sort1.close();
+        }
+        if (sort2 != null) {
+            sort2.close();
+        }
+        sort1 = null;
+        sort2 = null;
+        child1.close();
+        child2.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        left.rewind();
+        right.rewind();
+        reset();
+    }
+
+    private void reset() {
+        t1 = null;
+        t2 = null;
+        group = null;
+        pos = 0;
+        known = 0;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Logically, this is the next tuple in r1 cross r2 that
+     * satisfies the join predicate.
+     * <p/>
+     * Note that the tuples returned from this particular implementation of Join
+     * are simply the concatenation of joining tuples from the left and right
+     * relation. Therefore, if an equality predicate is used there will be two
+     * copies of the join attribute in the results. (Removing such duplicate
+     * columns can be done with an additional projection operator if needed.)
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pred.getOperator() == Predicate.Op.EQUALS) {
+            return fetchNextEqual();
+        }
+        return fetchNextBand();
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as the join field
+     * of an outer tuple is less than, equal to or greater than that of an
+     * inner tuple
+     */
+    private int compare(Tuple outer, Tuple inner) {
+        Field f1 = outer.getField(pred.getField1());
+        Field f2 = inner.getField(pred.getField2());
+        if (f1.compare(Predicate.Op.EQUALS, f2)) {
+            return 0;
+        }
+        return f1.compare(Predicate.Op.LESS_THAN, f2) ? -1 : 1;
+    }
+
+    private Tuple fetchNextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && group != null && pos < group.size()) {
+                return mergetup(t1, group.get(pos++));
+            }
+            if (!left.hasNext()) {
+                return null;
+            }
+            t1 = left.next();
+            pos = 0;
+            if (group != null && compare(t1, group.get(0)) == 0) {
+                continue;   // same join field as the outer tuple before
+            }
+            group = null;
+            while (t2 != null || right.hasNext()) {
+                if (t2 == null) {
+                    t2 = right.next();
+                }
+                int c = compare(t1, t2);
+                if (c < 0) {
+                    break;  // no inner tuple matches t1
+                }
+                if (c > 0) {
+                    t2 = null;
+                    continue;
+                }
+                group = new ArrayList<Tuple>();
+                while (t2 != null && compare(t1, t2) == 0) {
+                    group.add(t2);
+                    t2 = right.hasNext() ? right.next() : null;
+                }
+                break;
+            }
+        }
+    }
+
+    private Tuple fetchNextBand() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && right.hasNext()) {
+                Tuple t = right.next();
+                if (pos < known || pred.filter(t1, t)) {
+                    pos++;
+                    known = Math.max(known, pos);
+                    return mergetup(t1, t);
+                }
+            }
+            // t1 is done with: on to the next outer tuple
+            if (!left.hasNext()) {
+                return null;
+            }
+            t1 = left.next();
+            right.rewind();
+            pos = 0;
+        }
+    }
+
+    private Tuple mergetup(Tuple t1, Tuple t2) {
+        Tuple newtup = new Tuple(getTupleDesc());
+        int size1 = t1.getTupleDesc().numFields();
+
+        for (int i = 0; i < size1; i++)
+            newtup.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            newtup.setField(i + size1, t2.getField(i));
+
+        return newtup;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples, written by operators that run out
+ * of memory and read back as a DbIterator.
+ * <p/>
+ * Tuples are appended with {@link #add} and stored the way a HeapPage
+ * stores them, field after field; record ids are not kept.  Once
+ * {@link #finish} is called the file can be opened, read and rewound any
+ * number of times.  {@link #delete} removes it.
+ */
+class SpillFile implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TupleDesc td;
+    private final File file;
+    private transient DataOutputStream out;
+    private transient DataInputStream in;
+    private int count = 0;
+    private int read = 0;
+
+    /**
+     * Create an empty spill file.
+     *
+     * @param td the schema of the tuples it will hold
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb", ".spill");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        } catch (IOException e) {
+            throw new DbException("cannot create a spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Append a tuple.
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null) {
+            throw new IllegalStateException("spill file already finished");
+        }
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot write a spill file: " + e.getMessage());
+        }
+        count++;
+    }
+
+    /**
+     * Stop writing, so that the file can be read.
+     */
+    public void finish() throws DbException {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("cannot write a spill file: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * @return the number of tuples in the file
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes in the file
+     */
+    public long bytes() {
+        return (long) count * td.getSize();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException {
+        finish();
+        close();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        } catch (IOException e) {
+            throw new DbException("cannot read a spill file: " + e.getMessage());
+        }
+        read = 0;
+    }
+
+    public boolean hasNext() {
+        return in != null && read < count;
+    }
+
+    public Tuple next() throws DbException, NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.setField(i, td.getFieldType(i).parse(in));
+            }
+        } catch (ParseException e) {
+            throw new DbException("cannot read a spill file: " + e.getMessage());
+        }
+        read++;
+        return t;
+    }
+
+    public void rewind() throws DbException {
+        open();
+    }
+
+    public void close() {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing left to read from it
+            }
+            in = null;
+        }
+    }
+
+    /**
+     * Close and remove the file.
+     */
+    public void delete() {
+        close();
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // removed below anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+}
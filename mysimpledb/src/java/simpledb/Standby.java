@@ -0,0 +1,302 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Standby turns a database into a warm standby of another one, the primary:
+ * it keeps applying the log the primary writes to copies of the primary's
+ * heap files, so that the standby can serve read-only queries from another
+ * process, or from another machine that gets the primary's log files copied
+ * over.
+ * <p/>
+ * The standby reads the primary's log files directly (see {@link LogReader})
+ * and applies the committed transactions one at a time, in commit order, by
+ * redoing the last UPDATE record of each page each of them changed, as
+ * recovery redoes them.  The pages of a transaction are write locked while
+ * it is applied and dropped from the buffer pool, so queries running under
+ * ordinary locking transactions see all of a transaction or none of it.
+ * Applying takes no log records, so the standby's own log stays empty.
+ * <p/>
+ * The heap files of the standby live in their own directory, with the same
+ * names as on the primary; the table ids in the primary's log are mapped to
+ * the standby's by file name.  A standby starts out from copies of the
+ * primary's heap files taken while the primary was shut down, and
+ * remembers how far it got in the file <tt>standby</tt> in that directory,
+ * so it can be restarted.  A standby whose primary reset its log, or
+ * truncated it past the standby's position, needs fresh copies.
+ * <p/>
+ * Lag is reported in bytes, as the part of the primary's log the standby
+ * hasn't applied yet, and in milliseconds, as the time since the standby
+ * first saw the oldest of those bytes.
+ */
+public class Standby {
+
+    /**
+     * How often the background thread looks for new log records, in ms
+     */
+    static long pollInterval = Long.getLong("simpledb.StandbyPollInterval", 100);
+
+    // mostly useful for testing
+    public static void setPollInterval(long ms) {
+        pollInterval = ms;
+    }
+
+    private final LogStorage storage;
+    private final LogReader reader;
+    private final File dir;
+    private final File stateFile;
+    private final Map<Integer, Integer> tableIds;
+
+    // (end of the primary's log, when the standby first saw it), oldest first
+    private final LinkedList<long[]> seen = new LinkedList<long[]>();
+    private long applied = 0;
+
+    private Thread applier;
+    private volatile boolean stopped;
+
+    /**
+     * Open a standby of the primary that writes the specified log.  The
+     * tables in the catalog whose heap files are in dir are the copies of
+     * the tables with the same file names in primaryDir.
+     *
+     * @param primaryLog the log file of the primary
+     * @param primaryDir the directory of the primary's heap files
+     * @param dir        the directory of the standby's heap files
+     */
+    public Standby(File primaryLog, File primaryDir, File dir) throws IOException {
+        this.storage = new LogStorage(primaryLog, LogFile.getSegmentSize(), true);
+        if (storage.getFormatVersion() != LogFile.LOG_FORMAT_VERSION) {
+            throw new IOException("log format version " + storage.getFormatVersion() +
+                    " is not supported, expected " + LogFile.LOG_FORMAT_VERSION);
+        }
+        this.dir = dir;
+        this.stateFile = new File(dir, "standby");
+        this.tableIds = mapTables(primaryDir, dir);
+
+        long restart;
+        long committed;
+        if (stateFile.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(stateFile));
+            try {
+                long logId = in.readLong();
+                restart = in.readLong();
+                committed = in.readLong();
+                if (logId != storage.getLogId()) {
+                    throw new IOException("the primary has reset its log; the standby needs new copies of its tables");
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            // the copies are of the primary as of the end of its log
+            restart = committed = storage.length();
+        }
+        reader = new LogReader(new LogInput(storage), null, restart, committed);
+        saveState();
+    }
+
+    private static Map<Integer, Integer> mapTables(File primaryDir, File dir) {
+        HashMap<Integer, Integer> ids = new HashMap<Integer, Integer>();
+        File local = dir.getAbsoluteFile();
+        Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        while (it.hasNext()) {
+            int id = it.next();
+            DbFile f = Database.getCatalog().getDatabaseFile(id);
+            if (f instanceof HeapFile) {
+                File file = ((HeapFile) f).getFile().getAbsoluteFile();
+                if (local.equals(file.getParentFile())) {
+                    ids.put(new File(primaryDir, file.getName()).getAbsoluteFile().hashCode(), id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Apply every committed transaction in the primary's log that hasn't
+     * been applied yet.
+     *
+     * @return the number of transactions applied
+     */
+    public synchronized int catchUp() throws IOException {
+        storage.refresh();
+        long end = storage.length();
+        if (seen.isEmpty() || seen.getLast()[0] < end) {
+            seen.add(new long[]{end, System.currentTimeMillis()});
+        }
+
+        int n = 0;
+        HashSet<HeapFile> written = new HashSet<HeapFile>();
+        List<LogRecord> records;
+        while ((records = reader.nextTransaction()) != null) {
+            apply(records, written);
+            reader.finishTransaction();
+            n++;
+        }
+        if (n > 0) {
+            // the pages must be on disk before the position that skips them is
+            for (HeapFile hf : written) {
+                hf.force();
+            }
+            saveState();
+        }
+        applied += n;
+        return n;
+    }
+
+    /**
+     * Redo the records of a transaction while holding write locks on all
+     * of its pages.
+     *
+     * @param written the heap files written to, which are added to
+     */
+    private void apply(List<LogRecord> records, Set<HeapFile> written) throws IOException {
+        TransactionId tid = new TransactionId();
+        HeapPageId[] pids = new HeapPageId[records.size()];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = localPageId(records.get(i).diff.getPageId());
+        }
+
+        boolean locked = false;
+        while (!locked) {
+            try {
+                for (HeapPageId pid : pids) {
+                    BufferPool.getLockManager().lockRequest(tid, pid, Permissions.READ_WRITE);
+                }
+                locked = true;
+            } catch (TransactionAbortedException e) {
+                // lost a deadlock against a query; keep the tid, so it ages, and retry
+                Database.getBufferPool().transactionComplete(tid, false);
+            }
+        }
+
+        try {
+            for (int i = 0; i < pids.length; i++) {
+                HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(pids[i].getTableId());
+                byte[] data;
+                if (pids[i].pageNumber() < hf.numPages()) {
+                    data = ((HeapPage) hf.readPage(pids[i])).getPageData();
+                } else {
+                    data = HeapPage.createEmptyPageData();
+                }
+                hf.writePage(new HeapPage(pids[i], records.get(i).diff.redo(data)));
+                written.add(hf);
+            }
+        } finally {
+            // drops the cached copies of the pages and releases the locks
+            Database.getBufferPool().transactionComplete(tid, false);
+        }
+    }
+
+    private HeapPageId localPageId(PageId pid) throws IOException {
+        Integer id = tableIds.get(pid.getTableId());
+        if (id == null) {
+            throw new IOException("table " + pid.getTableId() + " of the primary has no copy in " + dir);
+        }
+        return new HeapPageId(id, pid.pageNumber());
+    }
+
+    private void saveState() throws IOException {
+        File tmp = new File(dir, "standby.tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(fos);
+        out.writeLong(storage.getLogId());
+        out.writeLong(reader.getRestartLSN());
+        out.writeLong(reader.getCommittedLSN());
+        out.flush();
+        fos.getFD().sync();
+        out.close();
+        if (!tmp.renameTo(stateFile)) {
+            throw new IOException("cannot replace " + stateFile);
+        }
+    }
+
+    /**
+     * Apply the primary's log in a background thread until stop() is
+     * called.
+     */
+    public synchronized void start() {
+        if (applier != null) {
+            return;
+        }
+        stopped = false;
+        applier = new Thread("standby applier") {
+            public void run() {
+                while (!stopped) {
+                    try {
+                        catchUp();
+                        Thread.sleep(pollInterval);
+                    } catch (InterruptedException e) {
+                        // stop() interrupts the sleep
+                    } catch (IOException e) {
+                        System.out.println("standby stopped: " + e.getMessage());
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            }
+        };
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * Stop the background thread, waiting for the transaction it is
+     * applying.
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            t = applier;
+            applier = null;
+            stopped = true;
+        }
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    /**
+     * @return the number of bytes of the primary's log the standby hasn't
+     * applied
+     */
+    public synchronized long getLagBytes() throws IOException {
+        storage.refresh();
+        return Math.max(0, storage.length() - reader.getPosition());
+    }
+
+    /**
+     * @return the time since the standby first saw the oldest part of the
+     * primary's log it hasn't applied, in milliseconds, or 0 if it has
+     * applied everything it has seen
+     */
+    public synchronized long getLagMillis() {
+        while (!seen.isEmpty() && seen.getFirst()[0] <= reader.getPosition()) {
+            seen.removeFirst();
+        }
+        if (seen.isEmpty()) {
+            return 0;
+        }
+        return System.currentTimeMillis() - seen.getFirst()[1];
+    }
+
+    /**
+     * @return the number of transactions applied since the standby was
+     * opened
+     */
+    public synchronized long getAppliedCount() {
+        return applied;
+    }
+
+    /**
+     * Stop applying and close the primary's log.
+     */
+    public void close() throws IOException, InterruptedException {
+        stop();
+        synchronized (this) {
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SystemTables exposes internal state of the database as read-only tables
+ * that can be queried with SQL, e.g. <tt>SELECT * FROM sys_lock_waits</tt>.
+ * <p/>
+ * A system table is a snapshot: every time a query names it, the Parser calls
+ * {@link #refresh} which writes the current state to a temporary heap file and
+ * (re)registers it in the Catalog, so the rest of the query pipeline treats it
+ * like any other table.
+ * <p/>
+ * The available tables are:
+ * <ul>
+ * <li> sys_lock_waits(table_id, page_no, waits, wait_ms, max_queue, queue,
+ * upgrades, upgrade_waits, aborts): one row per lock that has seen contention,
+ * see {@link LockManager.LockStats}
+ * <li> sys_lock_waiters(waiter_tid, holder_tid, table_id, page_no): one row
+ * per transaction that is queued for a lock held by another transaction
+ * </ul>
+ */
+public class SystemTables {
+
+    public static final String LOCK_WAITS = "sys_lock_waits";
+    public static final String LOCK_WAITERS = "sys_lock_waiters";
+
+    private static final String[] LOCK_WAITS_FIELDS = {"table_id", "page_no", "waits", "wait_ms",
+            "max_queue", "queue", "upgrades", "upgrade_waits", "aborts"};
+    private static final String[] LOCK_WAITERS_FIELDS = {"waiter_tid", "holder_tid", "table_id", "page_no"};
+
+    /**
+     * Backing file of each system table, reused across refreshes
+     */
+    private static HashMap<String, File> files = new HashMap<String, File>();
+
+    /**
+     * @return true if name is the name of a system table
+     */
+    public static boolean isSystemTable(String name) {
+        return LOCK_WAITS.equals(name) || LOCK_WAITERS.equals(name);
+    }
+
+    /**
+     * Take a new snapshot of the specified system table, register it in the
+     * Catalog and compute its statistics.
+     *
+     * @param name the name of the system table
+     * @return the table id of the refreshed table
+     */
+    public static synchronized int refresh(String name) throws IOException {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        String[] fields;
+        LockManager lm = BufferPool.getLockManager();
+
+        if (LOCK_WAITS.equals(name)) {
+            fields = LOCK_WAITS_FIELDS;
+            for (LockManager.LockStats ls : lm.getLockStats()) {
+                PageId pid = ls.getPid();
+                rows.add(row(pid.getTableId(), pid.pageNumber(), ls.getWaits(), (int) ls.getWaitTime(),
+                        ls.getMaxQueue(), lm.getQueueLength(pid), ls.getUpgrades(), ls.getUpgradeWaits(),
+                        ls.getAborts()));
+            }
+        } else if (LOCK_WAITERS.equals(name)) {
+            fields = LOCK_WAITERS_FIELDS;
+            for (Object[] edge : lm.getWaitsFor()) {
+                PageId pid = (PageId) edge[2];
+                rows.add(row((int) ((TransactionId) edge[0]).getId(), (int) ((TransactionId) edge[1]).getId(),
+                        pid.getTableId(), pid.pageNumber()));
+            }
+        } else {
+            throw new NoSuchElementException("no system table named " + name);
+        }
+
+        File f = files.get(name);
+        if (f == null) {
+            f = File.createTempFile(name, ".dat");
+            f.deleteOnExit();
+            files.put(name, f);
+        }
+
+        // make sure the buffer pool doesn't serve pages of an older snapshot
+        HeapFile old = new HeapFile(f, Utility.getTupleDesc(fields.length));
+        for (int i = 0; i < old.numPages(); i++) {
+            Database.getBufferPool().discardPage(new HeapPageId(old.getId(), i));
+        }
+
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), fields.length);
+        HeapFile hf = new HeapFile(f, new TupleDesc(Utility.getTypes(fields.length), fields));
+        Database.getCatalog().addTable(hf, name);
+        TableStats.setTableStats(name, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        return hf.getId();
+    }
+
+    private static ArrayList<Integer> row(int... values) {
+        ArrayList<Integer> row = new ArrayList<Integer>(values.length);
+        for (int v : values) {
+            row.add(v);
+        }
+        return row;
+    }
+}
@@ -73,7 +73,8 @@ public class TableStats {
     private double scanCost;
     private int numtups = 0;
     
-    private void populateMaxMinNumtups(DbFileIterator tupit, int numfields) {
+    private void populateMaxMinNumtups(DbFileIterator tupit, TupleDesc td) {
+    	int numfields = td.numFields();
     	//System.out.println("finding the min and max for each field...");
     	Tuple t;
     	Field f;
@@ -134,6 +135,19 @@ public class TableStats {
     		System.out.println(e);
     	}
     	
+    	// an empty table still needs a (degenerate) range for each field
+    	if (numtups == 0) {
+    		for (int i=0; i<numfields; i++) {
+    			if (td.getFieldType(i).equals(Type.INT_TYPE)) {
+    				maxvals[i] = new IntField(0);
+    				minvals[i] = new IntField(0);
+    			} else {
+    				maxvals[i] = new StringField("",1);
+    				minvals[i] = new StringField("",1);
+    			}
+    		}
+    	}
+    	
     	//System.out.println("done");
     }
     
@@ -272,7 +286,7 @@ public class TableStats {
 		}
     	
     	// get the max, min, numtups
-    	populateMaxMinNumtups(tupit, Database.getCatalog().getDatabaseFile(tableid).getTupleDesc().numFields());
+    	populateMaxMinNumtups(tupit, Database.getCatalog().getDatabaseFile(tableid).getTupleDesc());
     	
     	// create histograms
     	populateHists(tupit);
@@ -10,16 +10,92 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private boolean readOnly = false;
+    private boolean optimistic = false;
+    private boolean synchronousCommit = defaultSynchronousCommit;
+
+    /**
+     * Whether new transactions commit synchronously, set with
+     * -Dsimpledb.SynchronousCommit or setDefaultSynchronousCommit
+     */
+    private static volatile boolean defaultSynchronousCommit =
+            !"false".equalsIgnoreCase(System.getProperty("simpledb.SynchronousCommit"));
 
     public Transaction() {
         tid = new TransactionId();
     }
 
+    /**
+     * Mark this transaction as read-only.  A read-only transaction reads a
+     * consistent snapshot of the database as of the moment it starts and
+     * never acquires locks, so it neither blocks nor is blocked by writers.
+     * Must be called before start().
+     */
+    public void setReadOnly(boolean readOnly) {
+        if (started) {
+            throw new IllegalStateException("transaction has already started");
+        }
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Run this transaction under optimistic concurrency control.  An
+     * optimistic transaction reads a snapshot of the database without
+     * acquiring locks and keeps its writes private until commit, when it is
+     * validated against the transactions that committed in the meantime.
+     * An optimistic transaction finishes with validateAndCommit() instead of
+     * commit(), which throws IllegalStateException for it.  Must be called
+     * before start().
+     */
+    public void setOptimistic(boolean optimistic) {
+        if (started) {
+            throw new IllegalStateException("transaction has already started");
+        }
+        this.optimistic = optimistic;
+    }
+
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * Choose whether commit() waits for the commit record to be forced to
+     * disk (the default).  With synchronous commit off, commit() returns as
+     * soon as the commit record is in the log buffer and the log is forced
+     * in the background shortly after, so a crash may lose the last few
+     * committed transactions -- each of them entirely -- in exchange for
+     * much higher commit throughput.
+     */
+    public void setSynchronousCommit(boolean synchronousCommit) {
+        this.synchronousCommit = synchronousCommit;
+    }
+
+    public boolean isSynchronousCommit() {
+        return synchronousCommit;
+    }
+
+    /**
+     * Set whether transactions created from now on commit synchronously,
+     * e.g. for the rest of a bulk loading session.
+     */
+    public static void setDefaultSynchronousCommit(boolean synchronousCommit) {
+        defaultSynchronousCommit = synchronousCommit;
+    }
+
     /**
      * Start the transaction running
      */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+        } else if (optimistic) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -38,6 +114,29 @@ public class Transaction {
         transactionComplete(false);
     }
 
+    /**
+     * Validate and finish an optimistic transaction.  If another transaction
+     * committed a change to a page it used since it started, the transaction
+     * is aborted instead.  Other transactions are simply committed.
+     *
+     * @throws TransactionAbortedException if validation failed and the
+     *                                     transaction was aborted
+     */
+    public void validateAndCommit() throws IOException, TransactionAbortedException {
+        if (started && optimistic) {
+            try {
+                Database.getBufferPool().validateOptimistic(tid);
+            } catch (TransactionAbortedException e) {
+                complete(true);
+                throw e;
+            } catch (DbException e) {
+                complete(true);
+                throw new TransactionAbortedException();
+            }
+        }
+        complete(false);
+    }
+
     /**
      * Finish the transaction
      */
@@ -49,6 +148,13 @@ public class Transaction {
      * Handle the details of transaction commit / abort
      */
     public void transactionComplete(boolean abort) throws IOException {
+        if (started && optimistic && !abort) {
+            throw new IllegalStateException("optimistic transactions commit with validateAndCommit()");
+        }
+        complete(abort);
+    }
+
+    private void complete(boolean abort) throws IOException {
 
         if (started) {
             //write commit / abort records
@@ -57,7 +163,7 @@ public class Transaction {
             } else {
                 //write all the dirty pages for this transaction out
                 Database.getBufferPool().flushPages(tid);  // force policy, drop this as challenge problem
-                Database.getLogFile().logCommit(tid);
+                Database.getLogFile().logCommit(tid, synchronousCommit);
             }
 
             try {
@@ -0,0 +1,60 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class BloomFilterTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for BloomFilter.mightContain(): every added field is found,
+     * and few others are
+     */
+    @Test
+    public void mightContain() {
+        BloomFilter f = new BloomFilter(1000);
+        for (int i = 0; i < 1000; i++) {
+            f.add(new IntField(i * 7));
+        }
+        assertEquals(1000, f.getCount());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(f.mightContain(new IntField(i * 7)));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (f.mightContain(new IntField(-1 - i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300);
+    }
+
+    @Test
+    public void strings() {
+        BloomFilter f = new BloomFilter(10);
+        f.add(new StringField("sam", Type.STRING_LEN));
+        assertTrue(f.mightContain(new StringField("sam", Type.STRING_LEN)));
+        assertTrue(f.getNumBits() >= 100);
+    }
+
+    /**
+     * A filter never outgrows its largest size.
+     */
+    @Test
+    public void bounded() {
+        BloomFilter f = new BloomFilter(Long.MAX_VALUE / 100);
+        assertEquals(BloomFilter.MAX_BITS, f.getNumBits());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BloomFilterTest.class);
+    }
+}
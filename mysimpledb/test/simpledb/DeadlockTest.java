@@ -9,6 +9,8 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -224,6 +226,55 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
         System.out.println("testUpgradeWriteDeadlock resolved deadlock");
     }
 
+    /**
+     * Under WAIT_DIE, a younger transaction requesting a lock held by an older
+     * one aborts right away, while an older transaction waits for a younger one.
+     */
+    @Test
+    public void testWaitDie() throws Exception {
+        BufferPool.getLockManager().setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+        LockGrabber lgOld = startGrabber(tid1, p1, Permissions.READ_WRITE);
+        LockGrabber lgYoung = startGrabber(tid2, p0, Permissions.READ_WRITE);
+        Thread.sleep(POLL_INTERVAL);
+
+        assertTrue(lgYoung.getError() instanceof TransactionAbortedException);
+        assertNull(lgOld.getError());
+
+        // the young transaction's abort releases p1 to the old one
+        assertTrue(lgOld.acquired());
+        lgOld.stop();
+        lgYoung.stop();
+    }
+
+    /**
+     * Under WOUND_WAIT, an older transaction wounds the younger transaction in
+     * its way, which aborts the next time it asks for a lock.
+     */
+    @Test
+    public void testWoundWait() throws Exception {
+        BufferPool.getLockManager().setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+        LockGrabber lgOld = startGrabber(tid1, p1, Permissions.READ_WRITE);
+        Thread.sleep(POLL_INTERVAL);
+        assertFalse(lgOld.acquired());
+        assertNull(lgOld.getError());
+
+        // tid2 was wounded, so it aborts instead of waiting for tid1
+        LockGrabber lgYoung = startGrabber(tid2, p0, Permissions.READ_WRITE);
+        Thread.sleep(POLL_INTERVAL);
+        assertTrue(lgYoung.getError() instanceof TransactionAbortedException);
+        assertTrue(lgOld.acquired());
+        lgOld.stop();
+        lgYoung.stop();
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,128 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupCommitTest extends TestUtil.CreateHeapFile {
+    private static final int THREADS = 16;
+    private static final int COMMITS = 10;
+
+    private File f;
+    private File segment;
+    private LogFile log;
+    private long oldDelay;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        segment = new File(f.getPath() + ".000000");
+        segment.deleteOnExit();
+        log = new LogFile(f);
+        oldDelay = LogFile.groupCommitDelay;
+        LogFile.groupCommitDelay = 2;
+    }
+
+    @After
+    public void tearDown() {
+        LogFile.groupCommitDelay = oldDelay;
+    }
+
+    /**
+     * Concurrent committers share log forces instead of forcing once each.
+     */
+    @Test
+    public void committersShareForces() throws Exception {
+        final AtomicInteger done = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < COMMITS; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                            done.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(THREADS * COMMITS, done.get());
+        assertTrue(log.getForceCount() < THREADS * COMMITS);
+    }
+
+    /**
+     * Records are buffered in memory and get increasing LSNs; flushTo writes
+     * the log up to the requested record.
+     */
+    @Test
+    public void bufferedRecordsGetLSNs() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.getCurrentLSN();
+        assertEquals(0, segment.length());
+
+        Page p = new HeapPage(new HeapPageId(empty.getId(), 0), HeapPage.createEmptyPageData());
+        long lsn1 = log.logWrite(tid, p, p);
+        long lsn2 = log.logWrite(tid, p, p);
+        assertEquals(start, lsn1);
+        assertTrue(lsn2 > lsn1);
+        assertTrue(log.getFlushedLSN() <= lsn1);
+
+        log.flushTo(lsn2);
+        assertTrue(log.getFlushedLSN() > lsn2);
+        assertEquals(log.getCurrentLSN(), segment.length());
+    }
+
+    /**
+     * An asynchronous commit returns before the log is forced, and the log
+     * writer forces it shortly after.
+     */
+    @Test
+    public void asyncCommitIsForcedLater() throws Exception {
+        long oldAsyncDelay = LogFile.asyncCommitDelay;
+        LogFile.asyncCommitDelay = 200;
+        try {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid, false);
+            long end = log.getCurrentLSN();
+            assertTrue(log.getFlushedLSN() < end);
+
+            for (int i = 0; i < 100 && log.getFlushedLSN() < end; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(end, log.getFlushedLSN());
+            assertEquals(end, segment.length());
+        } finally {
+            LogFile.asyncCommitDelay = oldAsyncDelay;
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
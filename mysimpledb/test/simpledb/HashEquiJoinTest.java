@@ -0,0 +1,179 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    int width1 = 2;
+    int width2 = 3;
+    DbIterator scan1;
+    DbIterator scan2;
+    DbIterator eqJoin;
+
+    /**
+     * Initialize each unit test
+     */
+    @Before
+    public void createTupleLists() throws Exception {
+        this.scan1 = TestUtil.createTupleList(width1,
+                new int[]{1, 2,
+                        3, 4,
+                        5, 6,
+                        7, 8});
+        this.scan2 = TestUtil.createTupleList(width2,
+                new int[]{1, 2, 3,
+                        2, 3, 4,
+                        3, 4, 5,
+                        4, 5, 6,
+                        5, 6, 7});
+        this.eqJoin = TestUtil.createTupleList(width1 + width2,
+                new int[]{1, 2, 1, 2, 3,
+                        3, 4, 3, 4, 5,
+                        5, 6, 5, 6, 7});
+    }
+
+    @After
+    public void resetBudget() {
+        HashEquiJoin.setMemoryBudget(4 << 20);
+        HashEquiJoin.setNumPartitions(16);
+    }
+
+    /**
+     * Unit test for HashEquiJoin.getTupleDesc()
+     */
+    @Test
+    public void getTupleDesc() {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+        TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+        TupleDesc actual = op.getTupleDesc();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Unit test for HashEquiJoin.rewind()
+     */
+    @Test
+    public void rewind() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+        op.open();
+        while (op.hasNext()) {
+            assertNotNull(op.next());
+        }
+        assertTrue(TestUtil.checkExhausted(op));
+        op.rewind();
+
+        eqJoin.open();
+        Tuple expected = eqJoin.next();
+        Tuple actual = op.next();
+        assertTrue(TestUtil.compareTuples(expected, actual));
+    }
+
+    /**
+     * Unit test for HashEquiJoin.getNext() using an = predicate
+     */
+    @Test
+    public void eqJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+        op.open();
+        eqJoin.open();
+        TestUtil.matchAllTuples(eqJoin, op);
+    }
+
+    /**
+     * Only equality predicates can be hashed.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void gtJoin() {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+        new HashEquiJoin(pred, scan1, scan2);
+    }
+
+    private static TupleIterator randomTuples(Random r, int width, int rows, int maxValue) {
+        int[] data = new int[width * rows];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = r.nextInt(maxValue);
+        }
+        return TestUtil.createTupleList(width, data);
+    }
+
+    private static List<String> drain(DbIterator it) throws Exception {
+        List<String> out = new ArrayList<String>();
+        while (it.hasNext()) {
+            out.add(it.next().toString());
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * A build side over the memory budget is spilled and still joins to
+     * what the nested loops join returns, also after a rewind.
+     */
+    @Test
+    public void spill() throws Exception {
+        Random r = new Random(1);
+        DbIterator left = randomTuples(r, width1, 2000, 500);
+        DbIterator right = randomTuples(r, width2, 1500, 500);
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        Join nl = new Join(pred, left, right);
+        nl.open();
+        List<String> expected = drain(nl);
+        nl.close();
+        assertFalse(expected.isEmpty());
+
+        HashEquiJoin.setMemoryBudget(1000);
+        HashEquiJoin.setNumPartitions(4);
+        HashEquiJoin op = new HashEquiJoin(pred, left, right);
+        op.open();
+        assertEquals(expected, drain(op));
+        assertTrue(op.getSpillCount() > 4);     // spilled partitions were partitioned again
+        op.rewind();
+        assertEquals(expected, drain(op));
+        op.close();
+    }
+
+    /**
+     * Equal join fields cannot be partitioned apart; they are joined in
+     * memory once the rounds of partitioning run out.
+     */
+    @Test
+    public void skew() throws Exception {
+        Random r = new Random(2);
+        DbIterator left = randomTuples(r, width1, 300, 1);
+        DbIterator right = randomTuples(r, width2, 200, 1);
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        HashEquiJoin.setMemoryBudget(100);
+        HashEquiJoin op = new HashEquiJoin(pred, left, right);
+        op.open();
+        assertEquals(300 * 200, drain(op).size());
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashSemiJoinTest extends SimpleDbTestBase {
+
+    int width1 = 2;
+    int width2 = 3;
+    DbIterator scan1;
+    DbIterator scan2;
+    DbIterator semiJoin;
+    DbIterator antiJoin;
+
+    /**
+     * Initialize each unit test
+     */
+    @Before
+    public void createTupleLists() throws Exception {
+        this.scan1 = TestUtil.createTupleList(width1,
+                new int[]{1, 2,
+                        3, 4,
+                        5, 6,
+                        7, 8});
+        this.scan2 = TestUtil.createTupleList(width2,
+                new int[]{1, 2, 3,
+                        3, 4, 5,
+                        3, 5, 6,
+                        1, 6, 7,
+                        2, 7, 8});
+        this.semiJoin = TestUtil.createTupleList(width1,
+                new int[]{1, 2,
+                        3, 4});
+        this.antiJoin = TestUtil.createTupleList(width1,
+                new int[]{5, 6,
+                        7, 8});
+    }
+
+    /**
+     * Unit test for HashSemiJoin.getTupleDesc()
+     */
+    @Test
+    public void getTupleDesc() {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashSemiJoin op = new HashSemiJoin(pred, scan1, scan2, false);
+        TupleDesc expected = Utility.getTupleDesc(width1);
+        TupleDesc actual = op.getTupleDesc();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Unit test for HashSemiJoin.rewind()
+     */
+    @Test
+    public void rewind() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashSemiJoin op = new HashSemiJoin(pred, scan1, scan2, false);
+        op.open();
+        while (op.hasNext()) {
+            assertFalse(op.next() == null);
+        }
+        op.rewind();
+
+        semiJoin.open();
+        TestUtil.compareDbIterators(semiJoin, op);
+    }
+
+    /**
+     * Unit test for HashSemiJoin.getNext() using an = predicate: tuples with
+     * several matches come out once
+     */
+    @Test
+    public void semiJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashSemiJoin op = new HashSemiJoin(pred, scan1, scan2, false);
+        op.open();
+        semiJoin.open();
+        TestUtil.compareDbIterators(semiJoin, op);
+    }
+
+    /**
+     * Unit test for HashSemiJoin.getNext() as an anti-join
+     */
+    @Test
+    public void antiJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashSemiJoin op = new HashSemiJoin(pred, scan1, scan2, true);
+        op.open();
+        antiJoin.open();
+        TestUtil.compareDbIterators(antiJoin, op);
+    }
+
+    private void assertTuples(int[] expected, DbIterator actual) throws Exception {
+        DbIterator it = TestUtil.createTupleList(width1, expected);
+        it.open();
+        TestUtil.compareDbIterators(it, actual);
+    }
+
+    /**
+     * Range and other predicates match if any inner field satisfies them
+     */
+    @Test
+    public void otherPredicates() throws Exception {
+        // 1, 3, 5, 7 > any of 1, 3, 3, 1, 2
+        HashSemiJoin op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0),
+                scan1, scan2, false);
+        op.open();
+        assertTuples(new int[]{3, 4, 5, 6, 7, 8}, op);
+        op.close();
+
+        // 2, 4, 6, 8 <= any of 3, 5, 6, 7, 8
+        op = new HashSemiJoin(new JoinPredicate(1, Predicate.Op.LESS_THAN_OR_EQ, 2),
+                scan1, scan2, true);
+        op.open();
+        assertFalse(op.hasNext());
+        op.close();
+
+        // 1, 3, 5, 7 <> any of 2, 4, 5, 6, 7
+        op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 1),
+                scan1, scan2, false);
+        op.open();
+        assertTuples(new int[]{1, 2, 3, 4, 5, 6, 7, 8}, op);
+    }
+
+    /**
+     * Without a predicate every tuple matches as long as child2 has one
+     */
+    @Test
+    public void exists() throws Exception {
+        HashSemiJoin op = new HashSemiJoin(null, scan1, scan2, false);
+        op.open();
+        assertTuples(new int[]{1, 2, 3, 4, 5, 6, 7, 8}, op);
+        op.close();
+
+        DbIterator empty = TestUtil.createTupleList(width2, new int[]{});
+        op = new HashSemiJoin(null, scan1, empty, false);
+        op.open();
+        assertFalse(op.hasNext());
+        op.close();
+
+        op = new HashSemiJoin(null, scan1, empty, true);
+        op.open();
+        assertTuples(new int[]{1, 2, 3, 4, 5, 6, 7, 8}, op);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashSemiJoinTest.class);
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -201,6 +202,100 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(Boolean.TRUE, ret[0]);
     }
 
+    /**
+     * A band join of two large tables is cheaper sorted and merged than with
+     * nested loops, and orderJoins() marks it to be run that way.
+     */
+    @Test
+    public void sortMergeBandJoin() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN));
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2
+                + " t2 WHERE t1.c1 < t2.c2;"), nodes);
+
+        double nestedLoops = jo.estimateJoinCost(nodes.get(0), 1000, 10000, 100, 1000);
+        Assert.assertTrue(nestedLoops < 1000 + 1000.0 * 10000);
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("t1", 1.0);
+        filterSelectivities.put("t2", 1.0);
+        Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(1, result.size());
+        Assert.assertTrue(result.get(0).sortMerge);
+
+        // and an equality join stays a hash join
+        nodes.set(0, new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS));
+        jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2
+                + " t2 WHERE t1.c1 = t2.c2;"), nodes);
+        result = jo.orderJoins(stats, filterSelectivities, false);
+        Assert.assertFalse(result.get(0).sortMerge);
+    }
+
+    private static int countTuples(DbIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * IN, NOT IN and EXISTS subqueries are planned as semi-joins and
+     * anti-joins, which return each outer tuple at most once.
+     */
+    @Test
+    public void subqueryJoins() throws Exception {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        HashSet<Integer> inner = new HashSet<Integer>();
+        for (ArrayList<Integer> t : tuples2) {
+            if (t.get(3) < 3) {
+                inner.add(t.get(2));
+            }
+        }
+        int in = 0;
+        for (ArrayList<Integer> t : tuples1) {
+            if (inner.contains(t.get(1))) {
+                in++;
+            }
+        }
+        String sub = "(SELECT t2.c2 FROM " + tableName2 + " t2 WHERE t2.c3 < 3)";
+
+        DbIterator it = p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1
+                + " t1 WHERE t1.c1 IN " + sub + ";").physicalPlan(tid, TableStats.getStatsMap(), false);
+        Assert.assertEquals(in, countTuples(it));
+
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1
+                + " t1 WHERE t1.c1 NOT IN " + sub + ";");
+        Assert.assertEquals(tuples1.size() - in, countTuples(lp.physicalPlan(tid, TableStats.getStatsMap(), false)));
+
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode("t1", "c1", new SeqScan(tid, tableId2, "t2"),
+                Predicate.Op.EQUALS, true);
+        DbIterator j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, tableId1, "t1"), lj.subPlan);
+        Assert.assertTrue(j instanceof HashSemiJoin);
+        Assert.assertTrue(((HashSemiJoin) j).isAnti());
+
+        it = p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1
+                + " t1 WHERE EXISTS " + sub + ";").physicalPlan(tid, TableStats.getStatsMap(), false);
+        Assert.assertEquals(inner.isEmpty() ? 0 : tuples1.size(), countTuples(it));
+        it = p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1
+                + " t1 WHERE NOT EXISTS (SELECT t2.c2 FROM " + tableName2
+                + " t2 WHERE t2.c3 > 100);").physicalPlan(tid, TableStats.getStatsMap(), false);
+        Assert.assertEquals(tuples1.size(), countTuples(it));
+
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /**
      * Verify that the join cardinalities produced by estimateJoinCardinality()
      * are reasonable
@@ -111,6 +111,39 @@ public class JoinTest extends SimpleDbTestBase {
         TestUtil.matchAllTuples(eqJoin, op);
     }
 
+    /**
+     * The inner relation is scanned once per block of outer tuples, and
+     * the join returns the same tuples whatever the block size.
+     */
+    @Test
+    public void blocks() throws Exception {
+        try {
+            JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+            Join.setBlockTuples(3);
+            Join op = new Join(pred, scan1, scan2);
+            op.open();
+            int count = 0;
+            while (op.hasNext()) {
+                op.next();
+                count++;
+            }
+            assertEquals(11, count);
+            assertEquals(2, op.getInnerScans());
+            gtJoin.open();
+            TestUtil.matchAllTuples(gtJoin, op);
+
+            Join.setBlockTuples(1);
+            op = new Join(pred, scan1, scan2);
+            op.open();
+            while (op.hasNext()) {
+                op.next();
+            }
+            assertEquals(4, op.getInnerScans());
+        } finally {
+            Join.setBlockPages(16);
+        }
+    }
+
     /**
      * JUnit suite target
      */
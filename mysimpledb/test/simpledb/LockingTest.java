@@ -4,7 +4,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import junit.framework.JUnit4TestAdapter;
 import simpledb.systemtest.SystemTestUtil;
@@ -131,6 +133,78 @@ public class LockingTest extends TestUtil.CreateHeapFile {
         grabLock(tid1, p1, Permissions.READ_WRITE, true);
     }
 
+    /**
+     * Unit test for LockManager lock table garbage collection.
+     * Lock entries are reclaimed once no transaction holds or waits for them.
+     */
+    @Test
+    public void lockEntriesReclaimed() throws Exception {
+        LockManager lm = BufferPool.getLockManager();
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+        bp.getPage(tid1, p1, Permissions.READ_WRITE);
+        assertEquals(2, lm.numLockEntries());
+
+        bp.releasePage(tid1, p1);
+        assertEquals(1, lm.numLockEntries());
+
+        bp.transactionComplete(tid1);
+        assertEquals(1, lm.numLockEntries());
+        bp.transactionComplete(tid2);
+        assertEquals(0, lm.numLockEntries());
+    }
+
+    /**
+     * Unit test for LockManager contention statistics and the sys_lock_waits
+     * system table.
+     */
+    @Test
+    public void contentionStats() throws Exception {
+        LockManager lm = BufferPool.getLockManager();
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        grabLock(tid2, p0, Permissions.READ_WRITE, false);
+
+        assertEquals(1, lm.getLockStats().size());
+        LockManager.LockStats ls = lm.getLockStats().get(0);
+        assertEquals(p0, ls.getPid());
+        assertEquals(1, ls.getWaits());
+        assertEquals(1, lm.getWaitsFor().size());
+
+        // the statistics can be read back as a table
+        int tableid = SystemTables.refresh(SystemTables.LOCK_WAITS);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, tableid);
+        scan.open();
+        assertTrue(scan.hasNext());
+        Tuple t = scan.next();
+        assertEquals(p0.pageNumber(), ((IntField) t.getField(1)).getValue());
+        assertEquals(1, ((IntField) t.getField(2)).getValue());
+        assertFalse(scan.hasNext());
+        scan.close();
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for the bound on the contention statistics: the locks that saw
+     * contention least recently are forgotten.
+     */
+    @Test
+    public void contentionStatsBounded() throws Exception {
+        LockManager lm = BufferPool.getLockManager();
+        LockManager.setMaxStatsEntries(1);
+        try {
+            bp.getPage(tid1, p0, Permissions.READ_WRITE);
+            grabLock(tid2, p0, Permissions.READ_WRITE, false);
+            bp.getPage(tid1, p1, Permissions.READ_WRITE);
+            grabLock(new TransactionId(), p1, Permissions.READ_WRITE, false);
+
+            assertEquals(1, lm.getLockStats().size());
+            assertEquals(p1, lm.getLockStats().get(0).getPid());
+        } finally {
+            LockManager.setMaxStatsEntries(1024);
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,185 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class LogChainTest extends TestUtil.CreateHeapFile {
+    private File f;
+    private LogFile log;
+    private Page p;
+    private int oldCacheSize;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        f = File.createTempFile("logchain", ".log");
+        f.deleteOnExit();
+        new File(f.getPath() + ".000000").deleteOnExit();
+        log = new LogFile(f);
+        p = new HeapPage(new HeapPageId(empty.getId(), 0), HeapPage.createEmptyPageData());
+        oldCacheSize = LogFile.tailCacheSize;
+    }
+
+    @After
+    public void tearDown() {
+        LogFile.tailCacheSize = oldCacheSize;
+    }
+
+    /**
+     * Following prevLSN from a transaction's last record visits only its
+     * own records, newest first.
+     */
+    @Test
+    public void chainsSkipOtherTransactions() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        List<Long> expected = new ArrayList<Long>();
+
+        log.logXactionBegin(t1);
+        expected.add(0, log.getLastLSN(t1.getId()));
+        log.logXactionBegin(t2);
+        for (int i = 0; i < 5; i++) {
+            expected.add(0, log.logWrite(t1, p, p));
+            log.logWrite(t2, p, p);
+            log.logWrite(t2, p, p);
+        }
+
+        List<Long> chain = new ArrayList<Long>();
+        long lsn = log.getLastLSN(t1.getId());
+        while (lsn != LogRecord.NO_PREV_LSN) {
+            LogRecord r = log.getCachedRecord(lsn);
+            assertNotNull(r);
+            assertEquals(t1.getId(), r.tid);
+            chain.add(lsn);
+            lsn = r.prevLSN;
+        }
+        assertEquals(expected, chain);
+
+        log.logCommit(t1);
+        assertEquals(LogRecord.NO_PREV_LSN, log.getLastLSN(t1.getId()));
+    }
+
+    /**
+     * The tail cache only keeps the most recent records.
+     */
+    @Test
+    public void tailCacheIsBounded() throws Exception {
+        LogFile.tailCacheSize = 2048;
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long first = log.logWrite(tid, p, p);
+        for (int i = 0; i < 100; i++) {
+            log.logWrite(tid, p, p);
+        }
+        long last = log.logWrite(tid, p, p);
+
+        assertNull(log.getCachedRecord(first));
+        assertNotNull(log.getCachedRecord(last));
+    }
+
+    /**
+     * A CLR points undo at the record before the update it compensates.
+     */
+    @Test
+    public void clrPointsPastCompensatedUpdate() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long first = log.logWrite(tid, p, p);
+        LogRecord second = log.getCachedRecord(log.logWrite(tid, p, p));
+        long clr = log.logCLR(tid.getId(), second);
+        log.force();
+
+        LogInput in = log.newInput();
+        in.seek(clr);
+        LogRecord r = LogRecord.read(in);
+        assertEquals(LogType.CLR_RECORD, r.type);
+        assertEquals(second.lsn, r.prevLSN);
+        assertEquals(first, r.undoNext());
+    }
+
+    /**
+     * Recovery doesn't undo again the updates of a loser that an undo
+     * interrupted by a crash already compensated.
+     */
+    @Test
+    public void undoSkipsCompensatedUpdates() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        LogFile lf = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.flushAllPages();
+        bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(2, 2));
+        bp.flushAllPages();
+
+        // crash right after undo compensated the second insert
+        LogRecord second = lf.getCachedRecord(lf.getLastLSN(t.getId().getId()));
+        long clr = lf.logCLR(t.getId().getId(), second);
+        lf.flushTo(clr);
+        second.diff.applyToDisk(false, clr);
+        long crashed = lf.getCurrentLSN();
+
+        Database.reset();
+        Database.getCatalog().addTable(empty);
+        Database.getLogFile().recover();
+
+        int clrs = 0;
+        LogInput in = Database.getLogFile().newInput();
+        in.seek(crashed);
+        LogRecord r;
+        while ((r = LogRecord.readNext(in)) != null) {
+            if (r.type == LogType.CLR_RECORD && r.tid == t.getId().getId()) {
+                clrs++;
+            }
+        }
+        assertEquals(1, clrs);
+
+        HeapPage hp = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0));
+        assertFalse(hp.iterator().hasNext());
+    }
+
+    /**
+     * Rolling back forces the log once for all its CLRs, not once per
+     * undone record.
+     */
+    @Test
+    public void rollbackForcesOnce() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        LogFile lf = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 5; i++) {
+            bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+            bp.flushAllPages();
+        }
+
+        long forces = lf.getForceCount();
+        lf.logAbort(t.getId());
+        // one for the CLRs, one for the abort record
+        assertTrue(lf.getForceCount() - forces <= 2);
+        bp.transactionComplete(t.getId(), false);
+
+        HeapPage hp = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0));
+        assertFalse(hp.iterator().hasNext());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogChainTest.class);
+    }
+}
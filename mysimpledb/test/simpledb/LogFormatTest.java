@@ -0,0 +1,170 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFormatTest extends TestUtil.CreateHeapFile {
+    private File f;
+    private File segment;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        f = File.createTempFile("logformat", ".log");
+        f.deleteOnExit();
+        segment = new File(f.getPath() + ".000000");
+        segment.deleteOnExit();
+    }
+
+    /**
+     * Page ids are written as a type code and their integers, without class
+     * names, and read back without reflection.
+     */
+    @Test
+    public void pageIds() throws Exception {
+        HeapPageId pid = new HeapPageId(empty.getId(), 7);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LogFile.writePageId(new DataOutputStream(bytes), pid);
+        assertEquals(2 + 2 * LogFile.INT_SIZE, bytes.size());
+
+        PageId read = LogFile.readPageId(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(pid, read);
+    }
+
+    /**
+     * The standard CRC-32C check value.
+     */
+    @Test
+    public void crc32c() {
+        Crc32c crc = new Crc32c();
+        byte[] data = "123456789".getBytes();
+        crc.update(data, 0, data.length);
+        assertEquals(0xE3069283L, crc.getValue());
+    }
+
+    /**
+     * A record whose bytes don't match its checksum ends the log.
+     */
+    @Test
+    public void tornRecord() throws Exception {
+        LogFile log = new LogFile(f);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        Page p = new HeapPage(new HeapPageId(empty.getId(), 0), HeapPage.createEmptyPageData());
+        long lsn = log.logWrite(tid, p, p);
+        log.force();
+
+        LogInput in = new LogInput(new LogStorage(f, LogFile.getSegmentSize()));
+        assertNotNull(in.readRecord());
+        assertEquals(lsn, in.getFilePointer());
+        assertNotNull(in.readRecord());
+        assertNull(in.readRecord());
+
+        // flip a byte in the last record
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(lsn + LogFile.RECORD_HEADER_SIZE);
+        int b = raf.read();
+        raf.seek(lsn + LogFile.RECORD_HEADER_SIZE);
+        raf.write(b ^ 1);
+        raf.close();
+
+        in = new LogInput(new LogStorage(f, LogFile.getSegmentSize()));
+        assertNotNull(in.readRecord());
+        assertNull(in.readRecord());
+        assertEquals(lsn, in.getFilePointer());
+    }
+
+    /**
+     * A log opened read-only can be read but not written.
+     */
+    @Test
+    public void readOnly() throws Exception {
+        LogFile log = new LogFile(f);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.force();
+
+        LogStorage storage = new LogStorage(f, LogFile.getSegmentSize(), true);
+        assertNotNull(new LogInput(storage).readRecord());
+        try {
+            storage.setCheckpoint(0);
+            fail("wrote to a read-only log");
+        } catch (IOException e) {
+            // expected
+        }
+        storage.close();
+    }
+
+    /**
+     * The log is read in windows, forward and backward, and records appended
+     * after a window was read are still found.
+     */
+    @Test
+    public void windowedScans() throws Exception {
+        int oldSize = LogInput.windowSize;
+        LogInput.windowSize = 512;
+        try {
+            LogFile log = new LogFile(f);
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            Page p = new HeapPage(new HeapPageId(empty.getId(), 0), HeapPage.createEmptyPageData());
+            for (int i = 0; i < 100; i++) {
+                log.logWrite(tid, p, p);
+            }
+            log.force();
+
+            LogStorage storage = new LogStorage(f, LogFile.getSegmentSize());
+            LogInput in = new LogInput(storage);
+            ArrayList<Long> lsns = new ArrayList<Long>();
+            long lsn = in.getFilePointer();
+            while (in.readRecord() != null) {
+                lsns.add(lsn);
+                lsn = in.getFilePointer();
+            }
+            assertEquals(101, lsns.size());
+            long forwardFills = in.getFills();
+            assertTrue(forwardFills < lsns.size() / 4);
+
+            // follow the start LSNs in the trailers back to the first record
+            long end = in.length();
+            for (int i = lsns.size() - 1; i >= 0; i--) {
+                in.seek(end - LogFile.LONG_SIZE);
+                end = in.readLong();
+                assertEquals((long) lsns.get(i), end);
+            }
+            assertTrue(in.getFills() - forwardFills < lsns.size() / 4);
+
+            in.seek(lsn);
+            assertNull(in.readRecord());
+            log.logCommit(tid);
+            storage.refresh();
+            assertNotNull(in.readRecord());
+        } finally {
+            LogInput.windowSize = oldSize;
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFormatTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class OptimisticTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private TransactionId tid1, tid2;
+
+    // just so we have a pointer shorter than Database.getBufferPool()
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // one page with a single tuple on it
+        TransactionId tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(1, empty.numPages());
+
+        this.p0 = new HeapPageId(empty.getId(), 0);
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        this.tid1 = new TransactionId();
+        this.tid2 = new TransactionId();
+    }
+
+    private int countTuples(Page p) {
+        HeapPage hp = (HeapPage) p;
+        return hp.numSlots - hp.getNumEmptySlots();
+    }
+
+    /**
+     * Writes of an optimistic transaction are private until it commits, and
+     * it never takes locks while running.
+     */
+    @Test
+    public void privateWrites() throws Exception {
+        bp.beginOptimistic(tid1);
+        bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(2, countTuples(bp.getPage(tid1, p0, Permissions.READ_ONLY)));
+        assertFalse(bp.holdsLock(tid1, p0));
+
+        // a locking reader doesn't see the uncommitted tuple
+        assertEquals(1, countTuples(bp.getPage(tid2, p0, Permissions.READ_ONLY)));
+        bp.transactionComplete(tid2, true);
+
+        bp.validateOptimistic(tid1);
+        bp.transactionComplete(tid1, true);
+        assertEquals(2, countTuples(bp.getPage(tid2, p0, Permissions.READ_ONLY)));
+    }
+
+    /**
+     * An optimistic transaction that read a page another transaction changed
+     * after it started fails validation.
+     */
+    @Test
+    public void conflictAborts() throws Exception {
+        bp.beginOptimistic(tid1);
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+
+        HeapPage wp = (HeapPage) bp.getPage(tid2, p0, Permissions.READ_WRITE);
+        wp.insertTuple(Utility.getHeapTuple(2, 2));
+        wp.markDirty(true, tid2);
+        bp.transactionComplete(tid2, true);
+
+        try {
+            bp.validateOptimistic(tid1);
+            fail("validation should have failed");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        bp.transactionComplete(tid1, false);
+    }
+
+    /**
+     * An optimistic Transaction must commit through validateAndCommit(), which
+     * aborts it and throws if validation fails.
+     */
+    @Test
+    public void validateAndCommit() throws Exception {
+        Transaction t = new Transaction();
+        t.setOptimistic(true);
+        t.start();
+        bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+        try {
+            t.commit();
+            fail("commit() should not validate an optimistic transaction");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        HeapPage wp = (HeapPage) bp.getPage(tid2, p0, Permissions.READ_WRITE);
+        wp.insertTuple(Utility.getHeapTuple(2, 2));
+        wp.markDirty(true, tid2);
+        bp.transactionComplete(tid2, true);
+
+        try {
+            t.validateAndCommit();
+            fail("validation should have failed");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(bp.holdsLock(t.getId(), p0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
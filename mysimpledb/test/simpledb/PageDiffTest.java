@@ -0,0 +1,68 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class PageDiffTest extends TestUtil.CreateHeapFile {
+    private HeapPage before;
+    private HeapPage after;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        before.insertTuple(Utility.getHeapTuple(1, 2));
+        after = new HeapPage(pid, before.getPageData());
+        after.insertTuple(Utility.getHeapTuple(2, 2));
+    }
+
+    /**
+     * A small change produces a small diff that redoes and undoes exactly.
+     */
+    @Test
+    public void redoUndo() throws Exception {
+        PageDiff diff = PageDiff.compute(before, after);
+        assertTrue(diff.numRanges() > 0);
+        assertArrayEquals(after.getPageData(), diff.redo(before.getPageData()));
+        assertArrayEquals(before.getPageData(), diff.undo(after.getPageData()));
+
+        // applying a diff twice is harmless
+        assertArrayEquals(after.getPageData(), diff.redo(after.getPageData()));
+        assertArrayEquals(before.getPageData(), diff.inverse().redo(after.getPageData()));
+    }
+
+    /**
+     * The serialized diff is much smaller than a page and reads back the same.
+     */
+    @Test
+    public void serialize() throws Exception {
+        PageDiff diff = PageDiff.compute(before, after);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        diff.write(new DataOutputStream(bytes), true);
+        assertTrue(bytes.size() < BufferPool.getPageSize() / 10);
+
+        PageDiff read = PageDiff.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), true);
+        assertEquals(diff.getPageId(), read.getPageId());
+        assertEquals(diff.numRanges(), read.numRanges());
+        assertArrayEquals(after.getPageData(), read.redo(before.getPageData()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDiffTest.class);
+    }
+}
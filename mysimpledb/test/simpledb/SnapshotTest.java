@@ -0,0 +1,124 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private TransactionId tid1, tid2, tid3;
+
+    // just so we have a pointer shorter than Database.getBufferPool()
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // one page with a single tuple on it
+        TransactionId tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(1, empty.numPages());
+
+        this.p0 = new HeapPageId(empty.getId(), 0);
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        this.tid1 = new TransactionId();
+        this.tid2 = new TransactionId();
+        this.tid3 = new TransactionId();
+    }
+
+    private int countTuples(Page p) {
+        HeapPage hp = (HeapPage) p;
+        return hp.numSlots - hp.getNumEmptySlots();
+    }
+
+    /**
+     * A snapshot reader sees the committed contents of a page that another
+     * transaction is modifying and does not take any locks.
+     */
+    @Test
+    public void readBehindWriter() throws Exception {
+        HeapPage wp = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        wp.insertTuple(Utility.getHeapTuple(2, 2));
+        wp.markDirty(true, tid1);
+
+        bp.beginSnapshot(tid2);
+        assertEquals(1, countTuples(bp.getPage(tid2, p0, Permissions.READ_ONLY)));
+        assertFalse(bp.holdsLock(tid2, p0));
+        bp.transactionComplete(tid2, true);
+    }
+
+    /**
+     * A snapshot keeps seeing the version of a page as of the moment it
+     * started, even after a writer commits a newer version.
+     */
+    @Test
+    public void readOldVersionAfterCommit() throws Exception {
+        bp.beginSnapshot(tid2);
+        assertEquals(1, countTuples(bp.getPage(tid2, p0, Permissions.READ_ONLY)));
+
+        HeapPage wp = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        wp.insertTuple(Utility.getHeapTuple(2, 2));
+        wp.markDirty(true, tid1);
+        bp.transactionComplete(tid1, true);
+
+        // old snapshot still sees one tuple, a new one sees both
+        assertEquals(1, countTuples(bp.getPage(tid2, p0, Permissions.READ_ONLY)));
+        bp.beginSnapshot(tid3);
+        assertEquals(2, countTuples(bp.getPage(tid3, p0, Permissions.READ_ONLY)));
+
+        bp.transactionComplete(tid2, true);
+        bp.transactionComplete(tid3, true);
+    }
+
+    /**
+     * A snapshot materializes its version of a page once and reads the same
+     * copy again afterwards.
+     */
+    @Test
+    public void reuseMaterializedPage() throws Exception {
+        bp.beginSnapshot(tid2);
+        Page p = bp.getPage(tid2, p0, Permissions.READ_ONLY);
+        assertSame(p, bp.getPage(tid2, p0, Permissions.READ_ONLY));
+        bp.transactionComplete(tid2, true);
+
+        bp.beginSnapshot(tid3);
+        assertFalse(p == bp.getPage(tid3, p0, Permissions.READ_ONLY));
+        bp.transactionComplete(tid3, true);
+    }
+
+    /**
+     * Snapshot transactions are read-only.
+     */
+    @Test
+    public void cannotWrite() throws Exception {
+        bp.beginSnapshot(tid2);
+        try {
+            bp.getPage(tid2, p0, Permissions.READ_WRITE);
+            fail("snapshot transaction acquired a write lock");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid2, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
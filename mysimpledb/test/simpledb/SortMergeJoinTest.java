@@ -0,0 +1,210 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    int width1 = 2;
+    int width2 = 3;
+    DbIterator scan1;
+    DbIterator scan2;
+    DbIterator eqJoin;
+    DbIterator gtJoin;
+
+    /**
+     * Initialize each unit test
+     */
+    @Before
+    public void createTupleLists() throws Exception {
+        this.scan1 = TestUtil.createTupleList(width1,
+                new int[]{7, 8,
+                        3, 4,
+                        5, 6,
+                        1, 2});
+        this.scan2 = TestUtil.createTupleList(width2,
+                new int[]{4, 5, 6,
+                        2, 3, 4,
+                        5, 6, 7,
+                        1, 2, 3,
+                        3, 4, 5});
+        this.eqJoin = TestUtil.createTupleList(width1 + width2,
+                new int[]{1, 2, 1, 2, 3,
+                        3, 4, 3, 4, 5,
+                        5, 6, 5, 6, 7});
+        this.gtJoin = TestUtil.createTupleList(width1 + width2,
+                new int[]{
+                        3, 4, 1, 2, 3, // 1, 2 < 3
+                        3, 4, 2, 3, 4,
+                        5, 6, 1, 2, 3, // 1, 2, 3, 4 < 5
+                        5, 6, 2, 3, 4,
+                        5, 6, 3, 4, 5,
+                        5, 6, 4, 5, 6,
+                        7, 8, 1, 2, 3, // 1, 2, 3, 4, 5 < 7
+                        7, 8, 2, 3, 4,
+                        7, 8, 3, 4, 5,
+                        7, 8, 4, 5, 6,
+                        7, 8, 5, 6, 7});
+    }
+
+    @After
+    public void resetBudget() {
+        SortMergeJoin.setMemoryBudget(4 << 20);
+    }
+
+    /**
+     * Unit test for SortMergeJoin.getTupleDesc()
+     */
+    @Test
+    public void getTupleDesc() {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+        TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+        TupleDesc actual = op.getTupleDesc();
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Unit test for SortMergeJoin.getNext() using an = predicate: results
+     * come in the order of the join field
+     */
+    @Test
+    public void eqJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+        op.open();
+        eqJoin.open();
+        TestUtil.compareDbIterators(eqJoin, op);
+        op.rewind();
+        eqJoin.rewind();
+        TestUtil.compareDbIterators(eqJoin, op);
+    }
+
+    /**
+     * Unit test for SortMergeJoin.getNext() using a &gt; predicate
+     */
+    @Test
+    public void gtJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+        SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+        op.open();
+        gtJoin.open();
+        TestUtil.compareDbIterators(gtJoin, op);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notEquals() {
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan1, scan2);
+    }
+
+    private static TupleIterator randomTuples(Random r, int width, int rows, int maxValue) {
+        int[] data = new int[width * rows];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = r.nextInt(maxValue);
+        }
+        return TestUtil.createTupleList(width, data);
+    }
+
+    private static List<String> drain(DbIterator it) throws Exception {
+        List<String> out = new ArrayList<String>();
+        while (it.hasNext()) {
+            out.add(it.next().toString());
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * Every supported predicate returns what the nested loops join returns,
+     * sorting in memory and with spilled runs.
+     */
+    @Test
+    public void matchesNestedLoops() throws Exception {
+        Random r = new Random(3);
+        DbIterator left = randomTuples(r, width1, 300, 100);
+        DbIterator right = randomTuples(r, width2, 200, 100);
+        Predicate.Op[] ops = {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+        for (Predicate.Op o : ops) {
+            JoinPredicate pred = new JoinPredicate(0, o, 1);
+            Join nl = new Join(pred, left, right);
+            nl.open();
+            List<String> expected = drain(nl);
+            nl.close();
+            assertFalse(expected.isEmpty());
+
+            for (long budget : new long[]{4 << 20, 200}) {
+                SortMergeJoin.setMemoryBudget(budget);
+                SortMergeJoin op = new SortMergeJoin(pred, left, right);
+                op.open();
+                assertEquals(o + " with " + budget + " bytes", expected, drain(op));
+                assertEquals(budget < 1000, op.getRunCount() > 0);
+                op.rewind();
+                assertEquals(expected, drain(op));
+                op.close();
+            }
+        }
+    }
+
+    /**
+     * @return the tuples of an iterator under field names alias.c0, alias.c1...
+     */
+    private static DbIterator named(DbIterator it, int width, String alias) throws Exception {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        return new TupleIterator(Utility.getTupleDesc(width, alias + ".c"), tuples);
+    }
+
+    /**
+     * Children sorted by an OrderBy are merged without sorting them again,
+     * and the planner picks a merge join for them.
+     */
+    @Test
+    public void sortedChildren() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        scan1 = named(scan1, width1, "t1");
+        scan2 = named(scan2, width2, "t2");
+        OrderBy sorted1 = new OrderBy(0, true, scan1);
+        OrderBy sorted2 = new OrderBy(0, true, scan2);
+        assertTrue(SortMergeJoin.isSorted(sorted1, 0, true));
+        assertFalse(SortMergeJoin.isSorted(sorted1, 0, false));
+
+        LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "t1.c0", "t2.c0", Predicate.Op.EQUALS);
+        DbIterator j = JoinOptimizer.instantiateJoin(lj, sorted1, sorted2);
+        assertTrue(j instanceof SortMergeJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, scan1, scan2) instanceof HashEquiJoin);
+
+        SortMergeJoin op = new SortMergeJoin(pred, sorted1, sorted2);
+        op.open();
+        eqJoin.open();
+        TestUtil.compareDbIterators(eqJoin, op);
+        assertEquals(0, op.getRunCount());
+        assertTrue(op.isSortedOn(0, true));
+        assertTrue(op.isSortedOn(width1, true));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -0,0 +1,173 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test online backups: they recover to the transactions committed by the
+ * time the backup finished, and to nothing else.
+ */
+public class BackupTest extends LogTestBase {
+
+    private final File dir = new File("backup");
+
+    @Test
+    public void uncommittedIsNotBackedUp()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2, 0);
+        Database.getBufferPool().flushAllPages(); // the uncommitted tuple reaches the disk
+
+        Backup backup = new Backup(dir);
+        backup.run();
+        assertTrue(backup.getPagesCopied() >= 2);
+        assertTrue(backup.getLogBytesCopied() > 0);
+
+        t1.commit();
+        doInsert(hf2, 3, -1);
+
+        Backup.restore(dir);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf2, t, 3, false);
+        t.commit();
+    }
+
+    /**
+     * Tables whose heap files have the same name in different directories
+     * are backed up and restored separately.
+     */
+    @Test
+    public void sameFileNames() throws IOException, DbException, TransactionAbortedException {
+        setup();
+        File otherDir = new File("backup-other");
+        otherDir.mkdirs();
+        File file3 = new File(otherDir, file1.getName());
+        file3.delete();
+        HeapFile hf3 = Utility.createEmptyHeapFile(file3.getAbsolutePath(), 2);
+        doInsert(hf1, 1, -1);
+        doInsert(hf3, 2, -1);
+
+        new Backup(dir).run();
+        doInsert(hf1, 3, -1);
+
+        Backup.restore(dir);
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        hf3 = Utility.openHeapFile(2, file3);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf1, t, 3, false);
+        look(hf3, t, 1, false);
+        look(hf3, t, 2, true);
+        t.commit();
+    }
+
+    /**
+     * A backup restores into a database whose log segments have a
+     * different size than the ones it was taken with.
+     */
+    @Test
+    public void segmentSizeChanges() throws IOException, DbException, TransactionAbortedException {
+        long oldSegmentSize = LogFile.getSegmentSize();
+        LogFile.setSegmentSize(512);
+        try {
+            setup();
+            for (int i = 1; i <= 5; i++) {
+                doInsert(hf1, i, -1);
+            }
+            new Backup(dir).run();
+            doInsert(hf1, 6, -1);
+
+            LogFile.setSegmentSize(oldSegmentSize);
+            Backup.restore(dir);
+            crash();
+
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 1; i <= 5; i++) {
+                look(hf1, t, i, true);
+            }
+            look(hf1, t, 6, false);
+            t.commit();
+        } finally {
+            LogFile.setSegmentSize(oldSegmentSize);
+        }
+    }
+
+    /**
+     * A backup taken while another thread commits transactions has every
+     * transaction committed before it started, and each at most once.
+     */
+    @Test
+    public void concurrentCommits() throws Exception {
+        setup();
+        doInsert(hf1, 0, -1);
+
+        final List<Integer> committed = Collections.synchronizedList(new ArrayList<Integer>());
+        final boolean[] stop = new boolean[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 1; !stop[0]; i++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        insertRow(hf1, t, i, 0);
+                        t.commit();
+                        committed.add(i);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+        while (committed.size() < 20) {
+            Thread.sleep(5);
+        }
+        int before = committed.size();
+        new Backup(dir).run();
+        stop[0] = true;
+        writer.join();
+
+        Backup.restore(dir);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i <= before; i++) {
+            look(hf1, t, i, true);
+        }
+        int total = 0;
+        SeqScan scan = new SeqScan(t.getId(), hf1.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            total++;
+        }
+        scan.close();
+        t.commit();
+        assertTrue(total <= committed.size() + 1);
+    }
+}
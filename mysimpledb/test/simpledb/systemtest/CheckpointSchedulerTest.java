@@ -0,0 +1,126 @@
+package simpledb.systemtest;
+
+import org.junit.After;
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the triggers of the background checkpoint scheduler.
+ */
+public class CheckpointSchedulerTest extends LogTestBase {
+
+    private CheckpointScheduler scheduler;
+
+    @After
+    public void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        CheckpointScheduler.setRedoRate(10000);
+    }
+
+    @Test
+    public void logBytes() throws IOException, DbException, TransactionAbortedException {
+        setup();
+        scheduler = new CheckpointScheduler(Database.getLogFile());
+        scheduler.setMaxLogBytes(1);
+        assertFalse(scheduler.checkNow());      // the old log may still need recovery
+
+        doInsert(hf1, 1, -1);
+        assertTrue(scheduler.checkNow());
+        assertEquals("log bytes", scheduler.getLastReason());
+        assertEquals(1, scheduler.getCheckpointCount());
+        assertEquals(0, Database.getLogFile().getBytesSinceCheckpoint());
+        assertFalse(scheduler.checkNow());
+
+        scheduler.setMaxLogBytes(1 << 20);
+        doInsert(hf1, 2, -1);
+        assertFalse(scheduler.checkNow());
+    }
+
+    @Test
+    public void recoveryTimeTarget() throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+        scheduler = new CheckpointScheduler(Database.getLogFile());
+        scheduler.setRecoveryTimeTarget(100);
+        assertFalse(scheduler.checkNow());
+
+        CheckpointScheduler.setRedoRate(1);
+        assertTrue(scheduler.estimateRedoMillis() >= 100);
+        assertTrue(scheduler.checkNow());
+        assertEquals("recovery time", scheduler.getLastReason());
+    }
+
+    @Test
+    public void interval() throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, -1);
+        scheduler = new CheckpointScheduler(Database.getLogFile());
+        scheduler.setInterval(1);
+        Thread.sleep(5);
+        assertTrue(scheduler.checkNow());
+        assertEquals("interval", scheduler.getLastReason());
+    }
+
+    /**
+     * Shutting the log down stops the background checkpoints first instead
+     * of deadlocking with one in progress.
+     */
+    @Test
+    public void shutdownStopsScheduler() throws Exception {
+        setup();
+        scheduler = new CheckpointScheduler(Database.getLogFile());
+        scheduler.setInterval(1);
+        CheckpointScheduler.setPollInterval(1);
+        scheduler.start();
+        try {
+            doInsert(hf1, 1, -1);
+            Thread shutdown = new Thread() {
+                public void run() {
+                    Database.getLogFile().shutdown();
+                }
+            };
+            shutdown.start();
+            shutdown.join(10000);
+            assertFalse(shutdown.isAlive());
+
+            int count = scheduler.getCheckpointCount();
+            Thread.sleep(50);
+            assertEquals(count, scheduler.getCheckpointCount());
+        } finally {
+            CheckpointScheduler.setPollInterval(100);
+        }
+    }
+
+    /**
+     * Checkpoints taken in the background leave a log that recovers.
+     */
+    @Test
+    public void background() throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        scheduler = new CheckpointScheduler(Database.getLogFile());
+        scheduler.setMaxLogBytes(1);
+        scheduler.start();
+        doInsert(hf1, 1, -1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (scheduler.getCheckpointCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        scheduler.stop();
+        assertTrue(scheduler.getCheckpointCount() > 0);
+        assertTrue(scheduler.getMaxDuration() >= scheduler.getLastDuration());
+
+        doInsert(hf1, 2, -1);
+        crash();
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+}
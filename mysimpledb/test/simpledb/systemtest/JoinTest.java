@@ -1,11 +1,15 @@
 package simpledb.systemtest;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import simpledb.*;
 
 public class JoinTest extends SimpleDbTestBase {
@@ -52,6 +56,15 @@ public class JoinTest extends SimpleDbTestBase {
         SystemTestUtil.matchTuples(joinOp, expectedResults);
 
         joinOp.close();
+
+        // and with a hash join, building on the smaller table
+        HashEquiJoin hashOp = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""));
+        SystemTestUtil.matchTuples(hashOp, expectedResults);
+        hashOp.open();
+        assertEquals(table1.numPages() < table2.numPages(), hashOp.buildsOnChild1());
+        hashOp.close();
+
         Database.getBufferPool().transactionComplete(tid);
     }
 
@@ -67,6 +80,65 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 2, 2, 10);
     }
 
+    @Test
+    public void testBuildOnSmaller()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1, 3000, 1, 1);
+        validateJoin(1, 1, 1, 3000);
+    }
+
+    /**
+     * The Bloom filter of the build side is pushed through a Filter to the
+     * probe side scan, which drops the tuples that cannot join.
+     */
+    @Test
+    public void testBloomFilterPushdown()
+            throws IOException, DbException, TransactionAbortedException {
+        HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 10, columnSpecification, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 3000; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i < 10 ? t1Tuples.get(i).get(0) : -i);
+            t.add(i);
+            t2Tuples.add(t);
+        }
+        HeapFile table2 = createHeapFile(t2Tuples);
+
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)), ss2);
+        HashEquiJoin hashOp = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), ""), f);
+        SystemTestUtil.matchTuples(hashOp, expectedResults);
+        assertTrue(hashOp.buildsOnChild1());
+        assertEquals(10, hashOp.getBloomFilter().getCount());
+        assertTrue(ss2.getRuntimeFiltered() > 2900);
+
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static HeapFile createHeapFile(ArrayList<ArrayList<Integer>> tuples)
+            throws IOException {
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), COLUMNS);
+        return Utility.openHeapFile(COLUMNS, temp);
+    }
+
     @Test
     public void testMultipleMatch()
             throws IOException, DbException, TransactionAbortedException {
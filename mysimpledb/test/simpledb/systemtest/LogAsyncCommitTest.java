@@ -0,0 +1,63 @@
+package simpledb.systemtest;
+
+import org.junit.After;
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.IOException;
+
+/**
+ * Test recovery of transactions committed with synchronous commit off.
+ */
+public class LogAsyncCommitTest extends LogTestBase {
+
+    @After
+    public void restoreDelay() {
+        LogFile.setAsyncCommitDelay(10);
+    }
+
+    private void asyncInsert(int v) throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.setSynchronousCommit(false);
+        t.start();
+        insertRow(hf1, t, v, 0);
+        t.commit();
+    }
+
+    /**
+     * An asynchronous commit is durable once the log writer has forced it.
+     */
+    @Test
+    public void forcedCommitSurvives()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        asyncInsert(1);
+        Thread.sleep(200);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    /**
+     * A crash before the commit record reaches the disk undoes the whole
+     * transaction, even though its pages were written.
+     */
+    @Test
+    public void unforcedCommitIsUndone()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+        LogFile.setAsyncCommitDelay(60000);
+        asyncInsert(2);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        t.commit();
+    }
+}
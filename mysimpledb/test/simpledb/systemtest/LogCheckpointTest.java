@@ -0,0 +1,82 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Test fuzzy checkpoints.
+ */
+public class LogCheckpointTest extends LogTestBase {
+
+    /**
+     * A checkpoint doesn't write the dirty pages of running transactions,
+     * and recovery from it still installs their changes once they commit.
+     */
+    @Test
+    public void checkpointDoesNotFlush()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2, 0);
+        PageId pid = new HeapPageId(hf1.getId(), 0);
+
+        Database.getLogFile().logCheckpoint();
+
+        // the page is still dirty and the disk copy only has the first tuple
+        assertNotNull(Database.getBufferPool().getPage(t1.getId(), pid, Permissions.READ_ONLY).isDirty());
+        int onDisk = 0;
+        Iterator<Tuple> it = ((HeapPage) hf1.readPage(pid)).iterator();
+        while (it.hasNext()) {
+            it.next();
+            onDisk++;
+        }
+        assertEquals(1, onDisk);
+
+        t1.commit();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    /**
+     * A transaction that was active at the checkpoint is undone by recovery
+     * if it never committed.
+     */
+    @Test
+    public void activeAtCheckpointIsUndone()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        Database.getLogFile().logCheckpoint();
+        insertRow(hf1, t1, 3, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+}
@@ -0,0 +1,69 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that recovery uses page LSNs to skip records already on disk.
+ */
+public class LogPageLSNTest extends LogTestBase {
+
+    /**
+     * Committed pages are forced at commit, so recovery has nothing to redo.
+     */
+    @Test
+    public void committedPagesAreSkipped()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, -1);
+
+        PageId pid = new HeapPageId(hf1.getId(), 0);
+        assertTrue(hf1.getPageLSN(pid) >= 0);
+
+        crash();
+        assertEquals(0, Database.getLogFile().getRedoApplied());
+        assertTrue(Database.getLogFile().getRedoSkipped() >= 2);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, true);
+        t.commit();
+    }
+
+    /**
+     * Page LSNs recorded under a log that has since been thrown away are
+     * ignored.
+     */
+    @Test
+    public void lsnFromOldLogIsIgnored()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+        PageId pid = new HeapPageId(hf1.getId(), 0);
+        assertTrue(hf1.getPageLSN(pid) >= 0);
+
+        // restart without recovery, so the next append starts a new log
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(-1, hf1.getPageLSN(new HeapPageId(hf1.getId(), 0)));
+
+        doInsert(hf1, 2, -1);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+}
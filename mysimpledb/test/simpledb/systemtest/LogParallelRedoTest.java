@@ -0,0 +1,69 @@
+package simpledb.systemtest;
+
+import org.junit.After;
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test redo with several worker threads.
+ */
+public class LogParallelRedoTest extends LogTestBase {
+
+    private final int oldThreads = LogFile.getRedoThreads();
+
+    @After
+    public void restoreThreads() {
+        LogFile.setRedoThreads(oldThreads);
+    }
+
+    /**
+     * Rebuild two tables spanning several pages entirely from the log, each
+     * page updated by several transactions in turn.
+     */
+    @Test
+    public void rebuildFromLog()
+            throws IOException, DbException, TransactionAbortedException {
+        LogFile.setRedoThreads(4);
+        setup();
+        for (int round = 0; round < 3; round++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < 400; i++) {
+                insertRow(hf1, t, round * 1000 + i, 0);
+                insertRow(hf2, t, round * 1000 + i, 1);
+            }
+            t.commit();
+        }
+        assertTrue(hf1.numPages() > 2);
+
+        // lose the table files; only the log remains
+        Database.reset();
+        for (File f : new File[]{file1, file2}) {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            raf.setLength(0);
+            raf.close();
+        }
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().recover();
+
+        assertEquals(0, Database.getLogFile().getRedoSkipped());
+        assertTrue(Database.getLogFile().getRedoApplied() > 0);
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int round = 0; round < 3; round++) {
+            look(hf1, t, round * 1000, true);
+            look(hf1, t, round * 1000 + 399, true);
+            look(hf2, t, round * 1000 + 200, true);
+        }
+        t.commit();
+    }
+}
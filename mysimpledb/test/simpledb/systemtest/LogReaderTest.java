@@ -0,0 +1,130 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the change stream LogReader decodes from the log.
+ */
+public class LogReaderTest extends LogTestBase {
+
+    private void deleteRow(HeapFile hf, int v1)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        Filter f = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(v1)), scan);
+        Delete d = new Delete(t.getId(), f);
+        d.open();
+        assertEquals(1, ((IntField) d.next().getField(0)).getValue());
+        d.close();
+        t.commit();
+    }
+
+    private List<String> drain(LogReader reader) throws IOException {
+        ArrayList<String> changes = new ArrayList<String>();
+        LogReader.Change c;
+        while ((c = reader.next()) != null) {
+            changes.add(describe(c));
+        }
+        return changes;
+    }
+
+    private String describe(LogReader.Change c) {
+        String table = c.getTableId() == hf1.getId() ? "hf1" : "hf2";
+        return c.getKind() + " " + table + " " + ((IntField) c.getTuple().getField(0)).getValue();
+    }
+
+    private void populate() throws DbException, TransactionAbortedException, IOException {
+        setup();
+        doInsert(hf1, 1, 2);
+        dontInsert(hf1, 3, -1);
+        doInsert(hf2, 4, -1);
+    }
+
+    /**
+     * Only the changes of committed transactions come out, in commit order.
+     */
+    @Test
+    public void committedChangesOnly()
+            throws IOException, DbException, TransactionAbortedException {
+        populate();
+        LogReader reader = new LogReader(Database.getLogFile(), 0);
+        assertEquals(Arrays.asList("INSERT hf1 1", "INSERT hf1 2", "INSERT hf2 4"), drain(reader));
+
+        deleteRow(hf1, 1);
+        LogReader.Change c = reader.next();
+        assertEquals("DELETE hf1 1", describe(c));
+        assertEquals(0, c.getRecordId().getPageId().pageNumber());
+        assertNull(reader.next());
+    }
+
+    /**
+     * Transactions whose diffs don't fit in memory are read again at commit.
+     */
+    @Test
+    public void unbufferedTransactions()
+            throws IOException, DbException, TransactionAbortedException {
+        populate();
+        LogReader reader = new LogReader(Database.getLogFile(), 0);
+        reader.setMaxBufferedBytes(0);
+        assertEquals(Arrays.asList("INSERT hf1 1", "INSERT hf1 2", "INSERT hf2 4"), drain(reader));
+    }
+
+    /**
+     * A reader resumed from a cursor returns the transactions the first one
+     * didn't finish, and nothing else.
+     */
+    @Test
+    public void resume()
+            throws IOException, DbException, TransactionAbortedException {
+        populate();
+        LogReader reader = new LogReader(Database.getLogFile(), 0);
+        assertEquals("INSERT hf1 1", describe(reader.next()));
+
+        LogReader resumed = new LogReader(Database.getLogFile(), reader.getRestartLSN(), reader.getCommittedLSN());
+        assertEquals(Arrays.asList("INSERT hf1 1", "INSERT hf1 2", "INSERT hf2 4"), drain(resumed));
+
+        assertEquals("INSERT hf1 2", describe(reader.next()));
+        resumed = new LogReader(Database.getLogFile(), reader.getRestartLSN(), reader.getCommittedLSN());
+        assertEquals(Arrays.asList("INSERT hf2 4"), drain(resumed));
+    }
+
+    /**
+     * Checkpoints don't truncate the log a reader still needs, until the
+     * reader is closed.
+     */
+    @Test
+    public void readerPinsTheLog()
+            throws IOException, DbException, TransactionAbortedException {
+        long oldSegmentSize = LogFile.getSegmentSize();
+        LogFile.setSegmentSize(512);
+        try {
+            setup();
+            doInsert(hf1, 0, -1);
+            LogReader reader = new LogReader(Database.getLogFile(), 0);
+            ArrayList<String> expected = new ArrayList<String>();
+            expected.add("INSERT hf1 0");
+            for (int i = 1; i < 20; i++) {
+                doInsert(hf1, i, -1);
+                expected.add("INSERT hf1 " + i);
+            }
+            Database.getLogFile().logCheckpoint();
+            int pinned = Database.getLogFile().numSegments();
+            assertEquals(expected, drain(reader));
+
+            reader.close();
+            Database.getLogFile().logCheckpoint();
+            assertTrue(Database.getLogFile().numSegments() < pinned);
+        } finally {
+            LogFile.setSegmentSize(oldSegmentSize);
+        }
+    }
+}
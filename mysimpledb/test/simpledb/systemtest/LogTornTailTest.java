@@ -0,0 +1,40 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Test recovery from a log whose last record was torn by a crash.
+ */
+public class LogTornTailTest extends LogTestBase {
+
+    @Test
+    public void tornTailIsDiscarded()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // half of a record at the end of the log (Database's log is "log")
+        RandomAccessFile raf = new RandomAccessFile(new File("log.000000"), "rw");
+        raf.seek(raf.length());
+        raf.writeInt(100);
+        raf.writeInt(3);
+        raf.writeLong(12345);
+        raf.close();
+
+        crash();
+        doInsert(hf1, 3, -1);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+}
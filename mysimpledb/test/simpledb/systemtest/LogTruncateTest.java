@@ -0,0 +1,77 @@
+package simpledb.systemtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.*;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that checkpoints truncate the segmented log without losing anything
+ * rollback or recovery needs.
+ */
+public class LogTruncateTest extends LogTestBase {
+    private long oldSegmentSize;
+
+    @Before
+    public void setSmallSegments() {
+        oldSegmentSize = LogFile.getSegmentSize();
+        LogFile.setSegmentSize(512);
+    }
+
+    @After
+    public void restoreSegments() {
+        LogFile.setSegmentSize(oldSegmentSize);
+    }
+
+    @Test
+    public void checkpointDeletesOldSegments()
+            throws java.io.IOException, DbException, TransactionAbortedException {
+        setup();
+        for (int i = 0; i < 20; i++) {
+            doInsert(hf1, i, -1);
+        }
+        int before = Database.getLogFile().numSegments();
+        assertTrue(before > 2);
+
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getLogFile().numSegments() < before);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 20; i++) {
+            look(hf1, t, i, true);
+        }
+        t.commit();
+    }
+
+    @Test
+    public void activeTransactionKeepsItsRecords()
+            throws java.io.IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // t1 is still active across the checkpoint, so its records must stay
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 100, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        for (int i = 2; i < 20; i++) {
+            doInsert(hf1, i, -1);
+        }
+        Database.getLogFile().logCheckpoint();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 19, true);
+        look(hf2, t, 100, false);
+        t.commit();
+    }
+}
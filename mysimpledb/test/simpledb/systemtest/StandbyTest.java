@@ -0,0 +1,134 @@
+package simpledb.systemtest;
+
+import org.junit.After;
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test a standby that applies the log of the primary to copies of its
+ * tables.  Both share this process, and so the catalog and the buffer pool,
+ * but the standby only reads the primary's log files.
+ */
+public class StandbyTest extends LogTestBase {
+
+    private File dir;
+    private HeapFile copy1;
+    private HeapFile copy2;
+    private Standby standby;
+
+    @After
+    public void closeStandby() throws Exception {
+        if (standby != null) {
+            standby.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        out.close();
+    }
+
+    /**
+     * Set up a primary with one committed transaction and a standby with
+     * copies of its tables.
+     */
+    private void setupStandby() throws Exception {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        dir = new File("standby");
+        dir.mkdir();
+        new File(dir, "standby").delete();
+        copy(file1, new File(dir, file1.getName()));
+        copy(file2, new File(dir, file2.getName()));
+        copy1 = Utility.openHeapFile(2, new File(dir, file1.getName()));
+        copy2 = Utility.openHeapFile(2, new File(dir, file2.getName()));
+        standby = openStandby();
+    }
+
+    private Standby openStandby() throws IOException {
+        return new Standby(new File("log"), file1.getAbsoluteFile().getParentFile(), dir);
+    }
+
+    // check that the specified tuple is, or is not, present, without logging
+    private void lookUp(HeapFile hf, int v1, boolean present)
+            throws DbException, TransactionAbortedException, IOException {
+        TransactionId tid = new TransactionId();
+        int count = 0;
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            if (((IntField) scan.next().getField(0)).getValue() == v1) {
+                count++;
+            }
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(present ? 1 : 0, count);
+    }
+
+    @Test
+    public void appliesCommittedTransactions() throws Exception {
+        setupStandby();
+        lookUp(copy1, 1, true);
+
+        doInsert(hf1, 2, 3);
+        dontInsert(hf1, 4, -1);
+        doInsert(hf2, 5, -1);
+        assertTrue(standby.getLagBytes() > 0);
+        lookUp(copy1, 2, false);
+
+        assertEquals(2, standby.catchUp());
+        assertEquals(0, standby.getLagBytes());
+        assertEquals(0, standby.getLagMillis());
+        lookUp(copy1, 1, true);
+        lookUp(copy1, 2, true);
+        lookUp(copy1, 3, true);
+        lookUp(copy1, 4, false);
+        lookUp(copy2, 5, true);
+    }
+
+    @Test
+    public void resumesAfterRestart() throws Exception {
+        setupStandby();
+        doInsert(hf1, 2, -1);
+        assertEquals(1, standby.catchUp());
+        standby.close();
+
+        doInsert(hf1, 3, -1);
+        standby = openStandby();
+        assertEquals(1, standby.catchUp());
+        lookUp(copy1, 2, true);
+        lookUp(copy1, 3, true);
+    }
+
+    @Test
+    public void appliesInBackground() throws Exception {
+        Standby.setPollInterval(10);
+        try {
+            setupStandby();
+            standby.start();
+            doInsert(hf1, 2, -1);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (standby.getAppliedCount() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            standby.stop();
+            assertEquals(1, standby.getAppliedCount());
+            lookUp(copy1, 2, true);
+        } finally {
+            Standby.setPollInterval(100);
+        }
+    }
+}